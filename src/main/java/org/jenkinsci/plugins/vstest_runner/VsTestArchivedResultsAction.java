@@ -0,0 +1,267 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Result files of the vsTest steps of a build, compressed on the node and streamed
+ * into the build directory as one {@code .tar.gz} per step.
+ * <p>
+ * Only the manifest is kept in the action; archives are served from
+ * {@code vstestResults/NAME}.
+ */
+@ExportedBean
+public class VsTestArchivedResultsAction implements RunAction2 {
+
+    private static final String PREFIX = "vstest-results-";
+    private static final String SUFFIX = ".tar.gz";
+
+    private final List<Archive> archives = new ArrayList<>();
+
+    private transient Run<?, ?> run;
+
+    /**
+     * Compresses {@code paths} on the node holding {@code workspace} and streams them
+     * into a new archive in the build directory of {@code run}.
+     *
+     * @param run
+     * @param workspace
+     * @param paths files relative to {@code workspace}
+     * @return the archive, or null if none of the files exist
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Archive archive(Run<?, ?> run, FilePath workspace, List<String> paths) throws IOException, InterruptedException {
+        Map<String, Long> sizes = workspace.act(new SizeLister(paths));
+        if (sizes.isEmpty()) {
+            return null;
+        }
+
+        VsTestArchivedResultsAction action;
+        String name;
+        synchronized (run) {
+            action = run.getAction(VsTestArchivedResultsAction.class);
+            if (action == null) {
+                action = new VsTestArchivedResultsAction();
+                run.addAction(action);
+            }
+            name = PREFIX + action.nextNumber() + SUFFIX;
+            // reserve the name before the transfer so that parallel steps do not collide
+            action.add(new Archive(name, 0, sizes));
+        }
+
+        File file = new File(run.getRootDir(), name);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            workspace.archive(ArchiverFactory.TARGZ, out, new ExplicitFiles(new ArrayList<>(sizes.keySet())));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // no half-written archive is listed or left behind
+            action.remove(name);
+            if (file.exists() && !file.delete()) {
+                e.addSuppressed(new IOException("Failed to delete " + file));
+            }
+            throw e;
+        }
+        Archive archive = new Archive(name, file.length(), sizes);
+        action.replace(archive);
+        return archive;
+    }
+
+    @Exported
+    public synchronized List<Archive> getArchives() {
+        return Collections.unmodifiableList(new ArrayList<>(archives));
+    }
+
+    private synchronized void add(Archive archive) {
+        archives.add(archive);
+    }
+
+    private synchronized void remove(String name) {
+        for (int i = archives.size() - 1; i >= 0; i--) {
+            if (archives.get(i).getName().equals(name)) {
+                archives.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return a number above that of every archive, so that a removed one does not lead to a clash
+     */
+    private synchronized int nextNumber() {
+        int next = 1;
+        for (Archive archive : archives) {
+            String number = archive.getName().substring(PREFIX.length(), archive.getName().length() - SUFFIX.length());
+            try {
+                next = Math.max(next, Integer.parseInt(number) + 1);
+            } catch (NumberFormatException e) {
+                // not named by this action
+            }
+        }
+        return next;
+    }
+
+    private synchronized void replace(Archive archive) {
+        for (int i = 0; i < archives.size(); i++) {
+            if (archives.get(i).getName().equals(archive.getName())) {
+                archives.set(i, archive);
+            }
+        }
+    }
+
+    @SuppressWarnings("unused") // Used by Stapler
+    public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        run.checkPermission(Run.ARTIFACTS);
+        String name = req.getRestOfPath().replaceFirst("^/", "");
+        for (Archive archive : getArchives()) {
+            if (archive.getName().equals(name)) {
+                File file = new File(run.getRootDir(), name);
+                if (file.isFile()) {
+                    try (FileInputStream in = new FileInputStream(file)) {
+                        rsp.serveFile(req, in, file.lastModified(), file.length(), name);
+                    }
+                    return;
+                }
+            }
+        }
+        rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public String getDisplayName() {
+        return "VSTest Result Files";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "vstestResults";
+    }
+
+    /**
+     * Manifest of one archive.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Archive {
+
+        private final String name;
+        private final long compressedSize;
+        private final Map<String, Long> files;
+
+        public Archive(String name, long compressedSize, Map<String, Long> files) {
+            this.name = name;
+            this.compressedSize = compressedSize;
+            this.files = new LinkedHashMap<>(files);
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        @Exported
+        public long getSize() {
+            long size = 0;
+            for (long s : files.values()) {
+                size += s;
+            }
+            return size;
+        }
+
+        /**
+         * @return uncompressed size of each file, by path relative to the workspace
+         */
+        @Exported
+        public Map<String, Long> getFiles() {
+            return Collections.unmodifiableMap(files);
+        }
+    }
+
+    /**
+     * Returns the size of each of the given workspace files that exists.
+     */
+    private static final class SizeLister extends MasterToSlaveFileCallable<Map<String, Long>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> paths;
+
+        SizeLister(List<String> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public Map<String, Long> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            Map<String, Long> sizes = new LinkedHashMap<>();
+            for (String path : paths) {
+                File file = new File(workspace, path);
+                if (file.isFile()) {
+                    sizes.put(path, file.length());
+                }
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * Visits exactly the given files, without interpreting their names as patterns.
+     */
+    private static final class ExplicitFiles extends DirScanner {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> paths;
+
+        ExplicitFiles(List<String> paths) {
+            this.paths = paths;
+        }
+
+        @Override
+        public void scan(File dir, FileVisitor visitor) throws IOException {
+            for (String path : paths) {
+                File file = new File(dir, path);
+                if (file.isFile()) {
+                    visitor.visit(file, path);
+                }
+            }
+        }
+    }
+}
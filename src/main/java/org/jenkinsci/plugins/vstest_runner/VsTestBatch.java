@@ -0,0 +1,676 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.namespace.QName;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.LauncherDecorator;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Collects the vsTest calls made inside a {@code vsTestBatch} block and runs them
+ * together once the block body is done.
+ * <p>
+ * Calls with the same options in the same workspace form a group. Each group runs its
+ * de-duplicated assemblies in one parallel {@code vstest.console} invocation, ordered by
+ * their duration in the last batch so that the longest ones start first. The TRX file of
+ * the invocation is then split by assembly into one TRX file per call, so that every call
+ * still has results of its own.
+ * <p>
+ * Each block gets its own batch. The block hands a {@link Marker} to its body, which
+ * decorates the launchers of the body's steps, so only vsTest calls made inside the block
+ * join it; calls in parallel branches outside the block run on their own.
+ */
+public final class VsTestBatch {
+
+    private static final Map<String, VsTestBatch> BATCHES = new HashMap<>();
+
+    /** Number of earlier builds searched for assembly durations. */
+    private static final int HISTORY = 5;
+
+    private final String id;
+    private final List<Call> calls = new ArrayList<>();
+    private boolean collecting = true;
+    private boolean closed;
+
+    private VsTestBatch(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Starts collecting the vsTest calls made with launchers decorated by {@link #getMarker()}.
+     *
+     * @return
+     */
+    public static VsTestBatch open() {
+        VsTestBatch batch = new VsTestBatch(UUID.randomUUID().toString());
+        synchronized (BATCHES) {
+            BATCHES.put(batch.id, batch);
+        }
+        return batch;
+    }
+
+    /**
+     * @return the launcher decorator marking the steps of the block as calls of this batch
+     */
+    public LauncherDecorator getMarker() {
+        return new Marker(id);
+    }
+
+    /**
+     * @param launcher the launcher of a vsTest call
+     * @return the batch collecting the calls of the innermost block {@code launcher} was
+     *         made in, or null
+     */
+    @CheckForNull
+    public static VsTestBatch collecting(Launcher launcher) {
+        for (Launcher l = launcher; l instanceof Launcher.DecoratedLauncher; l = ((Launcher.DecoratedLauncher) l).getInner()) {
+            if (l instanceof MarkedLauncher) {
+                synchronized (BATCHES) {
+                    VsTestBatch batch = BATCHES.get(((MarkedLauncher) l).id);
+                    return batch != null && batch.collecting ? batch : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a call to the batch instead of running it.
+     *
+     * @param builder
+     * @param workspace
+     * @param launcher
+     * @param assemblies test assemblies of the call, relative to {@code workspace}
+     * @return the number of the call in the batch, from 1
+     */
+    /* package */ int add(VsTestBuilder builder, FilePath workspace, Launcher launcher, List<String> assemblies) {
+        synchronized (BATCHES) {
+            if (!collecting) {
+                throw new IllegalStateException("The vsTest batch is no longer collecting calls");
+            }
+            Call call = new Call(calls.size() + 1, builder, workspace, launcher, assemblies);
+            calls.add(call);
+            return call.number;
+        }
+    }
+
+    /**
+     * Stops collecting and runs the collected calls, group by group.
+     *
+     * @param run
+     * @param listener
+     * @return for each call, in call order, its last TRX file relative to its workspace, or null
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public List<String> run(Run<?, ?> run, TaskListener listener) throws IOException, InterruptedException {
+        Map<String, Group> groups = new LinkedHashMap<>();
+        synchronized (BATCHES) {
+            collecting = false;
+            for (Call call : calls) {
+                String key = call.workspace.getRemote() + "\n" + configuration(call.builder);
+                Group group = groups.get(key);
+                if (group == null) {
+                    group = new Group();
+                    groups.put(key, group);
+                }
+                group.calls.add(call);
+            }
+        }
+
+        Map<String, Integer> durations = previousDurations(run);
+        // the results of a group are recorded while the next group runs
+        VsTestPostProcessor post = new VsTestPostProcessor(listener);
+        try {
+            for (Group group : groups.values()) {
+                checkOpen();
+                List<String> assemblies = group.schedule(durations);
+                int requested = 0;
+                for (Call call : group.calls) {
+                    requested += call.assemblies.size();
+                }
+                listener.getLogger().println("vsTest batch: running " + assemblies.size() + " assembly(ies) of "
+                        + group.calls.size() + " call(s) together, " + (requested - assemblies.size()) + " duplicate(s) removed");
+                if (assemblies.isEmpty()) {
+                    continue;
+                }
+                Call first = group.calls.get(0);
+                first.builder.performBatch(run, first.workspace, first.launcher, listener, assemblies, post, group);
+            }
+            post.join();
+        } finally {
+            post.close();
+        }
+
+        // a stopped batch records nothing on the build
+        checkOpen();
+        VsTestBatchAction action = new VsTestBatchAction();
+        for (Group group : groups.values()) {
+            action.addDurations(group.durations);
+        }
+        List<String> results = new ArrayList<>();
+        for (Call call : calls) {
+            action.addCall(call.number, call.builder.getTestFiles(), call.assemblies.size(), call.trxFiles);
+            results.add(call.trxFiles.isEmpty() ? null : call.trxFiles.get(call.trxFiles.size() - 1));
+        }
+        run.addAction(action);
+        return results;
+    }
+
+    private void checkOpen() throws InterruptedException {
+        synchronized (BATCHES) {
+            if (closed) {
+                throw new InterruptedException("The vsTest batch was stopped");
+            }
+        }
+    }
+
+    /**
+     * Ends the batch of the build, whether it ran or not.
+     */
+    public void close() {
+        synchronized (BATCHES) {
+            collecting = false;
+            closed = true;
+            if (BATCHES.get(id) == this) {
+                BATCHES.remove(id);
+            }
+        }
+    }
+
+    /**
+     * @param builder
+     * @return every persisted option of {@code builder} except its test files
+     */
+    /* package */ static String configuration(VsTestBuilder builder) {
+        StringBuilder s = new StringBuilder();
+        for (Field field : VsTestBuilder.class.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.getName().equals("testFiles")) {
+                continue;
+            }
+            field.setAccessible(true);
+            try {
+                s.append(field.getName()).append('=').append(field.get(builder)).append('\n');
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return s.toString();
+    }
+
+    private static Map<String, Integer> previousDurations(Run<?, ?> run) {
+        Run<?, ?> previous = run.getPreviousCompletedBuild();
+        for (int i = 0; previous != null && i < HISTORY; i++, previous = previous.getPreviousCompletedBuild()) {
+            VsTestBatchAction action = previous.getAction(VsTestBatchAction.class);
+            if (action != null) {
+                return action.getDurations();
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @param path
+     * @return {@code path} with forward slashes, lower case, as a key for comparisons on Windows
+     */
+    /* package */ static String normalize(String path) {
+        return path.replace('\\', '/').toLowerCase(Locale.ENGLISH);
+    }
+
+    private static final class Call {
+
+        private final int number;
+        private final VsTestBuilder builder;
+        private final FilePath workspace;
+        private final Launcher launcher;
+        private final List<String> assemblies;
+        private final List<String> trxFiles = new ArrayList<>();
+
+        Call(int number, VsTestBuilder builder, FilePath workspace, Launcher launcher, List<String> assemblies) {
+            this.number = number;
+            this.builder = builder;
+            this.workspace = workspace;
+            this.launcher = launcher;
+            this.assemblies = new ArrayList<>(assemblies);
+        }
+    }
+
+    /**
+     * Marks the launchers of the steps inside a {@code vsTestBatch} block.
+     */
+    private static final class Marker extends LauncherDecorator implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+
+        Marker(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Launcher decorate(Launcher launcher, Node node) {
+            return new MarkedLauncher(launcher, id);
+        }
+    }
+
+    private static final class MarkedLauncher extends Launcher.DecoratedLauncher {
+
+        private final String id;
+
+        MarkedLauncher(Launcher inner, String id) {
+            super(inner);
+            this.id = id;
+        }
+    }
+
+    /**
+     * Calls with the same options in the same workspace, run as one.
+     */
+    /* package */ static final class Group {
+
+        private final List<Call> calls = new ArrayList<>();
+        private final Map<String, Integer> durations = new HashMap<>();
+
+        /**
+         * @param durations durations in ms of the assemblies in an earlier build
+         * @return the assemblies of every call, once, longest first and unknown ones before them
+         */
+        private List<String> schedule(final Map<String, Integer> durations) {
+            Set<String> seen = new LinkedHashSet<>();
+            List<String> assemblies = new ArrayList<>();
+            for (Call call : calls) {
+                for (String assembly : call.assemblies) {
+                    if (seen.add(normalize(assembly))) {
+                        assemblies.add(assembly);
+                    }
+                }
+            }
+            // a stable sort keeps the call order among assemblies without history
+            Collections.sort(assemblies, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return Long.compare(duration(b), duration(a));
+                }
+
+                private long duration(String assembly) {
+                    Integer duration = durations.get(normalize(assembly));
+                    return duration != null ? duration : Long.MAX_VALUE;
+                }
+            });
+            return assemblies;
+        }
+
+        /**
+         * Splits the TRX files of the group's run into one TRX file per call, next to the originals.
+         *
+         * @param workspace
+         * @param trxPaths absolute paths on the node
+         * @return the TRX files of each call, as absolute paths on the node, in call order
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        /* package */ List<List<String>> split(FilePath workspace, List<String> trxPaths) throws IOException, InterruptedException {
+            List<List<String>> assemblies = new ArrayList<>(calls.size());
+            List<List<String>> files = new ArrayList<>(calls.size());
+            for (Call call : calls) {
+                assemblies.add(call.assemblies);
+                files.add(new ArrayList<String>());
+            }
+            for (String trxPath : trxPaths) {
+                FilePath trx = workspace.child(trxPath);
+                if (!trx.exists()) {
+                    continue;
+                }
+                Split split = trx.act(new TrxSplitter(assemblies));
+                for (int i = 0; i < calls.size(); i++) {
+                    files.get(i).add(split.files.get(i));
+                }
+                synchronized (durations) {
+                    for (Map.Entry<String, Integer> entry : split.durations.entrySet()) {
+                        Integer known = durations.get(entry.getKey());
+                        durations.put(entry.getKey(), (known != null ? known : 0) + entry.getValue());
+                    }
+                }
+            }
+            return files;
+        }
+
+        /**
+         * @param trxFiles the TRX files of each call relative to the workspace, in call order
+         */
+        /* package */ void attribute(List<List<String>> trxFiles) {
+            for (int i = 0; i < calls.size(); i++) {
+                calls.get(i).trxFiles.addAll(trxFiles.get(i));
+            }
+        }
+    }
+
+    /**
+     * The TRX files written for each call, and the durations of the assemblies.
+     */
+    /* package */ static final class Split implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+        /** Summed test durations in ms by normalized assembly path relative to the workspace. */
+        private final Map<String, Integer> durations;
+
+        Split(List<String> files, Map<String, Integer> durations) {
+            this.files = files;
+            this.durations = durations;
+        }
+
+        /* package */ List<String> getFiles() {
+            return files;
+        }
+
+        /* package */ Map<String, Integer> getDurations() {
+            return durations;
+        }
+    }
+
+    /**
+     * Writes a copy of a TRX file per call holding only the tests of the call's assemblies,
+     * on the node. Tests are matched to assemblies by the {@code storage} attribute of their
+     * definition, which is the path vstest.console loaded the assembly from. The counters of
+     * the result summary are recounted from the results each copy keeps.
+     */
+    /* package */ static final class TrxSplitter extends MasterToSlaveFileCallable<Split> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Elements holding one test each, and the attribute naming the test. */
+        private static final Map<String, String> TEST_ELEMENTS = new HashMap<>();
+
+        static {
+            TEST_ELEMENTS.put("UnitTestResult", "testId");
+            TEST_ELEMENTS.put("TestEntry", "testId");
+            TEST_ELEMENTS.put("UnitTest", "id");
+        }
+
+        /** Elements of the result summary that hold counts. */
+        private static final Set<String> SUMMARY_ELEMENTS = new HashSet<>(Arrays.asList("ResultSummary", "Counters"));
+
+        /** Counters of the results that fail a run. */
+        private static final List<String> FAILED_COUNTERS = Arrays.asList("failed", "error", "timeout", "aborted");
+
+        private final List<List<String>> assemblies;
+
+        /**
+         * @param assemblies the assemblies of each call, relative to the workspace
+         */
+        TrxSplitter(List<List<String>> assemblies) {
+            this.assemblies = assemblies;
+        }
+
+        @Override
+        public Split invoke(File trx, VirtualChannel channel) throws IOException, InterruptedException {
+            // definitions follow the results, so find the assembly of every test first
+            Map<String, String> storages = new HashMap<>();
+            Map<String, Integer> testDurations = new HashMap<>();
+            Map<String, List<String>> testOutcomes = new HashMap<>();
+            XMLInputFactory inputs = inputFactory();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(trx))) {
+                XMLStreamReader reader = inputs.createXMLStreamReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                            continue;
+                        }
+                        if ("UnitTest".equals(reader.getLocalName())) {
+                            String storage = reader.getAttributeValue(null, "storage");
+                            if (storage != null) {
+                                storages.put(reader.getAttributeValue(null, "id"), normalize(storage));
+                            }
+                        } else if ("UnitTestResult".equals(reader.getLocalName())) {
+                            String testId = reader.getAttributeValue(null, "testId");
+                            Integer known = testDurations.get(testId);
+                            testDurations.put(testId, (known != null ? known : 0)
+                                    + VsTestResultIndex.parseDuration(reader.getAttributeValue(null, "duration")));
+                            List<String> outcomes = testOutcomes.get(testId);
+                            if (outcomes == null) {
+                                outcomes = new ArrayList<>();
+                                testOutcomes.put(testId, outcomes);
+                            }
+                            outcomes.add(String.valueOf(reader.getAttributeValue(null, "outcome")));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Failed to parse TRX file " + trx, e);
+            }
+
+            // storage paths are absolute, possibly in a staging directory
+            Map<String, String> assemblyOfStorage = new HashMap<>();
+            for (String storage : new HashSet<>(storages.values())) {
+                for (List<String> call : assemblies) {
+                    for (String assembly : call) {
+                        String key = normalize(assembly);
+                        String known = assemblyOfStorage.get(storage);
+                        // the longest match wins, bin/Tests.dll must not take x/bin/Tests.dll
+                        if ((storage.endsWith("/" + key) || storage.equals(key))
+                                && (known == null || known.length() < key.length())) {
+                            assemblyOfStorage.put(storage, key);
+                        }
+                    }
+                }
+            }
+            List<Set<String>> callTests = new ArrayList<>();
+            List<Map<String, Integer>> callCounters = new ArrayList<>();
+            for (List<String> call : assemblies) {
+                Set<String> keys = new HashSet<>();
+                for (String assembly : call) {
+                    keys.add(normalize(assembly));
+                }
+                Set<String> tests = new HashSet<>();
+                for (Map.Entry<String, String> test : storages.entrySet()) {
+                    if (keys.contains(assemblyOfStorage.get(test.getValue()))) {
+                        tests.add(test.getKey());
+                    }
+                }
+                callTests.add(tests);
+                callCounters.add(counters(tests, testOutcomes));
+            }
+            boolean runFailed = failed(counters(testOutcomes.keySet(), testOutcomes));
+            Map<String, Integer> durations = new HashMap<>();
+            for (Map.Entry<String, Integer> test : testDurations.entrySet()) {
+                String assembly = assemblyOfStorage.get(storages.get(test.getKey()));
+                if (assembly != null) {
+                    Integer known = durations.get(assembly);
+                    durations.put(assembly, (known != null ? known : 0) + test.getValue());
+                }
+            }
+
+            String name = trx.getName().replaceFirst("(?i)\\.trx$", "");
+            List<String> files = new ArrayList<>();
+            List<OutputStream> outs = new ArrayList<>();
+            List<XMLEventWriter> writers = new ArrayList<>();
+            XMLOutputFactory outputs = XMLOutputFactory.newInstance();
+            try {
+                for (int i = 0; i < assemblies.size(); i++) {
+                    File file = new File(trx.getParentFile(), name + ".call-" + (i + 1) + ".trx");
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                    outs.add(out);
+                    writers.add(outputs.createXMLEventWriter(out, "UTF-8"));
+                    files.add(file.getAbsolutePath());
+                }
+                copy(trx, inputs, writers, callTests, callCounters, runFailed);
+            } catch (XMLStreamException e) {
+                throw new IOException("Failed to split TRX file " + trx, e);
+            } finally {
+                for (OutputStream out : outs) {
+                    out.close();
+                }
+            }
+            return new Split(files, durations);
+        }
+
+        /**
+         * @param tests
+         * @param testOutcomes the outcome of each result, by test
+         * @return the number of results of {@code tests} by counter, named like the attributes
+         *         of the {@code Counters} element, plus {@code total} and {@code executed}
+         */
+        private static Map<String, Integer> counters(Set<String> tests, Map<String, List<String>> testOutcomes) {
+            Map<String, Integer> counters = new HashMap<>();
+            int total = 0;
+            int executed = 0;
+            for (String test : tests) {
+                List<String> outcomes = testOutcomes.get(test);
+                if (outcomes == null) {
+                    continue;
+                }
+                for (String outcome : outcomes) {
+                    total++;
+                    if (!outcome.equals("NotExecuted")) {
+                        executed++;
+                    }
+                    String counter = outcome.isEmpty() ? outcome : Character.toLowerCase(outcome.charAt(0)) + outcome.substring(1);
+                    Integer known = counters.get(counter);
+                    counters.put(counter, (known != null ? known : 0) + 1);
+                }
+            }
+            counters.put("total", total);
+            counters.put("executed", executed);
+            return counters;
+        }
+
+        private static boolean failed(Map<String, Integer> counters) {
+            for (String counter : FAILED_COUNTERS) {
+                if (counters.containsKey(counter)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param start a {@code ResultSummary} or {@code Counters} element of the original file
+         * @param counters of one call
+         * @param runFailed whether results of the whole run failed it
+         * @param events
+         * @return {@code start} with the outcome or the counters of the call
+         */
+        private static StartElement summarize(StartElement start, Map<String, Integer> counters, boolean runFailed, XMLEventFactory events) {
+            boolean summary = start.getName().getLocalPart().equals("ResultSummary");
+            List<Attribute> attributes = new ArrayList<>();
+            for (Iterator<?> it = start.getAttributes(); it.hasNext(); ) {
+                Attribute attribute = (Attribute) it.next();
+                String name = attribute.getName().getLocalPart();
+                String value;
+                if (summary) {
+                    // a run failed by the tests of other calls completed as far as this call goes
+                    value = !name.equals("outcome") ? attribute.getValue()
+                            : failed(counters) ? "Failed"
+                            : attribute.getValue().equals("Failed") && runFailed ? "Completed"
+                            : attribute.getValue();
+                } else {
+                    Integer count = counters.get(name);
+                    value = String.valueOf(count != null ? count : 0);
+                }
+                attributes.add(events.createAttribute(attribute.getName(), value));
+            }
+            return events.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+        }
+
+        private static void copy(File trx, XMLInputFactory inputs, List<XMLEventWriter> writers, List<Set<String>> callTests,
+                                 List<Map<String, Integer>> callCounters, boolean runFailed) throws IOException, XMLStreamException {
+            XMLEventFactory events = XMLEventFactory.newInstance();
+            int[] skipDepth = new int[writers.size()];
+            try (InputStream in = new BufferedInputStream(new FileInputStream(trx))) {
+                XMLEventReader reader = inputs.createXMLEventReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        XMLEvent event = reader.nextEvent();
+                        String testId = null;
+                        boolean summary = false;
+                        if (event.isStartElement()) {
+                            StartElement start = event.asStartElement();
+                            String attribute = TEST_ELEMENTS.get(start.getName().getLocalPart());
+                            if (attribute != null) {
+                                Attribute id = start.getAttributeByName(new QName(attribute));
+                                testId = id != null ? id.getValue() : null;
+                            }
+                            summary = SUMMARY_ELEMENTS.contains(start.getName().getLocalPart());
+                        }
+                        for (int i = 0; i < writers.size(); i++) {
+                            if (skipDepth[i] > 0) {
+                                if (event.isStartElement()) {
+                                    skipDepth[i]++;
+                                } else if (event.isEndElement()) {
+                                    skipDepth[i]--;
+                                }
+                                continue;
+                            }
+                            if (testId != null && !callTests.get(i).contains(testId)) {
+                                skipDepth[i] = 1;
+                                continue;
+                            }
+                            writers.get(i).add(summary ? summarize(event.asStartElement(), callCounters.get(i), runFailed, events) : event);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            for (XMLEventWriter writer : writers) {
+                writer.flush();
+                writer.close();
+            }
+        }
+
+        private static XMLInputFactory inputFactory() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The vsTest calls of a {@code vsTestBatch} block with the TRX files split off for each,
+ * and the durations of the assemblies, which order the assemblies of the next batch.
+ */
+@ExportedBean
+public class VsTestBatchAction implements Action {
+
+    private final List<CallResult> calls = new ArrayList<>();
+    private final Map<String, Integer> durations = new HashMap<>();
+
+    @Exported
+    public synchronized List<CallResult> getCalls() {
+        return Collections.unmodifiableList(new ArrayList<>(calls));
+    }
+
+    /**
+     * @return summed test durations in ms by assembly, with normalized paths relative to the workspace
+     */
+    public synchronized Map<String, Integer> getDurations() {
+        return Collections.unmodifiableMap(new HashMap<>(durations));
+    }
+
+    /* package */ synchronized void addCall(int number, String testFiles, int assemblies, List<String> trxFiles) {
+        calls.add(new CallResult(number, testFiles, assemblies, trxFiles));
+    }
+
+    /* package */ synchronized void addDurations(Map<String, Integer> more) {
+        durations.putAll(more);
+    }
+
+    public String getDisplayName() {
+        return "VSTest Batch";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * One call of the batch.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class CallResult {
+
+        private final int number;
+        private final String testFiles;
+        private final int assemblies;
+        private final List<String> trxFiles;
+
+        public CallResult(int number, String testFiles, int assemblies, List<String> trxFiles) {
+            this.number = number;
+            this.testFiles = testFiles;
+            this.assemblies = assemblies;
+            this.trxFiles = new ArrayList<>(trxFiles);
+        }
+
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        @Exported
+        public String getTestFiles() {
+            return testFiles;
+        }
+
+        @Exported
+        public int getAssemblies() {
+            return assemblies;
+        }
+
+        /**
+         * @return the TRX files of the call relative to the workspace
+         */
+        @Exported
+        public List<String> getTrxFiles() {
+            return Collections.unmodifiableList(trxFiles);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.LauncherDecorator;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.BodyInvoker;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * {@code vsTestBatch { ... }}: collects the vsTest calls of its body and runs them as
+ * one {@link VsTestBatch} when the body is done. Returns the TRX file of each call, in
+ * call order, relative to the workspace of the call.
+ * <p>
+ * The calls run in the workspaces they were made in, so the block belongs inside the
+ * {@code node} block holding them. Only calls made inside the block join it; a nested
+ * block collects its own calls.
+ */
+public class VsTestBatchStep extends Step {
+
+    @DataBoundConstructor
+    public VsTestBatchStep() {
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context);
+    }
+
+    private static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient VsTestBatch batch;
+        /** The run of the batch once the body is done. */
+        private transient volatile Future<?> task;
+
+        Execution(StepContext context) {
+            super(context);
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            batch = VsTestBatch.open();
+            getContext().newBodyInvoker()
+                    .withContext(BodyInvoker.mergeLauncherDecorators(getContext().get(LauncherDecorator.class), batch.getMarker()))
+                    .withCallback(new Callback(this, batch))
+                    .start();
+            return false;
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            if (batch != null) {
+                batch.close();
+            }
+            Future<?> running = task;
+            if (running != null) {
+                // interrupting the batch kills the vstest.console it is waiting for
+                running.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            getContext().onFailure(new AbortException("vsTestBatch cannot resume after a restart, its calls were not run"));
+        }
+    }
+
+    private static final class Callback extends BodyExecutionCallback {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Execution execution;
+        private final transient VsTestBatch batch;
+
+        Callback(Execution execution, VsTestBatch batch) {
+            this.execution = execution;
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSuccess(final StepContext context, Object result) {
+            if (batch == null) {
+                context.onFailure(new AbortException("vsTestBatch cannot resume after a restart, its calls were not run"));
+                return;
+            }
+            // the body ran on the CPS thread, which must not wait for the tests
+            execution.task = Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        List<String> trxFiles = batch.run(context.get(Run.class), context.get(TaskListener.class));
+                        context.onSuccess(trxFiles);
+                    } catch (Throwable t) {
+                        context.onFailure(t);
+                    } finally {
+                        batch.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            if (batch != null) {
+                batch.close();
+            }
+            context.onFailure(t);
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "vsTestBatch";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Run the vsTest calls of the block as one batch";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(Run.class);
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+    }
+}
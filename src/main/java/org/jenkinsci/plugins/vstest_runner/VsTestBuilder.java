@@ -1,13 +1,20 @@
 package org.jenkinsci.plugins.vstest_runner;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.AbortException;
 import hudson.EnvVars;
@@ -15,6 +22,7 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Computer;
@@ -23,6 +31,9 @@ import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.util.ArgumentListBuilder;
@@ -61,6 +72,26 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
     private boolean useVs2017Plus;
     private boolean enablecodecoverage = DescriptorImpl.defaultEnableCodeCoverage;
     private boolean failBuild = DescriptorImpl.defaultFailBuild;
+    private double durationRegressionRatio;
+    private int durationBaselineBuilds = DescriptorImpl.defaultDurationBaselineBuilds;
+    private boolean unstableOnDurationRegression;
+    private boolean quietConsole;
+    private int quietContextLines = DescriptorImpl.defaultQuietContextLines;
+    private boolean sampleResources;
+    private String coveragePolicy;
+    private int coverageInterval = DescriptorImpl.defaultCoverageInterval;
+    private boolean archiveResults;
+    private boolean resultDeltas;
+    private boolean shareRuns;
+    private boolean isolateCrashes;
+    private String stagingDirectory;
+    private boolean parallel;
+    private int maxCpuCount;
+    private int batchSize;
+    private boolean designMode;
+    private boolean planOnly;
+    private int designModeIdleMinutes = DescriptorImpl.defaultDesignModeIdleMinutes;
+    private int designModeMaxRuns = DescriptorImpl.defaultDesignModeMaxRuns;
 
     @DataBoundConstructor
     public VsTestBuilder() {
@@ -77,6 +108,21 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         if (StringUtils.isNotBlank(otherLogger)) {
             this.logger = otherLogger;
         }
+        if (durationBaselineBuilds <= 0) {
+            this.durationBaselineBuilds = DescriptorImpl.defaultDurationBaselineBuilds;
+        }
+        if (quietContextLines < 0) {
+            this.quietContextLines = DescriptorImpl.defaultQuietContextLines;
+        }
+        if (coverageInterval <= 0) {
+            this.coverageInterval = DescriptorImpl.defaultCoverageInterval;
+        }
+        if (designModeIdleMinutes <= 0) {
+            this.designModeIdleMinutes = DescriptorImpl.defaultDesignModeIdleMinutes;
+        }
+        if (designModeMaxRuns <= 0) {
+            this.designModeMaxRuns = DescriptorImpl.defaultDesignModeMaxRuns;
+        }
         return this;
     }
 
@@ -136,6 +182,97 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         return failBuild;
     }
 
+    public double getDurationRegressionRatio() {
+        return durationRegressionRatio;
+    }
+
+    public int getDurationBaselineBuilds() {
+        return durationBaselineBuilds;
+    }
+
+    public boolean isUnstableOnDurationRegression() {
+        return unstableOnDurationRegression;
+    }
+
+    public boolean isQuietConsole() {
+        return quietConsole;
+    }
+
+    public int getQuietContextLines() {
+        return quietContextLines;
+    }
+
+    public boolean isSampleResources() {
+        return sampleResources;
+    }
+
+    public boolean isResultDeltas() {
+        return resultDeltas;
+    }
+
+    public boolean isShareRuns() {
+        return shareRuns;
+    }
+
+    public boolean isIsolateCrashes() {
+        return isolateCrashes;
+    }
+
+    public String getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    public String getCoveragePolicy() {
+        return getCoveragePolicyValue().name();
+    }
+
+    @NonNull
+    private VsTestCoveragePolicy getCoveragePolicyValue() {
+        if (coveragePolicy != null) {
+            try {
+                return VsTestCoveragePolicy.valueOf(coveragePolicy);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return VsTestCoveragePolicy.ALWAYS;
+    }
+
+    public int getCoverageInterval() {
+        return coverageInterval;
+    }
+
+    public boolean isArchiveResults() {
+        return archiveResults;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public int getMaxCpuCount() {
+        return maxCpuCount;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isDesignMode() {
+        return designMode;
+    }
+
+    public boolean isPlanOnly() {
+        return planOnly;
+    }
+
+    public int getDesignModeIdleMinutes() {
+        return designModeIdleMinutes;
+    }
+
+    public int getDesignModeMaxRuns() {
+        return designModeMaxRuns;
+    }
+
     @DataBoundSetter
     public void setVsTestName(String vsTestName) {
         this.vsTestName = Util.fixEmptyAndTrim(vsTestName);
@@ -209,6 +346,106 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         this.failBuild = failBuild;
     }
 
+    @DataBoundSetter
+    public void setDurationRegressionRatio(double durationRegressionRatio) {
+        this.durationRegressionRatio = durationRegressionRatio > 1 ? durationRegressionRatio : 0;
+    }
+
+    @DataBoundSetter
+    public void setDurationBaselineBuilds(int durationBaselineBuilds) {
+        this.durationBaselineBuilds = durationBaselineBuilds > 0 ? durationBaselineBuilds : DescriptorImpl.defaultDurationBaselineBuilds;
+    }
+
+    @DataBoundSetter
+    public void setUnstableOnDurationRegression(boolean unstableOnDurationRegression) {
+        this.unstableOnDurationRegression = unstableOnDurationRegression;
+    }
+
+    @DataBoundSetter
+    public void setQuietConsole(boolean quietConsole) {
+        this.quietConsole = quietConsole;
+    }
+
+    @DataBoundSetter
+    public void setQuietContextLines(int quietContextLines) {
+        this.quietContextLines = Math.max(0, quietContextLines);
+    }
+
+    @DataBoundSetter
+    public void setResultDeltas(boolean resultDeltas) {
+        this.resultDeltas = resultDeltas;
+    }
+
+    @DataBoundSetter
+    public void setShareRuns(boolean shareRuns) {
+        this.shareRuns = shareRuns;
+    }
+
+    @DataBoundSetter
+    public void setIsolateCrashes(boolean isolateCrashes) {
+        this.isolateCrashes = isolateCrashes;
+    }
+
+    @DataBoundSetter
+    public void setStagingDirectory(String stagingDirectory) {
+        this.stagingDirectory = Util.fixEmptyAndTrim(stagingDirectory);
+    }
+
+    @DataBoundSetter
+    public void setSampleResources(boolean sampleResources) {
+        this.sampleResources = sampleResources;
+    }
+
+    @DataBoundSetter
+    public void setCoveragePolicy(String coveragePolicy) {
+        this.coveragePolicy = Util.fixEmptyAndTrim(coveragePolicy);
+    }
+
+    @DataBoundSetter
+    public void setArchiveResults(boolean archiveResults) {
+        this.archiveResults = archiveResults;
+    }
+
+    @DataBoundSetter
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    @DataBoundSetter
+    public void setMaxCpuCount(int maxCpuCount) {
+        this.maxCpuCount = Math.max(0, maxCpuCount);
+    }
+
+    @DataBoundSetter
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(0, batchSize);
+    }
+
+    @DataBoundSetter
+    public void setDesignMode(boolean designMode) {
+        this.designMode = designMode;
+    }
+
+    @DataBoundSetter
+    public void setPlanOnly(boolean planOnly) {
+        this.planOnly = planOnly;
+    }
+
+    @DataBoundSetter
+    public void setDesignModeIdleMinutes(int designModeIdleMinutes) {
+        this.designModeIdleMinutes = designModeIdleMinutes > 0 ? designModeIdleMinutes : DescriptorImpl.defaultDesignModeIdleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setDesignModeMaxRuns(int designModeMaxRuns) {
+        this.designModeMaxRuns = designModeMaxRuns > 0 ? designModeMaxRuns : DescriptorImpl.defaultDesignModeMaxRuns;
+    }
+
+    @DataBoundSetter
+    public void setCoverageInterval(int coverageInterval) {
+        this.coverageInterval = coverageInterval > 0 ? coverageInterval : DescriptorImpl.defaultCoverageInterval;
+    }
+
     @NonNull
     public VsTestInstallation getVsTest(TaskListener listener) {
         if (vsTestName == null) return VsTestInstallation.getDefaultInstallation();
@@ -236,6 +473,12 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         public static final boolean defaultFailBuild = true;
         public static final boolean defaultEnableCodeCoverage = true;
         public static final String defaultLogger = VsTestLogger.TRX.toString();
+        public static final int defaultDurationBaselineBuilds = 10;
+        public static final int defaultQuietContextLines = 20;
+        public static final int defaultCoverageInterval = 5;
+        public static final String defaultCoveragePolicy = VsTestCoveragePolicy.ALWAYS.name();
+        public static final int defaultDesignModeIdleMinutes = 10;
+        public static final int defaultDesignModeMaxRuns = 50;
 
         public DescriptorImpl() {
             super(VsTestBuilder.class);
@@ -275,6 +518,15 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
             return r;
         }
 
+        @SuppressWarnings("unused") // Used by Stapler
+        public ListBoxModel doFillCoveragePolicyItems() {
+            ListBoxModel r = new ListBoxModel();
+            for (VsTestCoveragePolicy policy : VsTestCoveragePolicy.values()) {
+                r.add(policy.toString(), policy.name());
+            }
+            return r;
+        }
+
         @SuppressWarnings("unused") // Used by Stapler
         public ComboBoxModel doFillPlatformItems() {
             return fillComboBox(VsTestPlatform.class);
@@ -304,29 +556,121 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
      */
     @Override
     public void perform(@NonNull Run<?, ?> run, @NonNull FilePath workspace, @NonNull Launcher launcher, @NonNull TaskListener listener) throws InterruptedException, IOException {
-        ArrayList<String> args = new ArrayList<>();
-
+        long stepStart = System.currentTimeMillis();
         EnvVars env = run.getEnvironment(listener);
 
-        // VsTest.console.exe path.
-        String pathToVsTest = getVsTestPath(workspaceToNode(workspace), listener, env);
-        args.add(pathToVsTest);
-
         // Target dll path
+        List<String> assemblies = new ArrayList<>();
         if (!StringUtils.isBlank(testFiles)) {
-            List<String> targets = getTestFilesArguments(workspace, env);
-            if (targets.size() == 0) {
+            assemblies = resolveTestFiles(workspace, env);
+            if (assemblies.size() == 0) {
                 listener.getLogger().println("no files matching the pattern " + this.testFiles);
                 if (this.failBuild) {
                     run.setResult(Result.FAILURE);
                     throw new AbortException("no files matching the pattern " + this.testFiles);
                 }
             }
-            args.addAll(targets);
+        }
+
+        // Inside a vsTestBatch block the batch runs the tests once the block is done.
+        VsTestBatch batch = VsTestBatch.collecting(launcher);
+        if (batch != null && !planOnly) {
+            int call = batch.add(this, workspace, launcher, assemblies);
+            listener.getLogger().println("Queued " + assemblies.size() + " test assembly(ies) as call #" + call + " of the vsTest batch");
+            return;
+        }
+
+        // VSTest run, with its results processed in the background.
+        VsTestPostProcessor post = new VsTestPostProcessor(listener);
+        try {
+            execute(run, workspace, launcher, listener, env, stepStart, assemblies, parallel, post, null);
+            post.join();
+        } finally {
+            post.close();
+        }
+    }
+
+    /**
+     * Runs the assemblies of the calls of a {@link VsTestBatch} group with the options of this step.
+     *
+     * @param run
+     * @param workspace
+     * @param launcher
+     * @param listener
+     * @param assemblies de-duplicated test assemblies of the group, relative to the workspace
+     * @param post post-processing shared by the groups of the batch, joined by the batch
+     * @param group
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    /* package */ void performBatch(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+                                    List<String> assemblies, VsTestPostProcessor post, VsTestBatch.Group group) throws InterruptedException, IOException {
+        long stepStart = System.currentTimeMillis();
+        execute(run, workspace, launcher, listener, run.getEnvironment(listener), stepStart, assemblies, true, post, group);
+    }
+
+    /**
+     * @param run
+     * @param workspace
+     * @param launcher
+     * @param listener
+     * @param env
+     * @param stepStart
+     * @param assemblies test assemblies relative to the workspace
+     * @param parallel whether to run the assemblies in parallel, which batches always do
+     * @param post receives the results of the runs, joined by the caller
+     * @param group the batch group whose calls the results are split among, or null
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void execute(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars env,
+                         long stepStart, List<String> assemblies, boolean parallel, VsTestPostProcessor post,
+                         @CheckForNull VsTestBatch.Group group) throws InterruptedException, IOException {
+        ArrayList<String> args = new ArrayList<>();
+
+        // VsTest.console.exe path.
+        String pathToVsTest = getVsTestPath(workspaceToNode(workspace), listener, env);
+        args.add(pathToVsTest);
+
+        for (String assembly : assemblies) {
+            args.add(appendQuote(assembly));
+        }
+
+        boolean useDesignMode = false;
+        if (designMode) {
+            String reason = getDesignModeFallbackReason(assemblies, env, launcher);
+            if (reason != null) {
+                listener.getLogger().println("Not using a warm vstest.console: " + reason);
+            } else {
+                useDesignMode = true;
+            }
         }
 
         // Run tests with additional settings such as data collectors.
-        if (!StringUtils.isBlank(settings)) {
+        FilePath generatedSettings = null;
+        VsTestParallelismAction parallelism = null;
+        VsTestRunSettings runSettings = null;
+        FilePath userSettings = StringUtils.isBlank(settings) ? null : workspace.child(replaceMacro(settings, env));
+        if (parallel || useDesignMode) {
+            runSettings = VsTestRunSettings.parse(userSettings != null ? readSettings(userSettings) : null);
+        }
+        if (parallel) {
+            parallelism = tuneParallelism(runSettings, launcher);
+            listener.getLogger().println("Parallel run: MaxCpuCount " + parallelism.getMaxCpuCount()
+                    + (parallelism.getBatchSize() != null ? ", BatchSize " + parallelism.getBatchSize() : "")
+                    + " on " + parallelism.getCores() + " processor(s)");
+        }
+        if (parallel && !useDesignMode) {
+            args.add("/Parallel");
+            // next to the user's file, so that paths relative to it still resolve
+            FilePath dir = userSettings != null && userSettings.getParent() != null ? userSettings.getParent() : workspace;
+            if (planOnly) {
+                args.add(convertArgumentWithQuote("Settings", dir.child("vstest-generated.runsettings").getRemote()));
+            } else {
+                generatedSettings = dir.createTextTempFile("vstest", ".runsettings", runSettings.toString(), false);
+                args.add(convertArgumentWithQuote("Settings", generatedSettings.getRemote()));
+            }
+        } else if (userSettings != null) {
             args.add(convertArgumentWithQuote("Settings", replaceMacro(settings, env)));
         }
 
@@ -341,8 +685,12 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         }
 
         // Enables data diagnostic adapter CodeCoverage in the test run.
-        if (enablecodecoverage) {
+        boolean coverage = enablecodecoverage && collectCoverage(run, workspace, assemblies, !planOnly, listener);
+        if (coverage) {
             args.add("/Enablecodecoverage");
+            if (useDesignMode) {
+                runSettings.addCodeCoverage();
+            }
         }
 
         // Runs the tests in an isolated process.
@@ -363,12 +711,18 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         String platformArg = getPlatformArgument(env);
         if (!StringUtils.isBlank(platformArg)) {
             args.add(convertArgument("Platform", platformArg));
+            if (useDesignMode) {
+                runSettings.set(VsTestRunSettings.TARGET_PLATFORM, platformArg, true);
+            }
         }
 
         // Target .NET Framework version to be used for test execution.
         String frameworkArg = getFrameworkArgument(env);
         if (!StringUtils.isBlank(frameworkArg)) {
             args.add(convertArgument("Framework", frameworkArg));
+            if (useDesignMode) {
+                runSettings.set(VsTestRunSettings.TARGET_FRAMEWORK_VERSION, frameworkArg, true);
+            }
         }
 
         // Specify a logger for test results.
@@ -382,80 +736,389 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
             args.add(replaceMacro(cmdLineArgs, env));
         }
 
-        // VSTest run.
-        execVsTest(args, run, workspace, launcher, listener, env);
+        if (planOnly) {
+            String mode = useDesignMode ? "design mode" : parallel ? "parallel" : "vstest.console";
+            planVsTest(run, workspace, listener, pathToVsTest, mode, assemblies, args,
+                    runSettings != null ? runSettings.toString() : null, coverage, parallelism);
+            return;
+        }
+
+        // Share the run with concurrent builds of the same assemblies.
+        VsTestRunCoordinator.Ticket ticket = null;
+        if (shareRuns && !useDesignMode && !isolateCrashes) {
+            String settingsContent = generatedSettings != null ? runSettings.toString()
+                    : userSettings != null ? readSettings(userSettings) : "";
+            ticket = VsTestRunCoordinator.enter(sharedRunKey(workspace, assemblies, args, settingsContent), run.getFullDisplayName());
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            if (ticket == null || ticket.isLeader() || !reuseSharedRun(ticket, run, workspace, listener, post, group)) {
+                VsTestStager.Staged staged = stageAssemblies(workspace, assemblies, env, listener);
+                List<String> runAssemblies = assemblies;
+                if (staged != null) {
+                    runAssemblies = staged.getAssemblies();
+                    for (int i = 0; i < runAssemblies.size(); i++) {
+                        args.set(1 + i, appendQuote(runAssemblies.get(i)));
+                    }
+                }
+                long launch = System.currentTimeMillis();
+                VsTestMetrics.LAUNCH_OVERHEAD.observe(launch - stepStart);
+                VsTestMetrics.RUNS.increment();
+                if (useDesignMode) {
+                    String filter = StringUtils.isBlank(testCaseFilter) ? null : replaceMacro(testCaseFilter, env);
+                    execDesignMode(pathToVsTest, runAssemblies, runSettings, filter, run, workspace, launcher, listener, env, post, group);
+                } else {
+                    execVsTest(args, assemblies, run, workspace, launcher, listener, env, ticket, staged, post, group);
+                }
+                VsTestMetrics.RUN_DURATION.observe(System.currentTimeMillis() - launch);
+            }
+            if (parallelism != null) {
+                parallelism.setDurationMillis(System.currentTimeMillis() - start);
+            }
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+            if (parallelism != null) {
+                run.addAction(parallelism);
+            }
+            if (generatedSettings != null) {
+                try {
+                    generatedSettings.delete();
+                } catch (IOException e) {
+                    Util.displayIOException(e, listener);
+                    e.printStackTrace(listener.fatalError("temporary file delete failed"));
+                }
+            }
+        }
     }
 
     /**
-     * @param value
-     * @param env
-     * @return
+     * @param workspace
+     * @param assemblies
+     * @param args full command line
+     * @param settingsContent content of the run settings file passed to vstest.console
+     * @return the key of this run for {@link VsTestRunCoordinator}
+     * @throws IOException
+     * @throws InterruptedException
      */
-    private String replaceMacro(String value, EnvVars env) {
-        return Util.replaceMacro(value, env);
+    private String sharedRunKey(FilePath workspace, List<String> assemblies, List<String> args, String settingsContent) throws IOException, InterruptedException {
+        List<String> arguments = new ArrayList<>();
+        // the assemblies follow the executable and are keyed by content, the settings file by its content
+        for (String arg : args.subList(1 + assemblies.size(), args.size())) {
+            if (!arg.startsWith("/Settings:")) {
+                arguments.add(arg.replace(workspace.getRemote(), "${WORKSPACE}"));
+            }
+        }
+        arguments.add(args.get(0));
+        arguments.add(settingsContent.replace(workspace.getRemote(), "${WORKSPACE}"));
+        return VsTestRunCoordinator.key(workspace, assemblies, arguments);
     }
 
     /**
-     * @param builtOn
-     * @param listener
+     * Copies the folders of the test assemblies to the staging directory of the node, if one is configured.
+     *
+     * @param workspace
+     * @param assemblies
      * @param env
-     * @return
+     * @param listener
+     * @return the staged assemblies, or null to run the tests from the workspace
      * @throws InterruptedException
-     * @throws IOException
      */
-    @NonNull
-    private String getVsTestPath(Node builtOn, TaskListener listener, EnvVars env) {
-        VsTestInstallation installation = getVsTest(listener);
-        if (builtOn != null) {
-            try {
-                installation = installation.forNode(builtOn, listener);
-            } catch (IOException | InterruptedException e) {
-                listener.getLogger().println("Failed to get VSTest.Console executable");
-            }
+    @CheckForNull
+    private VsTestStager.Staged stageAssemblies(FilePath workspace, List<String> assemblies, EnvVars env, TaskListener listener) throws InterruptedException {
+        if (stagingDirectory == null || assemblies.isEmpty()) {
+            return null;
         }
-        if (env != null) {
-            installation = installation.forEnvironment(env);
+        try {
+            VsTestStager.Staged staged = workspace.act(new VsTestStager(replaceMacro(stagingDirectory, env), assemblies));
+            listener.getLogger().println(staged);
+            return staged;
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.error("Failed to stage the test assemblies, running them from the workspace"));
+            return null;
         }
-
-        String vsTestExe = installation.getVsTestExe();
-
-        listener.getLogger().println("Path To VSTest.console.exe: " + vsTestExe);
-
-        return vsTestExe;
     }
 
     /**
+     * Waits for an identical run of another build and records its results as the results of this step.
+     *
+     * @param ticket
+     * @param run
      * @param workspace
-     * @param env
-     * @return
+     * @param listener
+     * @param post
+     * @return false if the other build did not finish its run and the tests have to be run here
      * @throws InterruptedException
      * @throws IOException
      */
-    /* package */ List<String> getTestFilesArguments(FilePath workspace, EnvVars env) throws InterruptedException {
-        Set<String> files = new HashSet<>();
-
-        StringTokenizer testFilesTokenizer = new StringTokenizer(testFiles, " \t\r\n");
-
-        while (testFilesTokenizer.hasMoreTokens()) {
-            String testFile = testFilesTokenizer.nextToken();
-            testFile = replaceMacro(testFile, env);
-
-            if (!StringUtils.isBlank(testFile)) {
-                try {
-                    for (FilePath filePath : workspace.list(testFile)) {
-                        files.add(appendQuote(relativize(workspace, filePath)));
-                    }
-                } catch (IOException ignored) {
-                }
-            }
+    private boolean reuseSharedRun(VsTestRunCoordinator.Ticket ticket, Run<?, ?> run, FilePath workspace, TaskListener listener,
+                                   VsTestPostProcessor post, @CheckForNull VsTestBatch.Group group) throws InterruptedException, IOException {
+        listener.getLogger().println("Waiting for the identical test run of " + ticket.getLeader());
+        long start = System.currentTimeMillis();
+        VsTestRunCoordinator.Shared shared = ticket.await();
+        VsTestMetrics.WAIT.observe(System.currentTimeMillis() - start);
+        if (shared == null) {
+            listener.getLogger().println(ticket.getLeader() + " did not finish its test run, running the tests here");
+            return false;
+        }
+        listener.getLogger().println("Reusing the test results of " + shared.getLeader() + ", VsTest.Console exited with " + shared.getExitCode());
+        Map<File, String> copies;
+        try {
+            copies = shared.copyTo(workspace.child("TestResults").child("shared-" + UUID.randomUUID()));
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.error("Failed to copy the test results of " + shared.getLeader() + ", running the tests here"));
+            return false;
         }
+        VsTestMetrics.SHARED_RUNS.increment();
+        postProcess(post, run, workspace, listener, copied(shared.getTrxFiles(), copies), copied(shared.getCoverageFiles(), copies),
+                copied(shared.getAttachments(), copies), shared.getExitCode(), null, group);
+        return true;
+    }
 
-        return new ArrayList<>(files);
+    private static List<String> copied(List<File> files, Map<File, String> copies) {
+        List<String> paths = new ArrayList<>(files.size());
+        for (File file : files) {
+            paths.add(copies.get(file));
+        }
+        return paths;
     }
 
     /**
-     * @param env
-     * @return
+     * Records what the step would run, with a runtime estimate from earlier builds, instead of running it.
+     *
+     * @param run
+     * @param workspace
+     * @param listener
+     * @param vsTestExe
+     * @param mode
+     * @param assemblies
+     * @param args
+     * @param runSettings
+     * @param coverage
+     * @param parallelism
+     * @throws IOException
+     */
+    private void planVsTest(Run<?, ?> run, FilePath workspace, TaskListener listener, String vsTestExe, String mode,
+                            List<String> assemblies, List<String> args, String runSettings, boolean coverage,
+                            VsTestParallelismAction parallelism) throws IOException {
+        VsTestDurationBaseline baseline = VsTestDurationBaseline.of(run.getParent(), run.getNumber(), durationBaselineBuilds);
+        long estimate = -1;
+        if (!baseline.isEmpty()) {
+            int workers = 1;
+            if (parallelism != null) {
+                try {
+                    workers = Math.max(1, Integer.parseInt(parallelism.getMaxCpuCount()));
+                } catch (NumberFormatException ignored) {
+                    workers = parallelism.getCores();
+                }
+            }
+            estimate = baseline.estimateMillis() / workers;
+        }
+
+        VsTestPlanAction.add(run, new VsTestPlanAction.Step(workspaceToNode(workspace).getDisplayName(), vsTestExe, mode,
+                assemblies, args, runSettings, coverage, baseline.getTestCount(), estimate));
+        listener.getLogger().println("Plan only, not running VSTest: " + concatString(args));
+        if (estimate >= 0) {
+            listener.getLogger().println("Estimated run time: " + Util.getTimeSpanString(estimate) + " for " + baseline.getTestCount() + " test(s)");
+        }
+    }
+
+    /**
+     * @param userSettings
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private String readSettings(FilePath userSettings) throws IOException, InterruptedException {
+        if (!userSettings.exists()) {
+            throw new AbortException("Settings file " + userSettings.getRemote() + " does not exist");
+        }
+        return userSettings.readToString();
+    }
+
+    /**
+     * @param assemblies
+     * @param env
+     * @param launcher
+     * @return why this step cannot run on a warm vstest.console, or null if it can
+     */
+    private String getDesignModeFallbackReason(List<String> assemblies, EnvVars env, Launcher launcher) {
+        if (launcher.getChannel() == null) {
+            return "the node is offline";
+        }
+        if (assemblies.isEmpty()) {
+            return "no test files are given";
+        }
+        if (!StringUtils.isBlank(tests)) {
+            return "test names cannot be selected, use a test case filter instead";
+        }
+        if (!StringUtils.isBlank(cmdLineArgs)) {
+            return "command line arguments cannot be passed";
+        }
+        if (inIsolation) {
+            return "tests always run in a separate test host";
+        }
+        String loggerArg = getLoggerArgument(env);
+        if (!StringUtils.isBlank(loggerArg) && !VsTestLogger.TRX.toString().equalsIgnoreCase(loggerArg)) {
+            return "only the trx logger is supported";
+        }
+        return null;
+    }
+
+    /**
+     * Sets the worker count and batch size of a parallel run. An explicit
+     * {@link #getMaxCpuCount()} wins over the settings file, which wins over the
+     * processor count of the node.
+     *
+     * @param runSettings
+     * @param launcher
+     * @return the values in effect
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private VsTestParallelismAction tuneParallelism(VsTestRunSettings runSettings, Launcher launcher) throws IOException, InterruptedException {
+        VirtualChannel channel = launcher.getChannel();
+        int cores = channel != null ? channel.call(new VsTestRunSettings.ProcessorCounter()) : Runtime.getRuntime().availableProcessors();
+
+        String cpus = runSettings.set(VsTestRunSettings.MAX_CPU_COUNT,
+                String.valueOf(maxCpuCount > 0 ? maxCpuCount : cores), maxCpuCount > 0);
+        String batch = batchSize > 0
+                ? runSettings.set(VsTestRunSettings.BATCH_SIZE, String.valueOf(batchSize), true)
+                : runSettings.get(VsTestRunSettings.BATCH_SIZE);
+        return new VsTestParallelismAction(cores, cpus, batch);
+    }
+
+    /**
+     * @param value
+     * @param env
+     * @return
+     */
+    private String replaceMacro(String value, EnvVars env) {
+        return Util.replaceMacro(value, env);
+    }
+
+    /**
+     * @param builtOn
+     * @param listener
+     * @param env
+     * @return
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @NonNull
+    private String getVsTestPath(Node builtOn, TaskListener listener, EnvVars env) {
+        VsTestInstallation installation = getVsTest(listener);
+        if (builtOn != null) {
+            try {
+                installation = installation.forNode(builtOn, listener);
+            } catch (IOException | InterruptedException e) {
+                listener.getLogger().println("Failed to get VSTest.Console executable");
+            }
+        }
+        if (env != null) {
+            installation = installation.forEnvironment(env);
+        }
+
+        String vsTestExe = installation.getVsTestExe();
+
+        listener.getLogger().println("Path To VSTest.console.exe: " + vsTestExe);
+
+        return vsTestExe;
+    }
+
+    /**
+     * @param workspace
+     * @param env
+     * @return
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    /* package */ List<String> getTestFilesArguments(FilePath workspace, EnvVars env) throws InterruptedException {
+        List<String> arguments = new ArrayList<>();
+        for (String file : resolveTestFiles(workspace, env)) {
+            arguments.add(appendQuote(file));
+        }
+        return arguments;
+    }
+
+    /**
+     * @param workspace
+     * @param env
+     * @return the test files matching {@link #getTestFiles()}, relative to the workspace
+     * @throws InterruptedException
+     */
+    /* package */ List<String> resolveTestFiles(FilePath workspace, EnvVars env) throws InterruptedException {
+        Set<String> files = new HashSet<>();
+
+        StringTokenizer testFilesTokenizer = new StringTokenizer(testFiles, " \t\r\n");
+
+        while (testFilesTokenizer.hasMoreTokens()) {
+            String testFile = testFilesTokenizer.nextToken();
+            testFile = replaceMacro(testFile, env);
+
+            if (!StringUtils.isBlank(testFile)) {
+                try {
+                    for (FilePath filePath : workspace.list(testFile)) {
+                        files.add(relativize(workspace, filePath));
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Applies the coverage policy and records the decision on the build.
+     *
+     * @param run
+     * @param workspace
+     * @param assemblies test assemblies relative to the workspace
+     * @param record false to only compute the decision
+     * @param listener
+     * @return true if this run should collect code coverage
+     * @throws InterruptedException
+     */
+    private boolean collectCoverage(Run<?, ?> run, FilePath workspace, List<String> assemblies, boolean record, TaskListener listener) throws InterruptedException {
+        VsTestCoveragePolicy policy = getCoveragePolicyValue();
+        if (policy == VsTestCoveragePolicy.ALWAYS) {
+            return true;
+        }
+
+        Run<?, ?> lastCovered = VsTestCoverageAction.findLastCovered(run);
+        Map<String, String> digests = Collections.emptyMap();
+        if (policy == VsTestCoveragePolicy.CHANGED_ASSEMBLIES && !assemblies.isEmpty()) {
+            try {
+                digests = workspace.act(new VsTestCoverageAction.AssemblyDigester(assemblies));
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to compute test assembly digests, collecting coverage"));
+                lastCovered = null;
+            }
+        }
+
+        Map<String, String> previous = lastCovered != null
+                ? lastCovered.getAction(VsTestCoverageAction.class).getAssemblyDigests()
+                : Collections.<String, String>emptyMap();
+        boolean cover = policy.shouldCover(run.getNumber(), lastCovered != null ? lastCovered.getNumber() : null,
+                coverageInterval, digests, previous);
+
+        if (!cover) {
+            listener.getLogger().println("Skipping code coverage (policy: " + policy + "), latest coverage is in " + lastCovered.getFullDisplayName());
+        }
+        if (record) {
+            VsTestCoverageAction.record(run, cover, lastCovered, digests);
+        }
+        return cover;
+    }
+
+    /**
+     * @param env
+     * @return
      */
     private String getPlatformArgument(EnvVars env) {
         return replaceMacro(platform, env);
@@ -489,18 +1152,80 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         return base.toURI().relativize(path.toURI()).getPath();
     }
 
+    /**
+     * @param base
+     * @param paths paths as printed by vstest.console, absolute or relative to {@code base}
+     * @return the paths relative to {@code base}
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    /* package */ List<String> relativizeAll(FilePath base, List<String> paths) throws InterruptedException, IOException {
+        List<String> relative = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            relative.add(relativize(base, base.child(path)));
+        }
+        return relative;
+    }
+
     /**
      * @param args
+     * @param assemblies test assemblies relative to the workspace, in the order of {@code args}
      * @param run
      * @param workspace
      * @param launcher
      * @param listener
      * @param env
-     * @return
+     * @param ticket
+     * @param staged
+     * @param post
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void execVsTest(List<String> args, List<String> assemblies, Run<?, ?> run, FilePath workspace, Launcher launcher,
+                            TaskListener listener, EnvVars env, @CheckForNull VsTestRunCoordinator.Ticket ticket,
+                            @CheckForNull VsTestStager.Staged staged, VsTestPostProcessor post,
+                            @CheckForNull VsTestBatch.Group group) throws InterruptedException, IOException {
+        try {
+            Launched launched = launchVsTest(args, run, workspace, launcher, listener, env, true);
+            if (isolateCrashes && launched.isCrashed() && assemblies.size() > 1) {
+                isolateCrashes(args, assemblies, launched, run, workspace, launcher, listener, env, staged, post, group);
+                return;
+            }
+            List<String> trxFiles = unstage(staged, launched.trxFiles, workspace);
+            List<String> coverageFiles = unstage(staged, launched.coverageFiles, workspace);
+            List<String> attachments = unstage(staged, launched.attachments, workspace);
+            if (ticket != null && ticket.isLeader()) {
+                try {
+                    ticket.finish(run.getRootDir(), workspace, trxFiles, coverageFiles, attachments, launched.r);
+                } catch (IOException e) {
+                    Util.displayIOException(e, listener);
+                    e.printStackTrace(listener.error("Failed to share the test results with other builds"));
+                }
+            }
+            postProcess(post, run, workspace, listener, trxFiles, coverageFiles, attachments, launched.r, "VSTest command execution failed", group);
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("VSTest command execution failed"));
+        }
+    }
+
+    /**
+     * Runs vstest.console once.
+     *
+     * @param args
+     * @param run
+     * @param workspace
+     * @param launcher
+     * @param listener
+     * @param env
+     * @param indexConsole whether to index the console output of the tests, which runs
+     *                     sharing the log at the same time must not do
+     * @return the finished run
      * @throws InterruptedException
      * @throws IOException
      */
-    private void execVsTest(List<String> args, Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars env) throws InterruptedException, IOException {
+    private Launched launchVsTest(List<String> args, Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+                                  EnvVars env, boolean indexConsole) throws InterruptedException, IOException {
         ArgumentListBuilder cmdExecArgs = new ArgumentListBuilder();
         FilePath tmpDir = null;
 
@@ -516,34 +1241,44 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         listener.getLogger().println("Executing VSTest: " + cmdExecArgs.toStringWithQuote());
 
         try {
-            VsTestListenerDecorator parserListener = new VsTestListenerDecorator(listener);
-            int r = launcher.launch().cmds(cmdExecArgs).envs(env).stdout(parserListener).pwd(workspace).join();
-
-            String trxFullPath = parserListener.getTrxFile();
-            String trxPathRelativeToWorkspace = null;
-            String coverageFullPath = parserListener.getCoverageFile();
-            String coveragePathRelativeToWorkspace = null;
-
-            if (trxFullPath != null) {
-                trxPathRelativeToWorkspace = relativize(workspace, workspace.child(trxFullPath));
+            VsTestListenerDecorator parserListener = new VsTestListenerDecorator(listener, quietConsole, quietContextLines);
+            if (indexConsole) {
+                recordConsoleSegments(run, parserListener);
             }
-            if (coverageFullPath != null) {
-                coveragePathRelativeToWorkspace = relativize(workspace, workspace.child(parserListener.getCoverageFile()));
+            EnvVars procEnv = env;
+            VsTestResourceSampler sampler = null;
+            if (sampleResources && launcher.getChannel() != null) {
+                procEnv = new EnvVars(env);
+                String cookie = UUID.randomUUID().toString();
+                procEnv.put(VsTestResourceSampler.COOKIE_ENV, cookie);
+                sampler = VsTestResourceSampler.start(launcher.getChannel(), cookie);
             }
 
-            run.addAction(new AddVsTestEnvVarsAction(trxPathRelativeToWorkspace, coveragePathRelativeToWorkspace));
+            int r;
+            try {
+                Proc proc = launcher.launch().cmds(cmdExecArgs).envs(procEnv).stdout(parserListener).pwd(workspace).start();
+                r = proc.join();
+            } finally {
+                parserListener.close();
+                if (sampler != null) {
+                    VsTestResourceUsageAction usage = sampler.stop();
+                    if (usage != null) {
+                        run.addAction(usage);
+                    }
+                }
+            }
 
             if (r != 0) {
-                if (failBuild) {
-                    run.setResult(Result.FAILURE);
-                    throw new AbortException("VsTest.Console exited with " + r);
-                } else {
-                    run.setResult(Result.UNSTABLE);
-                }
+                VsTestMetrics.FAILED_RUNS.increment();
             }
-        } catch (IOException e) {
-            Util.displayIOException(e, listener);
-            e.printStackTrace(listener.fatalError("VSTest command execution failed"));
+            if (indexConsole) {
+                indexConsole(run, listener, parserListener);
+            }
+            if (parserListener.getSuppressedLines() > 0) {
+                listener.getLogger().println("Quiet console: " + parserListener.getSuppressedLines() + " line(s) of passing tests not shown");
+            }
+            return new Launched(r, r != 0 && parserListener.isTestHostCrashed(), parserListener.getTrxFiles(),
+                    parserListener.getCoverageFiles(), parserListener.getAttachments());
         } finally {
             try {
                 if (tmpDir != null) {
@@ -556,6 +1291,406 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         }
     }
 
+    /**
+     * Bisects the assemblies of a run that crashed the test host with {@link VsTestCrashIsolator},
+     * records the results of the runs that did not crash in place of the crashed run and
+     * reports the crashing assemblies in a {@link VsTestCrashIsolationAction}.
+     *
+     * @param args command line of the crashed run
+     * @param assemblies test assemblies relative to the workspace, in the order of {@code args}
+     * @param crashed
+     * @param run
+     * @param workspace
+     * @param launcher
+     * @param listener
+     * @param env
+     * @param staged
+     * @param post receives each run to keep as soon as it finishes
+     * @param group
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void isolateCrashes(final List<String> args, List<String> assemblies, Launched crashed, final Run<?, ?> run,
+                                final FilePath workspace, final Launcher launcher, final TaskListener listener, final EnvVars env,
+                                @CheckForNull final VsTestStager.Staged staged, final VsTestPostProcessor post,
+                                @CheckForNull final VsTestBatch.Group group) throws InterruptedException, IOException {
+        long start = System.currentTimeMillis();
+        listener.getLogger().println("The test host crashed, isolating the crashing assemblies among " + assemblies.size());
+
+        // the assemblies may run from the staging directory
+        final Map<String, String> assemblyArgs = new HashMap<>();
+        for (int i = 0; i < assemblies.size(); i++) {
+            assemblyArgs.put(assemblies.get(i), args.get(1 + i));
+        }
+        final List<String> options = new ArrayList<>(args.subList(1 + assemblies.size(), args.size()));
+        final boolean ownResultsDirectory = StringUtils.isBlank(cmdLineArgs) || !StringUtils.containsIgnoreCase(cmdLineArgs, "/ResultsDirectory");
+        if (!ownResultsDirectory) {
+            listener.getLogger().println("The isolation runs share the results directory set in the command line arguments");
+        }
+        final AtomicInteger number = new AtomicInteger();
+
+        VsTestCrashIsolator<Launched> isolator = new VsTestCrashIsolator<>(new VsTestCrashIsolator.Runner<Launched>() {
+            public Launched run(List<String> subset) throws IOException, InterruptedException {
+                int n = number.incrementAndGet();
+                List<String> subsetArgs = new ArrayList<>();
+                subsetArgs.add(args.get(0));
+                for (String assembly : subset) {
+                    subsetArgs.add(assemblyArgs.get(assembly));
+                }
+                subsetArgs.addAll(options);
+                if (ownResultsDirectory) {
+                    // runs at the same time would otherwise race for the same TRX file names
+                    FilePath resultsDirectory = workspace.child("TestResults").child("crash-isolation-" + n);
+                    subsetArgs.add(convertArgumentWithQuote("ResultsDirectory", resultsDirectory.getRemote()));
+                }
+                listener.getLogger().println("Crash isolation run #" + n + ": " + StringUtils.join(subset, ", "));
+                VsTestMetrics.RUNS.increment();
+                Launched launched = launchVsTest(subsetArgs, run, workspace, launcher, listener, env, false);
+                if (!launched.isCrashed() || subset.size() == 1) {
+                    // kept whatever the other runs find, so its results are recorded while they go on
+                    postProcess(post, run, workspace, listener, unstage(staged, launched.trxFiles, workspace),
+                            unstage(staged, launched.coverageFiles, workspace), unstage(staged, launched.attachments, workspace),
+                            launched.r, "VSTest command execution failed", group);
+                }
+                return launched;
+            }
+        }, Computer.threadPoolForRemoting);
+        VsTestCrashIsolator.Outcome<Launched> outcome = isolator.isolate(assemblies, crashed);
+
+        List<String> crashing = outcome.getCrashing();
+        if (crashing.isEmpty()) {
+            listener.getLogger().println("The crash did not recur in any single assembly; recording the results of "
+                    + outcome.getKept().size() + " run(s)");
+        } else {
+            listener.getLogger().println("Assemblies crashing the test host: " + StringUtils.join(crashing, ", "));
+        }
+        run.addAction(new VsTestCrashIsolationAction(crashing, assemblies.size(), isolator.getRuns(),
+                System.currentTimeMillis() - start));
+
+        if (outcome.isUnexplained() && crashed.r != 0) {
+            // the kept runs passed on their own, but the build still crashed
+            listener.error("The test host crashed, VsTest.Console exited with " + crashed.r);
+            run.setResult(failBuild ? Result.FAILURE : Result.UNSTABLE);
+        }
+    }
+
+    /**
+     * A finished vstest.console run and the result files it reported.
+     */
+    private static final class Launched implements VsTestCrashIsolator.Attempt {
+
+        private final int r;
+        private final boolean crashed;
+        private final List<String> trxFiles;
+        private final List<String> coverageFiles;
+        private final List<String> attachments;
+
+        Launched(int r, boolean crashed, List<String> trxFiles, List<String> coverageFiles, List<String> attachments) {
+            this.r = r;
+            this.crashed = crashed;
+            this.trxFiles = trxFiles;
+            this.coverageFiles = coverageFiles;
+            this.attachments = attachments;
+        }
+
+        public boolean isCrashed() {
+            return crashed;
+        }
+    }
+
+    /**
+     * Only freestyle builds append their console to a plain log file that byte ranges can
+     * point into; Pipeline logs are stored per step.
+     *
+     * @param run
+     * @param parserListener
+     */
+    private static void recordConsoleSegments(Run<?, ?> run, VsTestListenerDecorator parserListener) {
+        if (run instanceof AbstractBuild) {
+            parserListener.recordSegments(run.getLogFile());
+        }
+    }
+
+    /**
+     * Stores where the output of each test is in the build log, so that it can be served
+     * on its own by the {@link VsTestConsoleAction}.
+     *
+     * @param run
+     * @param listener
+     * @param parserListener a closed decorator
+     */
+    private static void indexConsole(Run<?, ?> run, TaskListener listener, VsTestListenerDecorator parserListener) {
+        if (parserListener.isSegmentsDiscarded()) {
+            listener.getLogger().println("The build log changed while the tests ran, their console output is not indexed");
+            return;
+        }
+        List<VsTestConsoleIndex.Segment> segments = parserListener.getSegments();
+        if (segments.isEmpty()) {
+            return;
+        }
+        try {
+            VsTestConsoleIndex.append(run, segments);
+            VsTestConsoleAction.record(run, segments);
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.error("Failed to index the console output of the tests"));
+        }
+    }
+
+    /**
+     * @param staged
+     * @param paths absolute paths on the node
+     * @param workspace
+     * @return the paths, with the files below the staged directory moved back to the workspace
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static List<String> unstage(@CheckForNull VsTestStager.Staged staged, List<String> paths, FilePath workspace)
+            throws IOException, InterruptedException {
+        return staged != null && !paths.isEmpty() ? workspace.act(new VsTestStager.Unstager(staged, paths)) : paths;
+    }
+
+    /**
+     * Runs the tests on a vstest.console kept running in design mode on the node.
+     *
+     * @param vsTestExe
+     * @param assemblies test assemblies relative to the workspace, or staged absolute paths
+     * @param runSettings
+     * @param testCaseFilter
+     * @param run
+     * @param workspace
+     * @param launcher
+     * @param listener
+     * @param env environment of the build, passed to the test host
+     * @param post
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void execDesignMode(String vsTestExe, List<String> assemblies, VsTestRunSettings runSettings, String testCaseFilter,
+                                Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars env,
+                                VsTestPostProcessor post, @CheckForNull VsTestBatch.Group group) throws InterruptedException, IOException {
+        List<String> sources = new ArrayList<>(assemblies.size());
+        for (String assembly : assemblies) {
+            sources.add(workspace.child(assembly).getRemote());
+        }
+        FilePath resultsDirectory = workspace.child("TestResults");
+        FilePath trx = resultsDirectory.child("vstest-" + UUID.randomUUID() + ".trx");
+        runSettings.addTrxLogger(resultsDirectory.getRemote(), trx.getName());
+
+        listener.getLogger().println("Executing VSTest on a warm vstest.console: " + sources);
+
+        try {
+            VsTestListenerDecorator parserListener = new VsTestListenerDecorator(listener, quietConsole, quietContextLines);
+            recordConsoleSegments(run, parserListener);
+            VirtualChannel channel = launcher.getChannel();
+            int r;
+            try {
+                r = channel.call(new VsTestDesignModeServer.Run(vsTestExe, env, sources, runSettings.toString(), testCaseFilter,
+                        trx.getRemote(), designModeIdleMinutes * 60 * 1000L, designModeMaxRuns, new RemoteOutputStream(parserListener)));
+                if (channel instanceof Channel) {
+                    // wait for the console output still in flight
+                    ((Channel) channel).syncIO();
+                }
+            } finally {
+                parserListener.close();
+            }
+            if (r != 0) {
+                VsTestMetrics.FAILED_RUNS.increment();
+            }
+            indexConsole(run, listener, parserListener);
+            if (parserListener.getSuppressedLines() > 0) {
+                listener.getLogger().println("Quiet console: " + parserListener.getSuppressedLines() + " line(s) of passing tests not shown");
+            }
+            postProcess(post, run, workspace, listener, parserListener.getTrxFiles(), parserListener.getCoverageFiles(),
+                    parserListener.getAttachments(), r, "VSTest command execution failed", group);
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("VSTest command execution failed"));
+        }
+    }
+
+    /**
+     * Hands the results of a finished run to the post-processing pipeline, so that the step
+     * can go on while they are recorded.
+     *
+     * @param post
+     * @param run
+     * @param workspace
+     * @param listener
+     * @param trxPaths absolute paths on the node of the workspace
+     * @param coveragePaths
+     * @param attachmentPaths
+     * @param r exit code
+     * @param reportAs if not null, failures are reported under this message instead of failing the step
+     * @param group the batch group whose calls the results are split among, or null
+     * @throws InterruptedException
+     * @throws IOException if the post-processing of an earlier run failed
+     */
+    private void postProcess(VsTestPostProcessor post, final Run<?, ?> run, final FilePath workspace, final TaskListener listener,
+                             final List<String> trxPaths, final List<String> coveragePaths, final List<String> attachmentPaths,
+                             final int r, @CheckForNull String reportAs, @CheckForNull final VsTestBatch.Group group) throws InterruptedException, IOException {
+        post.submit(new VsTestPostProcessor.Task() {
+            public void run() throws IOException, InterruptedException {
+                processResults(run, workspace, listener, trxPaths, coveragePaths, attachmentPaths, r, group);
+            }
+        }, reportAs);
+    }
+
+    /**
+     * Records the results of a finished run and sets the build result from its exit code.
+     *
+     * @param run
+     * @param workspace
+     * @param listener
+     * @param trxPaths absolute paths on the node of the workspace
+     * @param coveragePaths
+     * @param attachmentPaths
+     * @param r exit code
+     * @param batch the batch group whose calls the results are split among, or null
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void processResults(Run<?, ?> run, FilePath workspace, TaskListener listener, List<String> trxPaths,
+                                List<String> coveragePaths, List<String> attachmentPaths, int r,
+                                @CheckForNull VsTestBatch.Group batch) throws InterruptedException, IOException {
+        List<String> trxFiles = relativizeAll(workspace, trxPaths);
+        List<String> coverageFiles = relativizeAll(workspace, coveragePaths);
+        List<String> attachments = relativizeAll(workspace, attachmentPaths);
+        if (batch != null) {
+            // one TRX file per call of the batch, the shared files with the first call
+            List<List<String>> callTrxFiles = new ArrayList<>();
+            for (List<String> files : batch.split(workspace, trxPaths)) {
+                callTrxFiles.add(relativizeAll(workspace, files));
+            }
+            batch.attribute(callTrxFiles);
+            for (int i = 0; i < callTrxFiles.size(); i++) {
+                VsTestResultsAction.add(run, callTrxFiles.get(i), i == 0 ? coverageFiles : Collections.<String>emptyList(),
+                        i == 0 ? attachments : Collections.<String>emptyList());
+            }
+        } else {
+            VsTestResultsAction.add(run, trxFiles, coverageFiles, attachments);
+        }
+
+        if (archiveResults) {
+            List<String> resultFiles = new ArrayList<>(trxFiles);
+            resultFiles.addAll(attachments);
+            archiveResults(run, workspace, resultFiles, listener);
+        }
+
+        VsTestResultIndex index = null;
+        for (String trxFullPath : trxPaths) {
+            VsTestResultIndex trxIndex = indexResults(run, workspace.child(trxFullPath), listener);
+            if (trxIndex != null) {
+                index = index != null ? index.merge(trxIndex) : trxIndex;
+            }
+        }
+        if (index != null && durationRegressionRatio > 1) {
+            checkDurationRegressions(run, index, listener);
+        }
+
+        if (r != 0) {
+            if (failBuild) {
+                run.setResult(Result.FAILURE);
+                throw new AbortException("VsTest.Console exited with " + r);
+            } else {
+                run.setResult(Result.UNSTABLE);
+            }
+        }
+    }
+
+    /**
+     * @param run
+     * @param workspace
+     * @param resultFiles result files relative to the workspace
+     * @param listener
+     * @throws InterruptedException
+     */
+    private void archiveResults(Run<?, ?> run, FilePath workspace, List<String> resultFiles, TaskListener listener) throws InterruptedException {
+        List<String> inWorkspace = new ArrayList<>();
+        for (String file : resultFiles) {
+            if (isInWorkspace(file)) {
+                inWorkspace.add(file);
+            } else {
+                listener.getLogger().println("Not archiving " + file + ", it is outside the workspace");
+            }
+        }
+        try {
+            VsTestArchivedResultsAction.Archive archive = VsTestArchivedResultsAction.archive(run, workspace, inWorkspace);
+            if (archive != null) {
+                listener.getLogger().println("Archived " + archive.getFiles().size() + " VSTest result file(s): "
+                        + archive.getSize() + " bytes compressed to " + archive.getCompressedSize());
+            }
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.error("Failed to archive VSTest result files"));
+        }
+    }
+
+    /**
+     * @param relativePath a path returned by {@link #relativize(FilePath, FilePath)}
+     * @return false if the path could not be made relative to the workspace
+     */
+    private static boolean isInWorkspace(String relativePath) {
+        return !relativePath.startsWith("/") && !relativePath.startsWith("../") && !relativePath.contains(":");
+    }
+
+    /**
+     * @param run
+     * @param trx
+     * @param listener
+     * @throws InterruptedException
+     */
+    private VsTestResultIndex indexResults(Run<?, ?> run, FilePath trx, TaskListener listener) throws InterruptedException {
+        try {
+            if (trx.exists()) {
+                VsTestMetrics.RESULT_FILE_SIZE.observe(trx.length());
+                VsTestResultDelta.Snapshot snapshot = resultDeltas ? VsTestResultDelta.snapshotFor(run) : null;
+                if (snapshot != null) {
+                    VsTestResultDelta delta = trx.act(new VsTestResultDelta.TrxDiffer(snapshot.fingerprint()));
+                    listener.getLogger().println("Received " + delta.getChanges().size() + " changed and " + delta.getSeen()
+                            + " unchanged VSTest result(s) against build #" + snapshot.getNumber());
+                    return VsTestResultDelta.append(run, snapshot, delta);
+                }
+                VsTestResultIndex index = trx.act(new VsTestResultIndex.TrxIndexer());
+                VsTestResultIndex.append(run, index);
+                return index;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to index VSTest results of " + trx.getRemote()));
+        }
+        return null;
+    }
+
+    /**
+     * @param run
+     * @param index results of this step
+     * @param listener
+     */
+    private void checkDurationRegressions(Run<?, ?> run, VsTestResultIndex index, TaskListener listener) {
+        VsTestDurationBaseline baseline = VsTestDurationBaseline.of(run.getParent(), run.getNumber(), durationBaselineBuilds);
+        if (baseline.isEmpty()) {
+            listener.getLogger().println("No previous VSTest results to compare test durations with");
+            return;
+        }
+
+        List<VsTestDurationRegressionAction.Slowdown> slowdowns = baseline.slowdowns(index, durationRegressionRatio);
+        if (slowdowns.isEmpty()) {
+            return;
+        }
+
+        VsTestDurationRegressionAction action = run.getAction(VsTestDurationRegressionAction.class);
+        if (action == null) {
+            action = new VsTestDurationRegressionAction(durationRegressionRatio);
+            run.addAction(action);
+        }
+        action.addAll(slowdowns);
+
+        listener.getLogger().println(slowdowns.size() + " test(s) ran more than " + durationRegressionRatio + "x slower than their baseline");
+        if (unstableOnDurationRegression) {
+            run.setResult(Result.UNSTABLE);
+        }
+    }
+
     /**
      * @param option
      * @param param
@@ -604,31 +1739,25 @@ public class VsTestBuilder extends Builder implements SimpleBuildStep {
         return node != null ? node : Jenkins.getInstance();
     }
 
+    /**
+     * Kept so that builds recorded before {@link VsTestResultsAction} still load.
+     */
+    @Deprecated
     private static class AddVsTestEnvVarsAction implements EnvironmentContributingAction {
 
-        private final static String TRX_ENV = "VSTEST_RESULT_TRX";
-        private final static String COVERAGE_ENV = "VSTEST_RESULT_COVERAGE";
+        private String trxEnv;
+        private String coverageEnv;
 
-        private final String trxEnv;
-        private final String coverageEnv;
-
-        public AddVsTestEnvVarsAction(String trxEnv, String coverageEnv) {
-            this.trxEnv = trxEnv;
-            this.coverageEnv = coverageEnv;
+        private Object readResolve() {
+            List<String> coverage = coverageEnv != null ? Collections.singletonList(coverageEnv) : Collections.<String>emptyList();
+            return new VsTestResultsAction(trxEnv != null ? Collections.singletonList(trxEnv) : Collections.<String>emptyList(), coverage, coverage);
         }
 
         public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
-            if (trxEnv != null) {
-                env.put(TRX_ENV, trxEnv);
-            }
-
-            if (coverageEnv != null) {
-                env.put(COVERAGE_ENV, coverageEnv);
-            }
         }
 
         public String getDisplayName() {
-            return "Add VSTestRunner Environment Variables to Build Environment";
+            return null;
         }
 
         public String getIconFileName() {
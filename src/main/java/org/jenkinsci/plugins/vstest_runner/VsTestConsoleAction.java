@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.console.ConsoleNote;
+import hudson.model.Item;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the console output of a single test from {@code vstestConsole/segment?name=TEST},
+ * reading only its byte range of the build log as recorded in the {@link VsTestConsoleIndex}.
+ * <p>
+ * The action itself only keeps the names of the first failed tests for the build page.
+ */
+public class VsTestConsoleAction implements RunAction2 {
+
+    /** Number of failed tests linked from the build page. */
+    public static final int SUMMARY_SIZE = 20;
+
+    /** Largest part of a segment served, so that a runaway test does not stream the whole log. */
+    private static final int MAX_SEGMENT_BYTES = Integer.getInteger(VsTestConsoleAction.class.getName() + ".maxSegmentBytes", 1024 * 1024);
+
+    private final List<String> failures = new ArrayList<>();
+    private int failureCount;
+    private int segmentCount;
+
+    private transient Run<?, ?> run;
+
+    /**
+     * Records the segments of a step on the action of {@code run}, adding it if needed.
+     *
+     * @param run
+     * @param segments
+     */
+    public static void record(Run<?, ?> run, List<VsTestConsoleIndex.Segment> segments) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        VsTestConsoleAction action;
+        synchronized (run) {
+            action = run.getAction(VsTestConsoleAction.class);
+            if (action == null) {
+                action = new VsTestConsoleAction();
+                run.addAction(action);
+            }
+        }
+        action.addAll(segments);
+    }
+
+    private synchronized void addAll(List<VsTestConsoleIndex.Segment> segments) {
+        segmentCount += segments.size();
+        for (VsTestConsoleIndex.Segment segment : segments) {
+            if (segment.getOutcome() == VsTestOutcome.FAILED) {
+                failureCount++;
+                if (failures.size() < SUMMARY_SIZE) {
+                    failures.add(segment.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first failed tests, at most {@link #SUMMARY_SIZE}
+     */
+    public synchronized List<String> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<>(failures));
+    }
+
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segmentCount;
+    }
+
+    @SuppressWarnings("unused") // Used by Stapler
+    public void doSegment(StaplerResponse rsp, @QueryParameter String name) throws IOException {
+        run.checkPermission(Item.READ);
+        File log = run.getLogFile();
+        List<VsTestConsoleIndex.Segment> segments = name != null
+                ? VsTestConsoleIndex.lookup(new File(run.getRootDir(), VsTestConsoleIndex.FILE_NAME), name)
+                : Collections.<VsTestConsoleIndex.Segment>emptyList();
+        // compressed logs cannot be read by range
+        if (segments.isEmpty() || !log.isFile() || log.getName().endsWith(".gz")) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain; charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+            for (VsTestConsoleIndex.Segment segment : segments) {
+                long available = raf.length() - segment.getStart();
+                int length = (int) Math.max(0, Math.min(Math.min(segment.getLength(), available), MAX_SEGMENT_BYTES));
+                byte[] buf = new byte[length];
+                raf.seek(segment.getStart());
+                raf.readFully(buf);
+                out.print(ConsoleNote.removeNotes(new String(buf, run.getCharset())));
+                if (length < segment.getLength()) {
+                    out.print("\n... " + (segment.getLength() - length) + " more bytes in the console log\n");
+                }
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public String getDisplayName() {
+        return "VSTest Console";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "vstestConsole";
+    }
+}
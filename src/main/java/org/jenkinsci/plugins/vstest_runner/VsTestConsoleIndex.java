@@ -0,0 +1,250 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import hudson.model.Run;
+
+/**
+ * Per-build index of where the console output of each test starts and ends in the
+ * build log, stored next to build.xml, so that the output of a single test can be
+ * served with a ranged read instead of scanning a huge log.
+ * <p>
+ * Segments are sorted by test name, then by position; a test run more than once has
+ * several segments. The on-disk layout is:
+ * <pre>
+ * int magic, int version, int count,
+ * byte[count] outcomes, long[count] starts, int[count] lengths,
+ * int[count + 1] name offsets, byte[] UTF-8 name blob
+ * </pre>
+ */
+public final class VsTestConsoleIndex {
+
+    public static final String FILE_NAME = "vstest-console.idx";
+
+    private static final int MAGIC = 0x56534349;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private static final Comparator<Segment> BY_NAME = new Comparator<Segment>() {
+        public int compare(Segment a, Segment b) {
+            int cmp = a.name.compareTo(b.name);
+            return cmp != 0 ? cmp : Long.compare(a.start, b.start);
+        }
+    };
+
+    private VsTestConsoleIndex() {
+    }
+
+    /**
+     * Merges {@code segments} into the console index of {@code run}.
+     *
+     * @param run
+     * @param segments
+     * @throws IOException
+     */
+    public static void append(Run<?, ?> run, List<Segment> segments) throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+        File file = new File(run.getRootDir(), FILE_NAME);
+        synchronized (VsTestConsoleIndex.class) {
+            List<Segment> all = read(file);
+            all.addAll(segments);
+            write(file, all);
+        }
+    }
+
+    /**
+     * @param file
+     * @return all segments stored in {@code file}, empty if the file does not exist
+     * @throws IOException
+     */
+    public static List<Segment> read(File file) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        if (!file.isFile()) {
+            return segments;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = readHeader(in, file);
+            byte[] outcomes = new byte[count];
+            in.readFully(outcomes);
+            long[] starts = new long[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = in.readLong();
+            }
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = in.readInt();
+            }
+            int[] offsets = new int[count + 1];
+            for (int i = 0; i <= count; i++) {
+                offsets[i] = in.readInt();
+            }
+            byte[] blob = new byte[offsets[count]];
+            in.readFully(blob);
+            for (int i = 0; i < count; i++) {
+                String name = new String(blob, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+                segments.add(new Segment(name, VsTestOutcome.values()[outcomes[i]], starts[i], lengths[i]));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Writes {@code segments} to {@code file}, replacing any previous content.
+     *
+     * @param file
+     * @param segments
+     * @throws IOException
+     */
+    /* package */ static void write(File file, List<Segment> segments) throws IOException {
+        List<Segment> sorted = new ArrayList<>(segments);
+        Collections.sort(sorted, BY_NAME);
+        int count = sorted.size();
+        byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            encoded[i] = sorted.get(i).name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (Segment segment : sorted) {
+                out.writeByte(segment.outcome.ordinal());
+            }
+            for (Segment segment : sorted) {
+                out.writeLong(segment.start);
+            }
+            for (Segment segment : sorted) {
+                out.writeInt(segment.length);
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] name : encoded) {
+                offset += name.length;
+                out.writeInt(offset);
+            }
+            for (byte[] name : encoded) {
+                out.write(name);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Looks up the segments of a single test directly in an index file, reading only the
+     * bytes needed by the binary search.
+     *
+     * @param file
+     * @param name
+     * @return the segments of the test in log order, empty if the file or the test does not exist
+     * @throws IOException
+     */
+    public static List<Segment> lookup(File file, String name) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        if (!file.isFile()) {
+            return segments;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int count = readHeader(raf, file);
+            // first position whose name is not less than the requested one
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (nameAt(raf, count, mid).compareTo(name) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (int i = lo; i < count && nameAt(raf, count, i).equals(name); i++) {
+                raf.seek(HEADER_SIZE + (long) i);
+                VsTestOutcome outcome = VsTestOutcome.values()[raf.readByte()];
+                raf.seek(HEADER_SIZE + 1L * count + 8L * i);
+                long start = raf.readLong();
+                raf.seek(HEADER_SIZE + 9L * count + 4L * i);
+                segments.add(new Segment(name, outcome, start, raf.readInt()));
+            }
+        }
+        return segments;
+    }
+
+    private static String nameAt(RandomAccessFile raf, int count, int position) throws IOException {
+        long offsetsPos = HEADER_SIZE + 13L * count;
+        long blobPos = offsetsPos + 4L * (count + 1);
+        raf.seek(offsetsPos + 4L * position);
+        int start = raf.readInt();
+        int end = raf.readInt();
+        byte[] buf = new byte[end - start];
+        raf.seek(blobPos + start);
+        raf.readFully(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    private static int readHeader(DataInput in, File file) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a VSTest console index: " + file);
+        }
+        return in.readInt();
+    }
+
+    /**
+     * The console output of one test: from its result line up to the result line of the
+     * next test or the summary.
+     */
+    public static final class Segment {
+
+        private final String name;
+        private final VsTestOutcome outcome;
+        private final long start;
+        private final int length;
+
+        public Segment(String name, VsTestOutcome outcome, long start, int length) {
+            this.name = name;
+            this.outcome = outcome;
+            this.start = start;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public VsTestOutcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return position of the first byte
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return number of bytes
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.RunAction2;
+
+/**
+ * Records whether a build collected code coverage, and for builds that skipped it
+ * under the {@link VsTestCoveragePolicy}, which earlier build holds the latest coverage.
+ */
+public class VsTestCoverageAction implements RunAction2 {
+
+    /** How many builds are searched back for the last covered one. */
+    /* package */ static final int MAX_LOOKBACK = 100;
+
+    private boolean covered;
+    private Integer lastCoveredBuild;
+    private final Map<String, String> assemblyDigests = new TreeMap<>();
+
+    private transient Run<?, ?> run;
+
+    private VsTestCoverageAction() {
+    }
+
+    /**
+     * Records the coverage decision of one vsTest step. A build counts as covered
+     * as soon as one of its steps collected coverage.
+     *
+     * @param run
+     * @param covered
+     * @param lastCovered the build holding the latest coverage, when {@code covered} is false
+     * @param digests assembly digests to remember for {@link VsTestCoveragePolicy#CHANGED_ASSEMBLIES}
+     */
+    /* package */ static void record(Run<?, ?> run, boolean covered, @CheckForNull Run<?, ?> lastCovered, Map<String, String> digests) {
+        VsTestCoverageAction action;
+        synchronized (run) {
+            action = run.getAction(VsTestCoverageAction.class);
+            if (action == null) {
+                action = new VsTestCoverageAction();
+                run.addAction(action);
+            }
+        }
+        synchronized (action) {
+            if (covered) {
+                action.covered = true;
+                action.lastCoveredBuild = null;
+            } else if (!action.covered && lastCovered != null) {
+                action.lastCoveredBuild = lastCovered.getNumber();
+            }
+            action.assemblyDigests.putAll(digests);
+        }
+    }
+
+    public synchronized boolean isCovered() {
+        return covered;
+    }
+
+    /**
+     * @return for a build that skipped coverage, the number of the build holding the latest coverage
+     */
+    @CheckForNull
+    public synchronized Integer getLastCoveredBuild() {
+        return lastCoveredBuild;
+    }
+
+    /**
+     * @return the build holding the latest coverage: this one, or the one it refers to
+     */
+    @CheckForNull
+    public Run<?, ?> getCoverageBuild() {
+        Integer number = getLastCoveredBuild();
+        if (number == null) {
+            return run;
+        }
+        return run != null ? run.getParent().getBuildByNumber(number) : null;
+    }
+
+    /**
+     * @return the coverage files of the build holding the latest coverage
+     */
+    public List<String> getLastCoverageFiles() {
+        Run<?, ?> source = getCoverageBuild();
+        VsTestResultsAction results = source != null ? source.getAction(VsTestResultsAction.class) : null;
+        return results != null ? results.getCoverageFiles() : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return digest of each test assembly and its neighbouring binaries, by workspace-relative path
+     */
+    public synchronized Map<String, String> getAssemblyDigests() {
+        return Collections.unmodifiableMap(new TreeMap<>(assemblyDigests));
+    }
+
+    /**
+     * @param run
+     * @return the newest earlier build that collected coverage, or null
+     */
+    @CheckForNull
+    public static Run<?, ?> findLastCovered(Run<?, ?> run) {
+        Run<?, ?> previous = run.getPreviousBuild();
+        for (int i = 0; previous != null && i < MAX_LOOKBACK; i++, previous = previous.getPreviousBuild()) {
+            VsTestCoverageAction action = previous.getAction(VsTestCoverageAction.class);
+            if (action != null && action.isCovered()) {
+                return previous;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public String getDisplayName() {
+        return "VSTest Code Coverage";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Computes, on the node holding the workspace, an MD5 digest of each test assembly
+     * together with every file the {@link VsTestStager} would copy from its folder, so a
+     * changed dependency or configuration file also counts.
+     */
+    /* package */ static final class AssemblyDigester extends MasterToSlaveFileCallable<Map<String, String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> assemblies;
+
+        AssemblyDigester(List<String> assemblies) {
+            this.assemblies = new ArrayList<>(assemblies);
+        }
+
+        @Override
+        public Map<String, String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            Map<File, String> folders = new HashMap<>();
+            Map<String, String> digests = new TreeMap<>();
+            for (String assembly : assemblies) {
+                File file = new File(assembly);
+                File folder = (file.isAbsolute() ? file : new File(workspace, assembly)).getAbsoluteFile().getParentFile();
+                String digest = folders.get(folder);
+                if (digest == null) {
+                    digest = digestFolder(folder.toPath());
+                    folders.put(folder, digest);
+                }
+                digests.put(assembly, digest);
+            }
+            return digests;
+        }
+
+        private static String digestFolder(Path folder) throws IOException {
+            MessageDigest md5;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            if (!Files.isDirectory(folder)) {
+                return "";
+            }
+            Set<String> files = new TreeSet<>();
+            for (Path file : VsTestStager.walk(folder)) {
+                files.add(folder.relativize(file).toString().replace('\\', '/'));
+            }
+            byte[] buf = new byte[64 * 1024];
+            for (String file : files) {
+                md5.update(file.toLowerCase().getBytes(StandardCharsets.UTF_8));
+                md5.update((byte) 0);
+                try (InputStream in = Files.newInputStream(folder.resolve(file))) {
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        md5.update(buf, 0, n);
+                    }
+                }
+            }
+            return Util.toHexString(md5.digest());
+        }
+    }
+}
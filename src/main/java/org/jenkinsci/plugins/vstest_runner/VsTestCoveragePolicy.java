@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.Map;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+public enum VsTestCoveragePolicy {
+    ALWAYS("Always"),
+    EVERY_NTH_BUILD("Every Nth build"),
+    CHANGED_ASSEMBLIES("When test assemblies changed");
+
+    private final String name;
+
+    VsTestCoveragePolicy(String s) {
+        name = s;
+    }
+
+    /**
+     * @param number number of the deciding build
+     * @param lastCovered number of the newest earlier build that collected coverage, or null
+     * @param interval builds between two covered builds, for {@link #EVERY_NTH_BUILD}
+     * @param digests assembly digests of the deciding build, for {@link #CHANGED_ASSEMBLIES}; empty if unknown
+     * @param previous assembly digests of the last covered build
+     * @return whether the build collects coverage
+     */
+    public boolean shouldCover(int number, @CheckForNull Integer lastCovered, int interval,
+                               Map<String, String> digests, Map<String, String> previous) {
+        if (this == ALWAYS || lastCovered == null) {
+            return true;
+        }
+        if (this == EVERY_NTH_BUILD) {
+            return number - lastCovered >= interval;
+        }
+        if (digests.isEmpty()) {
+            // assemblies given only through the command line cannot be compared
+            return true;
+        }
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            if (!digest.getValue().equals(previous.get(digest.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
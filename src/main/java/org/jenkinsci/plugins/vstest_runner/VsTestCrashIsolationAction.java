@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The test assemblies a crash isolation found to crash the test host on their own.
+ */
+@ExportedBean
+public class VsTestCrashIsolationAction implements Action {
+
+    private final List<String> assemblies;
+    private final int assemblyCount;
+    private final int runs;
+    private final long durationMillis;
+
+    /**
+     * @param assemblies the crashing assemblies, relative to the workspace
+     * @param assemblyCount number of assemblies of the crashed run
+     * @param runs number of runs made by the isolation
+     * @param durationMillis wall time of the isolation
+     */
+    public VsTestCrashIsolationAction(List<String> assemblies, int assemblyCount, int runs, long durationMillis) {
+        this.assemblies = new ArrayList<>(assemblies);
+        this.assemblyCount = assemblyCount;
+        this.runs = runs;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return the crashing assemblies; empty if the crash did not recur in any single assembly
+     */
+    @Exported
+    public List<String> getAssemblies() {
+        return Collections.unmodifiableList(assemblies);
+    }
+
+    @Exported
+    public int getAssemblyCount() {
+        return assemblyCount;
+    }
+
+    @Exported
+    public int getRuns() {
+        return runs;
+    }
+
+    @Exported
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public String getDisplayName() {
+        return "VSTest Crash Isolation";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
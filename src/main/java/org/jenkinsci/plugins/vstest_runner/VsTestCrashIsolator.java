@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the assemblies that crash the test host by bisection: the assemblies of a crashed
+ * run are split in halves that run at the same time, and every half that crashes again is
+ * split further, down to single assemblies.
+ * <p>
+ * Runs that did not crash are kept, so the results of the healthy assemblies are recorded
+ * as if they had run together. The runs of single crashing assemblies are kept as well,
+ * with whatever results they produced before the crash.
+ *
+ * @param <A> a finished run
+ */
+/* package */ final class VsTestCrashIsolator<A extends VsTestCrashIsolator.Attempt> {
+
+    /** Number of runs at the same time. */
+    private static final int WORKERS = Integer.getInteger(VsTestCrashIsolator.class.getName() + ".workers", 4);
+
+    /**
+     * A finished run of some assemblies.
+     */
+    interface Attempt {
+        boolean isCrashed();
+    }
+
+    /**
+     * Runs some of the assemblies, on any thread.
+     */
+    interface Runner<A extends Attempt> {
+        A run(List<String> assemblies) throws IOException, InterruptedException;
+    }
+
+    private final Runner<A> runner;
+    private final ExecutorService executor;
+    private final Semaphore workers;
+    private final AtomicInteger runs = new AtomicInteger();
+
+    VsTestCrashIsolator(Runner<A> runner, ExecutorService executor) {
+        this(runner, executor, WORKERS);
+    }
+
+    /**
+     * @param runner
+     * @param executor runs the second half of each split, must not queue tasks behind each other
+     * @param workers number of runs at the same time
+     */
+    VsTestCrashIsolator(Runner<A> runner, ExecutorService executor, int workers) {
+        this.runner = runner;
+        this.executor = executor;
+        this.workers = new Semaphore(Math.max(1, workers));
+    }
+
+    /**
+     * @param assemblies
+     * @param attempt the run of {@code assemblies}
+     * @return the runs to keep and the crashing assemblies, both in assembly order
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    Outcome<A> isolate(List<String> assemblies, A attempt) throws IOException, InterruptedException {
+        Outcome<A> outcome = new Outcome<>();
+        if (!attempt.isCrashed()) {
+            outcome.kept.add(attempt);
+            return outcome;
+        }
+        if (assemblies.size() == 1) {
+            outcome.kept.add(attempt);
+            outcome.crashing.add(assemblies.get(0));
+            return outcome;
+        }
+
+        int half = assemblies.size() / 2;
+        final List<String> right = new ArrayList<>(assemblies.subList(half, assemblies.size()));
+        Future<Outcome<A>> rightOutcome = executor.submit(new Callable<Outcome<A>>() {
+            public Outcome<A> call() throws IOException, InterruptedException {
+                return bisect(right);
+            }
+        });
+        try {
+            outcome.add(bisect(new ArrayList<>(assemblies.subList(0, half))));
+            outcome.add(rightOutcome.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // a failed or interrupted left half stops the right one too
+            rightOutcome.cancel(true);
+        }
+        outcome.unexplained |= outcome.crashing.isEmpty();
+        return outcome;
+    }
+
+    private Outcome<A> bisect(List<String> assemblies) throws IOException, InterruptedException {
+        A attempt;
+        workers.acquire();
+        try {
+            runs.incrementAndGet();
+            attempt = runner.run(assemblies);
+        } finally {
+            workers.release();
+        }
+        return isolate(assemblies, attempt);
+    }
+
+    /**
+     * @return number of runs made by the isolation so far
+     */
+    int getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * The runs to keep and the assemblies found crashing.
+     */
+    static final class Outcome<A> {
+
+        private final List<A> kept = new ArrayList<>();
+        private final List<String> crashing = new ArrayList<>();
+        private boolean unexplained;
+
+        private void add(Outcome<A> other) {
+            kept.addAll(other.kept);
+            crashing.addAll(other.crashing);
+            unexplained |= other.unexplained;
+        }
+
+        List<A> getKept() {
+            return kept;
+        }
+
+        List<String> getCrashing() {
+            return crashing;
+        }
+
+        /**
+         * @return whether a run crashed while none of its single assemblies did, so the crash
+         *         was flaky or needs several assemblies together; no kept run shows it
+         */
+        boolean isUnexplained() {
+            return unexplained;
+        }
+    }
+}
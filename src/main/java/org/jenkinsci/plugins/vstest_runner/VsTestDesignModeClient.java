@@ -0,0 +1,326 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * Client side of the JSON test platform protocol spoken by {@code vstest.console /Port:N},
+ * the design mode used by IDEs to keep one test runner alive across runs.
+ * <p>
+ * Each message is a JSON object written as a UTF-8 string with a 7-bit encoded length
+ * prefix, the framing of .NET's {@code BinaryWriter.Write(string)}.
+ */
+public final class VsTestDesignModeClient implements Closeable {
+
+    /** Protocol version requested in the handshake; results carry their outcome as a plain field from version 2. */
+    public static final int PROTOCOL_VERSION = 6;
+
+    /* package */ static final String SESSION_CONNECTED = "TestSession.Connected";
+    /* package */ static final String SESSION_MESSAGE = "TestSession.Message";
+    /* package */ static final String SESSION_TERMINATE = "TestSession.Terminate";
+    /* package */ static final String VERSION_CHECK = "ProtocolVersion";
+    /* package */ static final String PROTOCOL_ERROR = "ProtocolError";
+    /* package */ static final String RUN_ALL = "TestExecution.RunAllWithDefaultHost";
+    /* package */ static final String CANCEL_ALL = "TestExecution.CancelAll";
+    /* package */ static final String STATS_CHANGE = "TestExecution.StatsChange";
+    /* package */ static final String RUN_COMPLETED = "TestExecution.Completed";
+
+    /** How often a blocked read checks for interruption. */
+    private static final int POLL_MILLIS = 1000;
+    /** How long the rest of a message may take once its first byte arrived. */
+    private static final int MESSAGE_MILLIS = 60 * 1000;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private int version = 1;
+
+    public VsTestDesignModeClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setSoTimeout(POLL_MILLIS);
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Waits for the runner to announce itself and negotiates the protocol version.
+     *
+     * @param timeoutMillis
+     * @return the negotiated version
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int handshake(long timeoutMillis) throws IOException, InterruptedException {
+        JSONObject connected = receive(timeoutMillis);
+        if (!SESSION_CONNECTED.equals(connected.optString("MessageType"))) {
+            throw new IOException("Unexpected message from vstest.console: " + connected);
+        }
+        send(VERSION_CHECK, PROTOCOL_VERSION);
+        JSONObject reply = receive(timeoutMillis);
+        if (!VERSION_CHECK.equals(reply.optString("MessageType"))) {
+            throw new IOException("vstest.console did not accept protocol version " + PROTOCOL_VERSION + ": " + reply);
+        }
+        version = reply.optInt("Payload", 1);
+        return version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Runs all tests of {@code sources} in the default test host and reports progress
+     * to {@code handler} until the run completes.
+     *
+     * @param sources absolute paths of the test assemblies
+     * @param runSettings
+     * @param testCaseFilter
+     * @param handler
+     * @return the payload of the completion message
+     * @throws IOException
+     * @throws InterruptedException if interrupted, after asking the runner to cancel
+     */
+    public JSONObject runAll(List<String> sources, String runSettings, @CheckForNull String testCaseFilter, Handler handler) throws IOException, InterruptedException {
+        JSONObject payload = new JSONObject();
+        payload.put("Sources", JSONArray.fromObject(sources));
+        payload.put("RunSettings", runSettings);
+        payload.put("KeepAlive", false);
+        payload.put("DebuggingEnabled", false);
+        if (testCaseFilter != null) {
+            JSONObject options = new JSONObject();
+            options.put("TestCaseFilter", testCaseFilter);
+            payload.put("TestPlatformOptions", options);
+        }
+        send(RUN_ALL, payload);
+
+        try {
+            while (true) {
+                JSONObject message = receive(0);
+                String type = message.optString("MessageType");
+                Object body = message.opt("Payload");
+                if (RUN_COMPLETED.equals(type)) {
+                    JSONObject completion = body instanceof JSONObject ? (JSONObject) body : new JSONObject();
+                    JSONObject last = completion.optJSONObject("LastRunTests");
+                    if (last != null) {
+                        handleResults(last, handler);
+                    }
+                    return completion;
+                } else if (STATS_CHANGE.equals(type) && body instanceof JSONObject) {
+                    handleResults((JSONObject) body, handler);
+                } else if (SESSION_MESSAGE.equals(type) && body instanceof JSONObject) {
+                    handler.message(text((JSONObject) body, "Message"));
+                } else if (PROTOCOL_ERROR.equals(type)) {
+                    throw new IOException("vstest.console reported a protocol error: " + body);
+                }
+            }
+        } catch (InterruptedException e) {
+            send(CANCEL_ALL, null);
+            throw e;
+        }
+    }
+
+    private static void handleResults(JSONObject stats, Handler handler) {
+        JSONArray results = stats.optJSONArray("NewTestResults");
+        if (results == null) {
+            return;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null) {
+                continue;
+            }
+            JSONObject testCase = result.optJSONObject("TestCase");
+            String name = testCase != null ? text(testCase, "FullyQualifiedName") : null;
+            if (name == null) {
+                name = text(result, "DisplayName");
+            }
+            handler.result(name, outcome(result.opt("Outcome")), text(result, "ErrorMessage"));
+        }
+    }
+
+    /**
+     * @param value {@code TestOutcome} as serialized by the runner, a number or a name
+     * @return
+     */
+    private static VsTestOutcome outcome(Object value) {
+        if (value instanceof Number) {
+            switch (((Number) value).intValue()) {
+                case 1:
+                    return VsTestOutcome.PASSED;
+                case 2:
+                    return VsTestOutcome.FAILED;
+                case 3:
+                    return VsTestOutcome.SKIPPED;
+                default:
+                    return VsTestOutcome.OTHER;
+            }
+        }
+        return value != null ? VsTestOutcome.fromTrx(value.toString()) : VsTestOutcome.OTHER;
+    }
+
+    /**
+     * @param object
+     * @param key
+     * @return the value as a string, or null if it is absent or JSON null
+     */
+    @CheckForNull
+    /* package */ static String text(JSONObject object, String key) {
+        Object value = object.opt(key);
+        return value == null || JSONNull.getInstance().equals(value) ? null : value.toString();
+    }
+
+    /**
+     * Asks the runner to exit and closes the connection.
+     */
+    public void terminate() {
+        try {
+            send(SESSION_TERMINATE, null);
+        } catch (IOException ignored) {
+            // the runner may already be gone
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @param type
+     * @param payload
+     * @throws IOException
+     */
+    /* package */ synchronized void send(String type, @CheckForNull Object payload) throws IOException {
+        JSONObject message = new JSONObject();
+        if (version > 1) {
+            message.put("Version", version);
+        }
+        message.put("MessageType", type);
+        if (payload != null) {
+            message.put("Payload", payload);
+        }
+        writeString(out, message.toString());
+        out.flush();
+    }
+
+    /**
+     * @param timeoutMillis 0 to wait until a message arrives
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    /* package */ JSONObject receive(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                if (timeoutMillis > 0 && System.currentTimeMillis() > deadline) {
+                    throw new IOException("Timed out waiting for vstest.console");
+                }
+                continue;
+            }
+            socket.setSoTimeout(MESSAGE_MILLIS);
+            try {
+                return JSONObject.fromObject(readString(in, first));
+            } finally {
+                socket.setSoTimeout(POLL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code value} the way {@code BinaryWriter.Write(string)} does.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    /* package */ static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        while (length >= 0x80) {
+            out.write(length & 0x7f | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string the way {@code BinaryReader.ReadString()} does.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    /* package */ static String readString(InputStream in) throws IOException {
+        return readString(in, in.read());
+    }
+
+    private static String readString(InputStream in, int first) throws IOException {
+        int length = 0;
+        for (int shift = 0, b = first; ; shift += 7, b = in.read()) {
+            if (shift > 28) {
+                throw new IOException("Malformed length prefix");
+            }
+            if (b < 0) {
+                throw new EOFException("vstest.console closed the connection");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("vstest.console closed the connection");
+            }
+            read += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Receives the progress of a run.
+     */
+    public interface Handler {
+
+        /**
+         * @param testName
+         * @param outcome
+         * @param errorMessage
+         */
+        void result(String testName, VsTestOutcome outcome, @CheckForNull String errorMessage);
+
+        /**
+         * @param message a log message of the runner
+         */
+        void message(String message);
+    }
+}
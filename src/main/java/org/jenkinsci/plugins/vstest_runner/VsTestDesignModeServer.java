@@ -0,0 +1,400 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * A {@code vstest.console} kept running in design mode on a node, so that builds
+ * do not pay for its start-up and extension discovery again.
+ * <p>
+ * Servers live in the JVM of the node and are pooled by executable and environment: a server
+ * carries the variables of the build that started it which differ from those of the node JVM,
+ * except the ones Jenkins sets per build, and serves only builds with the same such variables.
+ * A server runs one test run at a time; concurrent builds on the same node start additional servers.
+ * A server is stopped after it has been idle for a while or has served a number of runs.
+ */
+public final class VsTestDesignModeServer {
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestDesignModeServer.class.getName());
+
+    /** How long vstest.console may take to connect back and answer the handshake. */
+    private static final long CONNECT_MILLIS = 60 * 1000;
+
+    /**
+     * Prefixes of the variables Jenkins sets per build, which would keep builds from sharing servers.
+     * The test host sees the values of the node JVM instead.
+     */
+    private static final String[] PER_BUILD = {"BUILD_", "JOB_", "RUN_", "ROOT_BUILD_CAUSE", "EXECUTOR_NUMBER", "NODE_",
+            "WORKSPACE", "JENKINS_", "HUDSON_", "STAGE_NAME", "BRANCH_NAME", "CHANGE_", "TAG_", "GIT_", "SVN_"};
+
+    private static final List<VsTestDesignModeServer> IDLE = new ArrayList<>();
+    private static ScheduledExecutorService reaper;
+
+    private final String vsTestExe;
+    private final Map<String, String> environment;
+    private final Process process;
+    private final File log;
+    private final VsTestDesignModeClient client;
+    private int runs;
+    private volatile long idleSince;
+    private volatile long idleMillis;
+
+    private VsTestDesignModeServer(String vsTestExe, Map<String, String> environment, Process process, File log,
+                                   VsTestDesignModeClient client) {
+        this.vsTestExe = vsTestExe;
+        this.environment = environment;
+        this.process = process;
+        this.log = log;
+        this.client = client;
+    }
+
+    /**
+     * @param env environment of the build
+     * @return the variables of {@code env} that differ from the node JVM's, except the ones set per build
+     */
+    /* package */ static Map<String, String> environment(Map<String, String> env) {
+        Map<String, String> environment = new TreeMap<>();
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            // Windows keeps the current directory of each drive in variables such as =C:
+            if (!isPerBuild(e.getKey()) && e.getKey().indexOf('=') < 0 && !e.getValue().equals(System.getenv(e.getKey()))) {
+                environment.put(e.getKey(), e.getValue());
+            }
+        }
+        return environment;
+    }
+
+    private static boolean isPerBuild(String name) {
+        String upper = name.toUpperCase(Locale.ENGLISH);
+        for (String prefix : PER_BUILD) {
+            if (upper.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts {@code vstest.console /Port:N}, which connects back to a port opened here.
+     * <p>
+     * The process is started from the node JVM rather than through the build's launcher,
+     * so that it is not killed with the build. Its output goes to a log file of its own,
+     * which is removed when it stops.
+     *
+     * @param vsTestExe
+     * @param environment variables to set on top of the node JVM's
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static VsTestDesignModeServer start(String vsTestExe, Map<String, String> environment) throws IOException, InterruptedException {
+        File log = File.createTempFile("vstest-design-mode", ".log");
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            listener.setSoTimeout((int) CONNECT_MILLIS);
+            List<String> cmd = new ArrayList<>();
+            cmd.add(vsTestExe);
+            cmd.add("/Port:" + listener.getLocalPort());
+            String pid = processId();
+            if (pid != null) {
+                // makes vstest.console exit together with the node JVM
+                cmd.add("/ParentProcessId:" + pid);
+            }
+            ProcessBuilder builder = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log);
+            builder.environment().putAll(environment);
+            Process process = builder.start();
+            try {
+                Socket socket = listener.accept();
+                VsTestDesignModeClient client = new VsTestDesignModeClient(socket);
+                client.handshake(CONNECT_MILLIS);
+                LOGGER.log(Level.FINE, "Started {0} in design mode, protocol version {1}, logging to {2}",
+                        new Object[]{vsTestExe, client.getVersion(), log});
+                return new VsTestDesignModeServer(vsTestExe, environment, process, log, client);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                process.destroy();
+                throw e;
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            deleteLog(log);
+            throw e;
+        }
+    }
+
+    private static void deleteLog(File log) {
+        if (log.exists() && !log.delete()) {
+            LOGGER.log(Level.FINE, "Failed to delete {0}", log);
+        }
+    }
+
+    @CheckForNull
+    private static String processId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : null;
+    }
+
+    /**
+     * @param vsTestExe
+     * @param environment
+     * @return an idle server for {@code vsTestExe} with {@code environment}, or a new one
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static VsTestDesignModeServer acquire(String vsTestExe, Map<String, String> environment) throws IOException, InterruptedException {
+        synchronized (IDLE) {
+            for (Iterator<VsTestDesignModeServer> it = IDLE.iterator(); it.hasNext(); ) {
+                VsTestDesignModeServer server = it.next();
+                if (server.vsTestExe.equals(vsTestExe) && server.environment.equals(environment)) {
+                    it.remove();
+                    if (server.isAlive()) {
+                        return server;
+                    }
+                    server.stop();
+                }
+            }
+        }
+        return start(vsTestExe, environment);
+    }
+
+    /**
+     * Returns a server to the pool, or stops it once it has served {@code maxRuns} runs.
+     *
+     * @param idleMillis
+     * @param maxRuns
+     */
+    private void release(long idleMillis, int maxRuns) {
+        if (++runs >= maxRuns || !isAlive()) {
+            stop();
+            return;
+        }
+        this.idleMillis = idleMillis;
+        this.idleSince = System.currentTimeMillis();
+        ScheduledExecutorService timer;
+        synchronized (IDLE) {
+            IDLE.add(this);
+            if (reaper == null) {
+                reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "VSTest design mode reaper");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            timer = reaper;
+        }
+        timer.schedule(new Runnable() {
+            public void run() {
+                reap();
+            }
+        }, idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void reap() {
+        List<VsTestDesignModeServer> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (IDLE) {
+            for (Iterator<VsTestDesignModeServer> it = IDLE.iterator(); it.hasNext(); ) {
+                VsTestDesignModeServer server = it.next();
+                if (now - server.idleSince >= server.idleMillis) {
+                    it.remove();
+                    expired.add(server);
+                }
+            }
+        }
+        for (VsTestDesignModeServer server : expired) {
+            server.stop();
+        }
+    }
+
+    private boolean isAlive() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private void stop() {
+        client.terminate();
+        try {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroy();
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+        deleteLog(log);
+        LOGGER.log(Level.FINE, "Stopped {0} after {1} run(s)", new Object[]{vsTestExe, runs});
+    }
+
+    /**
+     * Runs tests on a warm server of the node and writes console output that
+     * {@link VsTestListenerDecorator} understands to {@code out}: one line per
+     * result, the totals, the TRX file and the attachments.
+     */
+    /* package */ static final class Run extends MasterToSlaveCallable<Integer, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String vsTestExe;
+        private final Map<String, String> env;
+        private final List<String> sources;
+        private final String runSettings;
+        private final String testCaseFilter;
+        private final String trxFile;
+        private final long idleMillis;
+        private final int maxRuns;
+        private final OutputStream out;
+
+        /**
+         * @param vsTestExe
+         * @param env environment of the build
+         * @param sources absolute paths of the test assemblies
+         * @param runSettings settings which write the TRX file to {@code trxFile}
+         * @param testCaseFilter
+         * @param trxFile absolute path
+         * @param idleMillis
+         * @param maxRuns
+         * @param out remote stream receiving the console output
+         */
+        Run(String vsTestExe, Map<String, String> env, List<String> sources, String runSettings, @CheckForNull String testCaseFilter,
+            String trxFile, long idleMillis, int maxRuns, OutputStream out) {
+            this.vsTestExe = vsTestExe;
+            this.env = new TreeMap<>(env);
+            this.sources = sources;
+            this.runSettings = runSettings;
+            this.testCaseFilter = testCaseFilter;
+            this.trxFile = trxFile;
+            this.idleMillis = idleMillis;
+            this.maxRuns = maxRuns;
+            this.out = out;
+        }
+
+        /**
+         * @return 0 if all tests passed, 1 otherwise
+         */
+        @Override
+        public Integer call() throws IOException {
+            final PrintStream console = new PrintStream(out, true, StandardCharsets.UTF_8.name());
+            final int[] counts = new int[VsTestOutcome.values().length];
+            VsTestDesignModeServer server = null;
+            try {
+                server = acquire(vsTestExe, environment(env));
+                console.println("Running on a warm vstest.console (run " + (server.runs + 1) + " of at most " + maxRuns + ")");
+                JSONObject completion = server.client.runAll(sources, runSettings, testCaseFilter, new VsTestDesignModeClient.Handler() {
+                    public void result(String testName, VsTestOutcome outcome, String errorMessage) {
+                        counts[outcome.ordinal()]++;
+                        console.println(label(outcome) + "   " + testName);
+                        if (errorMessage != null) {
+                            console.println("Error Message:");
+                            console.println("   " + errorMessage);
+                        }
+                    }
+
+                    public void message(String message) {
+                        if (message != null) {
+                            console.println(message);
+                        }
+                    }
+                });
+                server.release(idleMillis, maxRuns);
+                server = null;
+                return report(console, completion, counts);
+            } catch (InterruptedException e) {
+                throw new IOException("Test run interrupted", e);
+            } finally {
+                if (server != null) {
+                    // a run that failed half way leaves the server in an unknown state
+                    server.stop();
+                }
+                console.flush();
+            }
+        }
+
+        private int report(PrintStream console, JSONObject completion, int[] counts) {
+            int passed = counts[VsTestOutcome.PASSED.ordinal()];
+            int failed = counts[VsTestOutcome.FAILED.ordinal()];
+            int skipped = counts[VsTestOutcome.SKIPPED.ordinal()];
+            console.println("Total tests: " + (passed + failed + skipped + counts[VsTestOutcome.OTHER.ordinal()])
+                    + ". Passed: " + passed + ". Failed: " + failed + ". Skipped: " + skipped + ".");
+
+            JSONObject args = completion.optJSONObject("TestRunCompleteArgs");
+            boolean aborted = args != null && (args.optBoolean("IsAborted") || args.optBoolean("IsCanceled"));
+            String error = args != null ? VsTestDesignModeClient.text(args, "Error") : null;
+            if (error != null) {
+                console.println(error);
+            }
+            console.println(aborted ? "Test Run Aborted." : failed > 0 ? "Test Run Failed." : "Test Run Successful.");
+
+            if (new File(trxFile).isFile()) {
+                console.println("Results File: " + trxFile);
+            }
+            List<String> attachments = attachments(completion.optJSONArray("RunAttachments"));
+            if (args != null) {
+                attachments.addAll(attachments(args.optJSONArray("AttachmentSets")));
+            }
+            if (!attachments.isEmpty()) {
+                console.println("Attachments:");
+                for (String attachment : attachments) {
+                    console.println("  " + attachment);
+                }
+            }
+            return aborted || failed > 0 || error != null ? 1 : 0;
+        }
+
+        private static List<String> attachments(@CheckForNull JSONArray sets) {
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; sets != null && i < sets.size(); i++) {
+                JSONObject set = sets.optJSONObject(i);
+                JSONArray attachments = set != null ? set.optJSONArray("Attachments") : null;
+                for (int j = 0; attachments != null && j < attachments.size(); j++) {
+                    JSONObject attachment = attachments.optJSONObject(j);
+                    String uri = attachment != null ? VsTestDesignModeClient.text(attachment, "Uri") : null;
+                    if (uri != null) {
+                        paths.add(uri.startsWith("file:") ? new File(URI.create(uri)).getPath() : uri);
+                    }
+                }
+            }
+            return paths;
+        }
+
+        private static String label(VsTestOutcome outcome) {
+            switch (outcome) {
+                case PASSED:
+                    return "Passed";
+                case FAILED:
+                    return "Failed";
+                case SKIPPED:
+                    return "Skipped";
+                default:
+                    return "NotRunnable";
+            }
+        }
+    }
+}
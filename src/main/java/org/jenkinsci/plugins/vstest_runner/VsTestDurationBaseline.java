@@ -0,0 +1,133 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.Job;
+
+/**
+ * Rolling per-test duration baseline, computed as the median of the passing runs
+ * of each test over the previous builds of a job.
+ */
+public final class VsTestDurationBaseline {
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestDurationBaseline.class.getName());
+
+    /** Tests faster than this are too noisy to compare. */
+    /* package */ static final int MIN_BASELINE_MILLIS = 50;
+
+    private final List<VsTestResultIndex> history;
+
+    /* package */ VsTestDurationBaseline(List<VsTestResultIndex> history) {
+        this.history = history;
+    }
+
+    /**
+     * @param job
+     * @param beforeBuild only builds older than this one are used
+     * @param builds number of indexed builds to use
+     * @return
+     */
+    public static VsTestDurationBaseline of(Job<?, ?> job, int beforeBuild, int builds) {
+        List<VsTestResultIndex> history = new ArrayList<>();
+        for (int number : VsTestResultHistory.buildNumbers(job)) {
+            if (history.size() >= builds) {
+                break;
+            }
+            if (number >= beforeBuild) {
+                continue;
+            }
+            try {
+                VsTestResultIndex index = VsTestResultIndex.readBuild(VsTestResultHistory.buildDir(job, number));
+                if (index != null) {
+                    history.add(index);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read VSTest result index of " + job.getFullName() + " #" + number, e);
+            }
+        }
+        return new VsTestDurationBaseline(history);
+    }
+
+    public boolean isEmpty() {
+        return history.isEmpty();
+    }
+
+    /**
+     * @param testName
+     * @return the median duration of the passing runs of the test, or -1 if it never passed
+     */
+    public int median(String testName) {
+        int[] samples = new int[history.size()];
+        int count = 0;
+        for (VsTestResultIndex index : history) {
+            int i = index.indexOf(testName);
+            if (i >= 0 && index.getOutcome(i) == VsTestOutcome.PASSED) {
+                samples[count++] = index.getDuration(i);
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(samples, 0, count);
+        return count % 2 == 1 ? samples[count / 2] : (int) (((long) samples[count / 2 - 1] + samples[count / 2]) / 2);
+    }
+
+    /**
+     * @return number of tests in the newest indexed build
+     */
+    public int getTestCount() {
+        return history.isEmpty() ? 0 : history.get(0).size();
+    }
+
+    /**
+     * Estimates the time spent in tests by a run of the tests of the newest indexed build.
+     *
+     * @return the sum of the median duration of each test, or the latest duration of tests that never passed
+     */
+    public long estimateMillis() {
+        if (history.isEmpty()) {
+            return 0;
+        }
+        VsTestResultIndex newest = history.get(0);
+        long total = 0;
+        for (int i = 0; i < newest.size(); i++) {
+            int median = median(newest.getName(i));
+            total += median >= 0 ? median : newest.getDuration(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param current
+     * @param ratio a test is reported when its duration exceeds the baseline by this factor
+     * @return the passing tests of {@code current} that got slower, biggest slowdown first
+     */
+    public List<VsTestDurationRegressionAction.Slowdown> slowdowns(VsTestResultIndex current, double ratio) {
+        List<VsTestDurationRegressionAction.Slowdown> slowdowns = new ArrayList<>();
+        for (int i = 0; i < current.size(); i++) {
+            if (current.getOutcome(i) != VsTestOutcome.PASSED) {
+                continue;
+            }
+            int baseline = median(current.getName(i));
+            if (baseline >= MIN_BASELINE_MILLIS && current.getDuration(i) > baseline * ratio) {
+                slowdowns.add(new VsTestDurationRegressionAction.Slowdown(current.getName(i), baseline, current.getDuration(i)));
+            }
+        }
+        Collections.sort(slowdowns, BY_DELTA);
+        return slowdowns;
+    }
+
+    /* package */ static final Comparator<VsTestDurationRegressionAction.Slowdown> BY_DELTA = new Comparator<VsTestDurationRegressionAction.Slowdown>() {
+        @Override
+        public int compare(VsTestDurationRegressionAction.Slowdown a, VsTestDurationRegressionAction.Slowdown b) {
+            return Long.compare(b.getDelta(), a.getDelta());
+        }
+    };
+}
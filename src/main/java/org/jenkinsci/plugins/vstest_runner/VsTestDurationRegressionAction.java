@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Action;
+
+/**
+ * Lists the tests of a build that got slower than their rolling baseline.
+ */
+public class VsTestDurationRegressionAction implements Action {
+
+    /** Number of slowdowns shown on the build page. */
+    public static final int SUMMARY_SIZE = 10;
+
+    private final double ratio;
+    private final List<Slowdown> slowdowns = new ArrayList<>();
+
+    public VsTestDurationRegressionAction(double ratio) {
+        this.ratio = ratio;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    public synchronized List<Slowdown> getSlowdowns() {
+        return Collections.unmodifiableList(new ArrayList<>(slowdowns));
+    }
+
+    /**
+     * @return the biggest slowdowns, at most {@link #SUMMARY_SIZE}
+     */
+    public synchronized List<Slowdown> getTopSlowdowns() {
+        return new ArrayList<>(slowdowns.subList(0, Math.min(SUMMARY_SIZE, slowdowns.size())));
+    }
+
+    /* package */ synchronized void addAll(List<Slowdown> more) {
+        slowdowns.addAll(more);
+        Collections.sort(slowdowns, VsTestDurationBaseline.BY_DELTA);
+    }
+
+    public String getDisplayName() {
+        return "VSTest Duration Regressions";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * A test that got slower than its baseline.
+     */
+    public static final class Slowdown {
+
+        private final String testName;
+        private final int baseline;
+        private final int duration;
+
+        public Slowdown(String testName, int baseline, int duration) {
+            this.testName = testName;
+            this.baseline = baseline;
+            this.duration = duration;
+        }
+
+        public String getTestName() {
+            return testName;
+        }
+
+        public int getBaseline() {
+            return baseline;
+        }
+
+        public int getDuration() {
+            return duration;
+        }
+
+        public long getDelta() {
+            return (long) duration - baseline;
+        }
+
+        public double getRatio() {
+            return baseline > 0 ? (double) duration / baseline : 0;
+        }
+    }
+}
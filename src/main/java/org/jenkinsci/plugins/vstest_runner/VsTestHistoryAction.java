@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import jenkins.model.TransientActionFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Exposes {@link VsTestResultHistory} of a job as {@code job/NAME/vstestHistory/test?name=...}.
+ */
+public class VsTestHistoryAction implements Action {
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    private final Job<?, ?> job;
+
+    public VsTestHistoryAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    @SuppressWarnings("unused") // Used by Stapler
+    public void doTest(@QueryParameter String name, @QueryParameter int limit, StaplerResponse rsp) throws IOException {
+        JSONArray samples = new JSONArray();
+        if (name != null) {
+            for (VsTestResultHistory.Sample sample : VsTestResultHistory.of(job, name, limit > 0 ? limit : DEFAULT_LIMIT)) {
+                JSONObject o = new JSONObject();
+                o.put("build", sample.getBuildNumber());
+                o.put("outcome", sample.getOutcome().toString());
+                o.put("duration", sample.getDuration());
+                samples.add(o);
+            }
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(samples.toString());
+    }
+
+    public String getDisplayName() {
+        return "VSTest History";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "vstestHistory";
+    }
+
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @NonNull
+        @Override
+        public Collection<? extends Action> createFor(@NonNull Job target) {
+            return Collections.singleton(new VsTestHistoryAction(target));
+        }
+    }
+}
@@ -1,21 +1,30 @@
 package org.jenkinsci.plugins.vstest_runner;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import hudson.console.LineTransformationOutputStream;
 import hudson.model.TaskListener;
 
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
 /**
  * @author a.filatov
  * 31.03.2014.
  */
 public class VsTestListenerDecorator extends LineTransformationOutputStream {
 
+    /** Length in bytes after which a line is streamed to the log instead of being buffered. */
+    public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
     private final static String TRX_PATTERN = "^Results File: (.*\\.trx)$";
     private final static int TRX_GROUP = 1;
 
@@ -24,27 +33,227 @@ public class VsTestListenerDecorator extends LineTransformationOutputStream {
     private final static String COVERAGE_PATTERN = "^\\s*(.*\\.coverage)$";
     private final static int COVERAGE_GROUP = 1;
 
+    private final static String ATTACHMENT_PATTERN = "^\\s+(\\S.*?)\\s*$";
+    private final static int ATTACHMENT_GROUP = 1;
+
+    private final static String PASSED_PATTERN = "^\\s*(Passed|\u2713)\\s+\\S";
+    private final static String RESULT_PATTERN = "^\\s*(Failed|Skipped|NotRunnable|X|!)\\s+\\S";
+    private final static String FAILURE_PATTERN = "^\\s*((Failed|X)\\s|Error Message:|Stack Trace:)";
+    private final static String TEST_PATTERN = "^\\s*(Passed|Failed|Skipped|NotRunnable|\u2713|X|!)\\s+(\\S.*?)(\\s+\\[[^\\]]*\\])?\\s*$";
+    private final static int TEST_LABEL_GROUP = 1;
+    private final static int TEST_NAME_GROUP = 2;
+    private final static String CRASH_PATTERN = "(?i)test host process crashed|host process exited unexpectedly";
+    private final static String SUMMARY_PATTERN = "^\\s*((Total tests|Passed|Failed|Skipped|Total time|Results File|Attachments)\\s*:|Test Run (Successful|Failed|Aborted))";
+
     private final OutputStream listener;
 
     private final Pattern trxPattern = Pattern.compile(TRX_PATTERN);
     private final Pattern attachmentsPattern = Pattern.compile(ATTACHMENTS_PATTERN);
     private final Pattern coveragePattern = Pattern.compile(COVERAGE_PATTERN);
+    private final Pattern attachmentPattern = Pattern.compile(ATTACHMENT_PATTERN);
+    private final Pattern passedPattern = Pattern.compile(PASSED_PATTERN);
+    private final Pattern resultPattern = Pattern.compile(RESULT_PATTERN);
+    private final Pattern failurePattern = Pattern.compile(FAILURE_PATTERN);
+    private final Pattern summaryPattern = Pattern.compile(SUMMARY_PATTERN);
+    private final Pattern testPattern = Pattern.compile(TEST_PATTERN);
+    private final Pattern crashPattern = Pattern.compile(CRASH_PATTERN);
+
+    /** Ring buffer of suppressed lines, null unless quiet mode is on. */
+    private final byte[][] context;
+    private int contextStart;
+    private int contextSize;
+    private long suppressedLines;
+    private boolean passingBlock;
 
     private boolean attachmentsSection;
+    private boolean testHostCrashed;
+    private boolean closed;
 
-    private String trxFile;
-    private String coverageFile;
+    private final int maxLineLength;
+    private int lineLength;
+    /** Whether the rest of an overlong line bypasses the line buffer. */
+    private boolean overlong;
+    /** Whether the last line, or the start of an overlong one, reached the log. */
+    private boolean lineForwarded;
+
+    /** Console segments of the tests, null unless recording them. */
+    private List<VsTestConsoleIndex.Segment> segments;
+    private File log;
+    private long base = -1;
+    private long written;
+    private String segmentName;
+    private VsTestOutcome segmentOutcome;
+    private long segmentStart;
+    private boolean segmentsDiscarded;
+
+    private final List<String> trxFiles = new ArrayList<>();
+    private final List<String> coverageFiles = new ArrayList<>();
+    private final List<String> attachments = new ArrayList<>();
 
     public VsTestListenerDecorator(TaskListener listener) {
-        this.listener = listener != null ? listener.getLogger() : null;
+        this(listener, false, 0);
+    }
+
+    /**
+     * @param listener
+     * @param quiet drop passing test lines and the output that follows them
+     * @param contextLines number of dropped lines kept and printed before a failure
+     */
+    public VsTestListenerDecorator(TaskListener listener, boolean quiet, int contextLines) {
+        this(listener, quiet, contextLines, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param listener
+     * @param quiet drop passing test lines and the output that follows them
+     * @param contextLines number of dropped lines kept and printed before a failure
+     * @param maxLineLength length in bytes after which the rest of a line is streamed to the
+     *                      log as is; only its start is matched and kept as context
+     */
+    public VsTestListenerDecorator(TaskListener listener, boolean quiet, int contextLines, int maxLineLength) {
+        this.listener = listener != null ? new VsTestLogForwarder(new CloseShieldOutputStream(listener.getLogger())) : null;
+        this.context = quiet ? new byte[Math.max(0, contextLines)][] : null;
+        this.maxLineLength = Math.max(1, maxLineLength);
     }
 
+    /**
+     * @return the last TRX file reported, or null
+     */
     public String getTrxFile() {
-        return trxFile;
+        return trxFiles.isEmpty() ? null : trxFiles.get(trxFiles.size() - 1);
     }
 
+    /**
+     * @return the last coverage file reported, or null
+     */
     public String getCoverageFile() {
-        return coverageFile;
+        return coverageFiles.isEmpty() ? null : coverageFiles.get(coverageFiles.size() - 1);
+    }
+
+    /**
+     * @return every TRX file reported, in order
+     */
+    public List<String> getTrxFiles() {
+        return Collections.unmodifiableList(trxFiles);
+    }
+
+    /**
+     * @return every coverage file reported, in order
+     */
+    public List<String> getCoverageFiles() {
+        return Collections.unmodifiableList(coverageFiles);
+    }
+
+    /**
+     * @return every attachment reported, coverage files included
+     */
+    public List<String> getAttachments() {
+        return Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * Starts recording where the output of each test begins and ends in {@code log}, which
+     * must be the plain file the logger of the listener appends to. Positions are offsets
+     * from the length of the log at the first line, so they are dropped when closing finds
+     * that something else wrote to the log or a filter changed the bytes in the meantime.
+     *
+     * @param log
+     */
+    public void recordSegments(File log) {
+        if (listener != null && segments == null) {
+            this.log = log;
+            segments = new ArrayList<>();
+        }
+    }
+
+    /**
+     * @return the output of each test, with positions in the log; empty unless
+     *         {@link #recordSegments(File)} was called
+     */
+    public List<VsTestConsoleIndex.Segment> getSegments() {
+        return segments != null ? Collections.unmodifiableList(segments) : Collections.<VsTestConsoleIndex.Segment>emptyList();
+    }
+
+    /**
+     * @return whether the log did not grow by exactly the bytes written through this
+     *         decorator, so the recorded segments were dropped on {@link #close()}
+     */
+    public boolean isSegmentsDiscarded() {
+        return segmentsDiscarded;
+    }
+
+    /**
+     * @return number of lines that quiet mode kept out of the log
+     */
+    public long getSuppressedLines() {
+        return suppressedLines;
+    }
+
+    /**
+     * @return whether vstest.console reported that a test host process crashed
+     */
+    public boolean isTestHostCrashed() {
+        return testHostCrashed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (overlong) {
+            write(new byte[] {(byte) b}, 0, 1);
+            return;
+        }
+        super.write(b);
+        if (b == '\n') {
+            lineLength = 0;
+        } else if (++lineLength >= maxLineLength) {
+            // hand the start of the line to eol and stream the rest
+            overlong = true;
+            forceEol();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (overlong) {
+                int stop = i;
+                while (stop < end && b[stop] != '\n') {
+                    stop++;
+                }
+                if (stop < end) {
+                    stop++;
+                    overlong = false;
+                    lineLength = 0;
+                }
+                passThrough(b, i, stop - i);
+                i = stop;
+            } else {
+                write(b[i++]);
+            }
+        }
+    }
+
+    /**
+     * Forwards the rest of an overlong line if its start was forwarded, in pieces no larger
+     * than the line limit.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    private void passThrough(byte[] b, int off, int len) throws IOException {
+        if (listener == null || !lineForwarded) {
+            return;
+        }
+        for (int i = off; i < off + len; i += maxLineLength) {
+            int n = Math.min(maxLineLength, off + len - i);
+            listener.write(b, i, n);
+            written += n;
+            VsTestMetrics.CONSOLE_BYTES.add(n);
+        }
     }
 
     @Override
@@ -54,32 +263,185 @@ public class VsTestListenerDecorator extends LineTransformationOutputStream {
             return;
         }
 
+        VsTestMetrics.CONSOLE_LINES.increment();
         String line = new String(bytes, 0, len, Charset.defaultCharset());
 
         Matcher trxMatcher = trxPattern.matcher(line);
         if (trxMatcher.find()) {
-            trxFile = trxMatcher.group(TRX_GROUP);
+            trxFiles.add(trxMatcher.group(TRX_GROUP));
         }
 
+        if (attachmentsSection) {
+            // the section lists one indented path per line and ends at the first other line
+            Matcher attachmentMatcher = attachmentPattern.matcher(line);
+            if (attachmentMatcher.find()) {
+                attachments.add(attachmentMatcher.group(ATTACHMENT_GROUP));
+                Matcher coverageMatcher = coveragePattern.matcher(line);
+                if (coverageMatcher.find()) {
+                    coverageFiles.add(coverageMatcher.group(COVERAGE_GROUP).trim());
+                }
+            } else {
+                attachmentsSection = false;
+            }
+        }
         if (!attachmentsSection) {
             Matcher attachmentsMatcher = attachmentsPattern.matcher(line);
 
             if (attachmentsMatcher.matches()) {
                 attachmentsSection = true;
             }
-        } else {
-            Matcher coverageMatcher = coveragePattern.matcher(line);
-            if (coverageMatcher.find()) {
-                coverageFile = coverageMatcher.group(COVERAGE_GROUP);
+        }
+
+        if (!testHostCrashed && crashPattern.matcher(line).find()) {
+            testHostCrashed = true;
+        }
+
+        byte[] out = line.getBytes(Charset.defaultCharset());
+        // the start of an overlong line is kept as a line of its own if it becomes context
+        if (context != null && suppress(line, overlong ? (line + " [...]\n").getBytes(Charset.defaultCharset()) : out)) {
+            lineForwarded = false;
+            return;
+        }
+        lineForwarded = true;
+        forward(out, line);
+    }
+
+    /**
+     * Writes a line to the log, starting a new segment at each test result and ending
+     * the current one at the summary.
+     *
+     * @param bytes
+     * @param line
+     * @throws IOException
+     */
+    private void forward(byte[] bytes, String line) throws IOException {
+        if (segments != null) {
+            if (base < 0) {
+                // whatever the build wrote before the first line has reached the file by now
+                listener.flush();
+                base = log.length();
+            }
+            Matcher testMatcher = testPattern.matcher(line);
+            if (testMatcher.find()) {
+                endSegment();
+                segmentName = testMatcher.group(TEST_NAME_GROUP);
+                segmentOutcome = outcome(testMatcher.group(TEST_LABEL_GROUP));
+                segmentStart = written;
+            } else if (summaryPattern.matcher(line).find()) {
+                endSegment();
+            }
+        }
+        listener.write(bytes);
+        written += bytes.length;
+        VsTestMetrics.CONSOLE_BYTES.add(bytes.length);
+    }
+
+    private void endSegment() {
+        if (segmentName != null) {
+            segments.add(new VsTestConsoleIndex.Segment(segmentName, segmentOutcome, base + segmentStart, (int) Math.min(Integer.MAX_VALUE, written - segmentStart)));
+            segmentName = null;
+        }
+    }
+
+    private static VsTestOutcome outcome(String label) {
+        switch (label) {
+            case "Passed":
+            case "\u2713":
+                return VsTestOutcome.PASSED;
+            case "Failed":
+            case "X":
+                return VsTestOutcome.FAILED;
+            case "Skipped":
+            case "!":
+                return VsTestOutcome.SKIPPED;
+            default:
+                return VsTestOutcome.OTHER;
+        }
+    }
+
+    /**
+     * Quiet mode: lines of passing tests go to the context buffer instead of the log.
+     * Failures flush the buffer so that the lines leading up to them are still visible;
+     * summaries and the results and attachment paths always pass through.
+     *
+     * @param line
+     * @param bytes
+     * @return true if the line was kept out of the log
+     * @throws IOException
+     */
+    private boolean suppress(String line, byte[] bytes) throws IOException {
+        if (attachmentsSection || summaryPattern.matcher(line).find()) {
+            passingBlock = false;
+            return false;
+        }
+        if (failurePattern.matcher(line).find()) {
+            passingBlock = false;
+            flushContext();
+            return false;
+        }
+        if (passedPattern.matcher(line).find()) {
+            passingBlock = true;
+        } else if (resultPattern.matcher(line).find()) {
+            passingBlock = false;
+        }
+        if (!passingBlock) {
+            return false;
+        }
+
+        suppressedLines++;
+        if (context.length > 0) {
+            if (contextSize == context.length) {
+                context[contextStart] = bytes;
+                contextStart = (contextStart + 1) % context.length;
+            } else {
+                context[(contextStart + contextSize) % context.length] = bytes;
+                contextSize++;
             }
         }
+        return true;
+    }
 
-        listener.write(line.getBytes(Charset.defaultCharset()));
+    private void flushContext() throws IOException {
+        for (int i = 0; i < contextSize; i++) {
+            int slot = (contextStart + i) % context.length;
+            forward(context[slot], new String(context[slot], Charset.defaultCharset()));
+            context[slot] = null;
+            suppressedLines--;
+        }
+        contextStart = 0;
+        contextSize = 0;
+    }
+
+    /**
+     * Waits until all complete lines written so far have reached the build log.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (listener != null) {
+            listener.flush();
+        }
     }
 
+    /**
+     * Writes any trailing partial line and stops forwarding. The build log itself stays open.
+     */
     @Override
     public void close() throws IOException {
         super.close();
-        listener.close();
+        if (!closed) {
+            closed = true;
+            VsTestMetrics.SUPPRESSED_LINES.add(suppressedLines);
+            if (segments != null) {
+                endSegment();
+            }
+        }
+        if (listener != null) {
+            listener.close();
+        }
+        if (segments != null && !segments.isEmpty() && log.length() != base + written) {
+            // another writer or a byte-changing log filter moved the output, positions are off
+            segments.clear();
+            segmentsDiscarded = true;
+        }
     }
 }
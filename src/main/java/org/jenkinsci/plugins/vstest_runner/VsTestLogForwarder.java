@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Forwards console output to the build log from a background thread.
+ * <p>
+ * Writes are coalesced into chunks of {@code chunkSize} bytes, which are handed to the
+ * writer thread when full or after {@code flushMillis} without one filling up. At most
+ * {@code maxPendingBytes} may wait for the writer; beyond that writers block, so a slow
+ * log slows down the producer instead of growing the heap. Writes larger than a chunk
+ * are handed over chunk by chunk.
+ * <p>
+ * The writer threads come from a shared pool of named daemon threads.
+ */
+public class VsTestLogForwarder extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_PENDING_BYTES = 1024 * 1024;
+    public static final long DEFAULT_FLUSH_MILLIS = 200;
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "VsTestLogForwarder"));
+
+    private final OutputStream out;
+    private final int chunkSize;
+    private final int maxPendingBytes;
+    private final long flushMillis;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private final ByteArrayOutputStream current;
+
+    /** Bytes handed to the writer and not yet written to {@link #out}. */
+    private int pendingBytes;
+    private boolean writing;
+    private boolean closed;
+    private boolean finished;
+    private IOException failure;
+
+    public VsTestLogForwarder(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_PENDING_BYTES, DEFAULT_FLUSH_MILLIS);
+    }
+
+    public VsTestLogForwarder(OutputStream out, int chunkSize, int maxPendingBytes, long flushMillis) {
+        this.out = out;
+        this.chunkSize = chunkSize;
+        this.maxPendingBytes = Math.max(chunkSize, maxPendingBytes);
+        this.flushMillis = flushMillis;
+        this.current = new ByteArrayOutputStream(chunkSize);
+        WRITERS.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } finally {
+                    synchronized (lock) {
+                        finished = true;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            while (len > 0) {
+                try {
+                    while (pendingBytes >= maxPendingBytes && failure == null) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                checkOpen();
+                int n = Math.min(len, chunkSize - current.size());
+                current.write(b, off, n);
+                off += n;
+                len -= n;
+                if (current.size() >= chunkSize) {
+                    handOff();
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until everything written so far has reached the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            handOff();
+            try {
+                while ((!pending.isEmpty() || writing) && failure == null) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkOpen();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            handOff();
+            closed = true;
+            lock.notifyAll();
+        }
+        synchronized (lock) {
+            try {
+                while (!finished) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        try {
+            out.close();
+        } finally {
+            synchronized (lock) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /** Moves the partial chunk to the writer. Callers hold {@link #lock}. */
+    private void handOff() {
+        if (current.size() > 0) {
+            pending.add(current.toByteArray());
+            pendingBytes += current.size();
+            current.reset();
+            lock.notifyAll();
+        }
+    }
+
+    private void drain() {
+        List<byte[]> chunks = new ArrayList<>();
+        while (true) {
+            synchronized (lock) {
+                writing = false;
+                lock.notifyAll();
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait(flushMillis);
+                        handOff();
+                    }
+                } catch (InterruptedException e) {
+                    failure = new InterruptedIOException();
+                    lock.notifyAll();
+                    return;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                chunks.addAll(pending);
+                pending.clear();
+                writing = true;
+                lock.notifyAll();
+            }
+            try {
+                for (byte[] chunk : chunks) {
+                    out.write(chunk);
+                    synchronized (lock) {
+                        // room for the producer only once the chunk is out of the heap
+                        pendingBytes -= chunk.length;
+                        lock.notifyAll();
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    writing = false;
+                    pending.clear();
+                    pendingBytes = 0;
+                    lock.notifyAll();
+                }
+                return;
+            } finally {
+                chunks.clear();
+            }
+        }
+    }
+}
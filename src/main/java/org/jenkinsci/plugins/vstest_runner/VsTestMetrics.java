@@ -0,0 +1,256 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Controller-wide counters and histograms of vsTest steps, served at
+ * {@code vstest-metrics/prometheus} in the Prometheus text format and at
+ * {@code vstest-metrics/api/json}.
+ * <p>
+ * Updates only touch {@link LongAdder}s, so steps never contend on a lock to record them.
+ * Values start from zero when the controller starts.
+ */
+@Extension
+@ExportedBean
+public class VsTestMetrics implements RootAction {
+
+    private static final long[] MILLIS_BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 1800000};
+    private static final long[] BYTES_BUCKETS = {1L << 10, 1L << 14, 1L << 16, 1L << 20, 1L << 22, 1L << 24, 1L << 26, 1L << 28, 1L << 30};
+
+    public static final Counter RUNS = new Counter("vstest_runs_total", "vstest.console runs started");
+    public static final Counter FAILED_RUNS = new Counter("vstest_failed_runs_total", "Runs that exited with a non-zero code");
+    public static final Counter SHARED_RUNS = new Counter("vstest_shared_runs_total", "Steps that reused the run of a concurrent build");
+    public static final Counter CONSOLE_LINES = new Counter("vstest_console_lines_total", "Console lines read from vstest.console");
+    public static final Counter CONSOLE_BYTES = new Counter("vstest_console_bytes_total", "Console bytes forwarded to build logs");
+    public static final Counter SUPPRESSED_LINES = new Counter("vstest_console_suppressed_lines_total", "Console lines kept out of build logs by quiet mode");
+
+    public static final Histogram LAUNCH_OVERHEAD = new Histogram("vstest_launch_overhead_seconds", "Time from the start of the step to the launch of the tests", MILLIS_BUCKETS, 0.001);
+    public static final Histogram WAIT = new Histogram("vstest_wait_seconds", "Time spent waiting for the run of a concurrent build", MILLIS_BUCKETS, 0.001);
+    public static final Histogram RUN_DURATION = new Histogram("vstest_run_duration_seconds", "Wall time of test runs", MILLIS_BUCKETS, 0.001);
+    public static final Histogram RESULT_FILE_SIZE = new Histogram("vstest_result_file_bytes", "Size of TRX files", BYTES_BUCKETS, 1);
+
+    private static final List<Counter> COUNTERS = Collections.unmodifiableList(Arrays.asList(
+            RUNS, FAILED_RUNS, SHARED_RUNS, CONSOLE_LINES, CONSOLE_BYTES, SUPPRESSED_LINES));
+    private static final List<Histogram> HISTOGRAMS = Collections.unmodifiableList(Arrays.asList(
+            LAUNCH_OVERHEAD, WAIT, RUN_DURATION, RESULT_FILE_SIZE));
+
+    @Exported
+    public List<Counter> getCounters() {
+        return COUNTERS;
+    }
+
+    @Exported
+    public List<Histogram> getHistograms() {
+        return HISTOGRAMS;
+    }
+
+    public Api getApi() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return new Api(this);
+    }
+
+    @SuppressWarnings("unused") // Used by Stapler
+    public void doPrometheus(StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        writePrometheus(rsp.getWriter());
+    }
+
+    /**
+     * @param out receives the metrics in the Prometheus text format, which requires {@code \n} line ends
+     */
+    /* package */ static void writePrometheus(PrintWriter out) {
+        for (Counter counter : COUNTERS) {
+            counter.writePrometheus(out);
+        }
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.writePrometheus(out);
+        }
+        out.flush();
+    }
+
+    public String getDisplayName() {
+        return "VSTest Metrics";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "vstest-metrics";
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * A value that only goes up.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Counter {
+
+        private final String name;
+        private final String help;
+        private final LongAdder value = new LongAdder();
+
+        /* package */ Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getValue() {
+            return value.sum();
+        }
+
+        private void writePrometheus(PrintWriter out) {
+            out.print("# HELP " + name + " " + help + "\n");
+            out.print("# TYPE " + name + " counter\n");
+            out.print(name + " " + getValue() + "\n");
+        }
+    }
+
+    /**
+     * Counts of observed values per bucket, with their sum. Buckets hold the values up to
+     * and including their bound; the last, unbounded bucket holds the rest.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Histogram {
+
+        private final String name;
+        private final String help;
+        private final long[] bounds;
+        private final double scale;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * @param name
+         * @param help
+         * @param bounds ascending upper bounds of the buckets, in the unit values are observed in
+         * @param scale factor from that unit to the unit of {@code name}
+         */
+        /* package */ Histogram(String name, String help, long[] bounds, double scale) {
+            this.name = name;
+            this.help = help;
+            this.bounds = bounds.clone();
+            this.scale = scale;
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        @Exported
+        public double getSum() {
+            return sum.sum() * scale;
+        }
+
+        @Exported
+        public double getP50() {
+            return quantile(0.5);
+        }
+
+        @Exported
+        public double getP95() {
+            return quantile(0.95);
+        }
+
+        @Exported
+        public double getP99() {
+            return quantile(0.99);
+        }
+
+        /**
+         * @param q
+         * @return the upper bound of the bucket holding the {@code q} quantile, 0 without
+         *         values and the largest bound if it is in the unbounded bucket
+         */
+        /* package */ double quantile(double q) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return bounds[i] * scale;
+                }
+            }
+            return bounds[bounds.length - 1] * scale;
+        }
+
+        private void writePrometheus(PrintWriter out) {
+            out.print("# HELP " + name + " " + help + "\n");
+            out.print("# TYPE " + name + " histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length
+                        ? BigDecimal.valueOf(bounds[i]).multiply(BigDecimal.valueOf(scale)).stripTrailingZeros().toPlainString() : "+Inf";
+                out.print(name + "_bucket{le=\"" + le + "\"} " + cumulative + "\n");
+            }
+            out.print(name + "_sum " + format(getSum()) + "\n");
+            out.print(name + "_count " + cumulative + "\n");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+public enum VsTestOutcome {
+    PASSED("Passed"),
+    FAILED("Failed"),
+    SKIPPED("NotExecuted"),
+    OTHER("Other");
+
+    private final String name;
+
+    VsTestOutcome(String s) {
+        name = s;
+    }
+
+    /**
+     * @param outcome the outcome attribute of a TRX UnitTestResult
+     * @return the matching outcome, {@link #OTHER} for anything unrecognised
+     */
+    public static VsTestOutcome fromTrx(String outcome) {
+        if (outcome == null) {
+            return OTHER;
+        }
+        switch (outcome) {
+            case "Passed":
+            case "PassedButRunAborted":
+                return PASSED;
+            case "Failed":
+            case "Error":
+            case "Timeout":
+            case "Aborted":
+                return FAILED;
+            case "NotExecuted":
+            case "NotRunnable":
+            case "Inconclusive":
+                return SKIPPED;
+            default:
+                return OTHER;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
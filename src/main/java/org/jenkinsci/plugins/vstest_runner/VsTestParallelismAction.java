@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Parallelism settings a vsTest step ran with, and how long the run took,
+ * so the settings can be tuned against measured run times.
+ */
+@ExportedBean
+public class VsTestParallelismAction implements Action {
+
+    private final int cores;
+    private final String maxCpuCount;
+    private final String batchSize;
+    private long durationMillis = -1;
+
+    public VsTestParallelismAction(int cores, String maxCpuCount, String batchSize) {
+        this.cores = cores;
+        this.maxCpuCount = maxCpuCount;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return number of processors of the node
+     */
+    @Exported
+    public int getCores() {
+        return cores;
+    }
+
+    @Exported
+    public String getMaxCpuCount() {
+        return maxCpuCount;
+    }
+
+    @Exported
+    public String getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return wall time of vstest.console, or -1 if it did not complete
+     */
+    @Exported
+    public synchronized long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /* package */ synchronized void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public String getDisplayName() {
+        return "VSTest Parallelism";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
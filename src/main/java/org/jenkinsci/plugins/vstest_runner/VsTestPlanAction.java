@@ -0,0 +1,216 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * What the vsTest steps of a plan-only build would have run, with a runtime estimate
+ * from earlier builds. The plan is also written to {@code vstest-plan.json} in the
+ * build directory and served from {@code vstestPlan/vstest-plan.json}.
+ */
+@ExportedBean
+public class VsTestPlanAction implements RunAction2 {
+
+    public static final String FILE_NAME = "vstest-plan.json";
+
+    private final List<Step> steps = new ArrayList<>();
+
+    private transient Run<?, ?> run;
+
+    /**
+     * Adds the plan of one step and rewrites the plan file of the build.
+     *
+     * @param run
+     * @param step
+     * @throws IOException
+     */
+    public static void add(Run<?, ?> run, Step step) throws IOException {
+        VsTestPlanAction action;
+        synchronized (run) {
+            action = run.getAction(VsTestPlanAction.class);
+            if (action == null) {
+                action = new VsTestPlanAction();
+                run.addAction(action);
+            }
+        }
+        synchronized (action) {
+            action.steps.add(step);
+            JSONArray json = new JSONArray();
+            for (Step s : action.steps) {
+                json.add(s.toJSON());
+            }
+            FileUtils.writeStringToFile(new File(run.getRootDir(), FILE_NAME), json.toString(2), StandardCharsets.UTF_8.name());
+        }
+    }
+
+    @Exported
+    public synchronized List<Step> getSteps() {
+        return Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    @SuppressWarnings("unused") // Used by Stapler
+    public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        run.checkPermission(Item.READ);
+        File file = new File(run.getRootDir(), FILE_NAME);
+        if (!req.getRestOfPath().replaceFirst("^/", "").equals(FILE_NAME) || !file.isFile()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        try (FileInputStream in = new FileInputStream(file)) {
+            rsp.serveFile(req, in, file.lastModified(), file.length(), FILE_NAME);
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public String getDisplayName() {
+        return "VSTest Plan";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return "vstestPlan";
+    }
+
+    /**
+     * The plan of one vsTest step.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Step {
+
+        private final String node;
+        private final String vsTestExe;
+        private final String mode;
+        private final List<String> assemblies;
+        private final List<String> arguments;
+        private final String runSettings;
+        private final boolean coverage;
+        private final int estimatedTests;
+        private final long estimatedMillis;
+
+        /**
+         * @param node
+         * @param vsTestExe
+         * @param mode how vstest.console would be run
+         * @param assemblies test assemblies relative to the workspace
+         * @param arguments full argument list, starting with the executable
+         * @param runSettings generated run settings, if any
+         * @param coverage whether code coverage would be collected
+         * @param estimatedTests number of tests in the newest indexed build, 0 without history
+         * @param estimatedMillis estimated wall time, -1 without history
+         */
+        public Step(String node, String vsTestExe, String mode, List<String> assemblies, List<String> arguments,
+                    @CheckForNull String runSettings, boolean coverage, int estimatedTests, long estimatedMillis) {
+            this.node = node;
+            this.vsTestExe = vsTestExe;
+            this.mode = mode;
+            this.assemblies = new ArrayList<>(assemblies);
+            this.arguments = new ArrayList<>(arguments);
+            this.runSettings = runSettings;
+            this.coverage = coverage;
+            this.estimatedTests = estimatedTests;
+            this.estimatedMillis = estimatedMillis;
+        }
+
+        @Exported
+        public String getNode() {
+            return node;
+        }
+
+        @Exported
+        public String getVsTestExe() {
+            return vsTestExe;
+        }
+
+        @Exported
+        public String getMode() {
+            return mode;
+        }
+
+        @Exported
+        public List<String> getAssemblies() {
+            return Collections.unmodifiableList(assemblies);
+        }
+
+        @Exported
+        public List<String> getArguments() {
+            return Collections.unmodifiableList(arguments);
+        }
+
+        /**
+         * @return the arguments joined as vstest.console would be invoked
+         */
+        public String getCommandLine() {
+            return Util.join(arguments, " ");
+        }
+
+        @Exported
+        @CheckForNull
+        public String getRunSettings() {
+            return runSettings;
+        }
+
+        @Exported
+        public boolean isCoverage() {
+            return coverage;
+        }
+
+        @Exported
+        public int getEstimatedTests() {
+            return estimatedTests;
+        }
+
+        @Exported
+        public long getEstimatedMillis() {
+            return estimatedMillis;
+        }
+
+        private JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("node", node);
+            json.put("vsTestExe", vsTestExe);
+            json.put("mode", mode);
+            json.put("assemblies", JSONArray.fromObject(assemblies));
+            json.put("arguments", JSONArray.fromObject(arguments));
+            if (runSettings != null) {
+                json.put("runSettings", runSettings);
+            }
+            json.put("coverage", coverage);
+            json.put("estimatedTests", estimatedTests);
+            json.put("estimatedMillis", estimatedMillis);
+            return json;
+        }
+    }
+}
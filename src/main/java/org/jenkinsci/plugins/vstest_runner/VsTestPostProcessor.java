@@ -0,0 +1,147 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Runs the post-processing of finished test runs, such as recording, archiving and
+ * indexing their results, in the background while the step carries on with its next run.
+ * <p>
+ * Tasks run one at a time in the order they were submitted, so results are recorded in
+ * the same order as without the pipeline. At most {@code capacity} tasks are pending;
+ * submitting more blocks until one finishes. The step {@linkplain #join() joins} the
+ * pipeline before it completes.
+ */
+/* package */ final class VsTestPostProcessor implements AutoCloseable {
+
+    /** Number of tasks pending before submitting blocks. */
+    private static final int CAPACITY = Integer.getInteger(VsTestPostProcessor.class.getName() + ".capacity", 4);
+
+    /**
+     * Post-processing of one run.
+     */
+    interface Task {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private final TaskListener listener;
+    private final Semaphore slots;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "VsTestPostProcessor"));
+    private volatile Throwable failure;
+    private boolean rethrown;
+
+    VsTestPostProcessor(TaskListener listener) {
+        this(listener, CAPACITY);
+    }
+
+    VsTestPostProcessor(TaskListener listener, int capacity) {
+        this.listener = listener;
+        this.slots = new Semaphore(Math.max(1, capacity));
+    }
+
+    /**
+     * Queues {@code task} behind the tasks submitted before it.
+     *
+     * @param task
+     * @param reportAs if not null, I/O failures of the task are reported under this message
+     *                 instead of failing the step
+     * @throws IOException if an earlier task failed
+     * @throws InterruptedException
+     */
+    void submit(final Task task, @CheckForNull final String reportAs) throws IOException, InterruptedException {
+        rethrow();
+        slots.acquire();
+        executor.submit(new Callable<Void>() {
+            public Void call() {
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    if (reportAs != null) {
+                        Util.displayIOException(e, listener);
+                        e.printStackTrace(listener.fatalError(reportAs));
+                    } else {
+                        fail(e);
+                    }
+                } catch (InterruptedException | RuntimeException | Error e) {
+                    fail(e);
+                } finally {
+                    slots.release();
+                }
+                return null;
+            }
+        });
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    /**
+     * Waits for all submitted tasks. No task can be submitted afterwards.
+     *
+     * @throws IOException if a task failed
+     * @throws InterruptedException
+     */
+    void join() throws IOException, InterruptedException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+        rethrow();
+    }
+
+    private synchronized void rethrow() throws IOException, InterruptedException {
+        Throwable t = failure;
+        if (t == null) {
+            return;
+        }
+        rethrown = true;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof InterruptedException) {
+            throw (InterruptedException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+
+    /**
+     * Lets the submitted tasks finish when the step ends without joining, for example
+     * because a run failed, and reports a task failure that was not rethrown.
+     * Interrupting the wait cancels the remaining tasks.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (failure != null && !rethrown) {
+                rethrown = true;
+                failure.printStackTrace(listener.error("VSTest result post-processing failed"));
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Periodically samples CPU time, resident memory and I/O of vstest.console and the
+ * test hosts it starts, using {@code /proc} on the node that runs them.
+ * <p>
+ * Processes are recognised by {@link #COOKIE_ENV}, which the step adds to the
+ * environment of vstest.console and which its children inherit. On nodes without
+ * {@code /proc} nothing is recorded. Samplers run on a shared pool of named daemon threads.
+ */
+public class VsTestResourceSampler implements Runnable {
+
+    public static final String COOKIE_ENV = "VSTEST_RUNNER_COOKIE";
+
+    /* package */ static final long INTERVAL_MILLIS = 2000;
+
+    /** How long {@link #stop()} waits for a sample in progress before interrupting it. */
+    private static final long STOP_MILLIS = 10 * 1000;
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestResourceSampler.class.getName());
+
+    private static final ExecutorService SAMPLERS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "VsTestResourceSampler"));
+
+    private final VirtualChannel channel;
+    private final String cookie;
+    private final VsTestResourceUsageAction usage = new VsTestResourceUsageAction(INTERVAL_MILLIS);
+    private final Map<Integer, ProcessSample> seen = new HashMap<>();
+    private volatile Future<?> task;
+    private volatile boolean stopped;
+    private boolean closed;
+
+    private VsTestResourceSampler(VirtualChannel channel, String cookie) {
+        this.channel = channel;
+        this.cookie = cookie;
+    }
+
+    /**
+     * @param channel channel of the node that runs vstest.console
+     * @param cookie value of {@link #COOKIE_ENV} given to vstest.console
+     * @return a running sampler
+     */
+    public static VsTestResourceSampler start(VirtualChannel channel, String cookie) {
+        VsTestResourceSampler sampler = new VsTestResourceSampler(channel, cookie);
+        sampler.task = SAMPLERS.submit(sampler);
+        return sampler;
+    }
+
+    /**
+     * Stops sampling, waiting a while for a sample in progress to complete and
+     * interrupting it after that.
+     *
+     * @return the recorded usage, or null if nothing could be sampled
+     * @throws InterruptedException
+     */
+    @CheckForNull
+    public VsTestResourceUsageAction stop() throws InterruptedException {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            task.get(STOP_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.log(Level.FINE, "Interrupting a VSTest resource sample still in progress", e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Failed to sample VSTest processes", e.getCause());
+        } finally {
+            // an interrupted build must not leave the sampler running
+            task.cancel(true);
+        }
+        synchronized (this) {
+            closed = true;
+            return usage.isEmpty() ? null : usage;
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            while (!stopped) {
+                List<ProcessSample> samples = channel.call(new ProcScanner(cookie));
+                if (samples == null) {
+                    return;
+                }
+                synchronized (this) {
+                    if (closed) {
+                        // stop() gave up waiting and returned the usage
+                        return;
+                    }
+                    if (!samples.isEmpty()) {
+                        record(System.currentTimeMillis() - start, samples);
+                    }
+                    if (!stopped) {
+                        wait(INTERVAL_MILLIS);
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.FINE, "Failed to sample VSTest processes", e);
+        }
+    }
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private void record(long elapsed, List<ProcessSample> samples) {
+        long rss = 0;
+        for (ProcessSample sample : samples) {
+            seen.put(sample.pid, sample);
+            rss += sample.rssBytes;
+        }
+        // processes that already exited keep contributing their last known totals
+        long cpu = 0;
+        long read = 0;
+        long write = 0;
+        for (ProcessSample sample : seen.values()) {
+            cpu += sample.cpuMillis;
+            read += sample.readBytes;
+            write += sample.writeBytes;
+        }
+        usage.add(elapsed, cpu, rss, read, write, samples.size());
+    }
+
+    /**
+     * Counters of one process at one point in time.
+     */
+    /* package */ static final class ProcessSample implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int pid;
+        final long cpuMillis;
+        final long rssBytes;
+        final long readBytes;
+        final long writeBytes;
+
+        ProcessSample(int pid, long cpuMillis, long rssBytes, long readBytes, long writeBytes) {
+            this.pid = pid;
+            this.cpuMillis = cpuMillis;
+            this.rssBytes = rssBytes;
+            this.readBytes = readBytes;
+            this.writeBytes = writeBytes;
+        }
+    }
+
+    /**
+     * Reads {@code /proc} on the node. Returns null if the node has no {@code /proc}.
+     */
+    /* package */ static final class ProcScanner extends MasterToSlaveCallable<List<ProcessSample>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** USER_HZ, which is 100 on every mainstream Linux architecture. */
+        private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+        private final String cookie;
+
+        ProcScanner(String cookie) {
+            this.cookie = cookie;
+        }
+
+        @Override
+        public List<ProcessSample> call() throws IOException {
+            File[] procs = new File("/proc").listFiles();
+            if (procs == null || !new File("/proc/self/stat").exists()) {
+                return null;
+            }
+            byte[] marker = (COOKIE_ENV + "=" + cookie).getBytes(StandardCharsets.UTF_8);
+            List<ProcessSample> samples = new ArrayList<>();
+            for (File proc : procs) {
+                int pid;
+                try {
+                    pid = Integer.parseInt(proc.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                try {
+                    if (!containsEntry(Files.readAllBytes(new File(proc, "environ").toPath()), marker)) {
+                        continue;
+                    }
+                    String io = readOrEmpty(new File(proc, "io"));
+                    samples.add(new ProcessSample(pid,
+                            parseCpuMillis(read(new File(proc, "stat"))),
+                            parseField(read(new File(proc, "status")), "VmRSS:") * 1024,
+                            parseField(io, "read_bytes:"),
+                            parseField(io, "write_bytes:")));
+                } catch (IOException | NumberFormatException e) {
+                    // not ours to read, or exited while scanning
+                }
+            }
+            return samples;
+        }
+
+        private static String read(File file) throws IOException {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        }
+
+        private static String readOrEmpty(File file) {
+            try {
+                return read(file);
+            } catch (IOException e) {
+                return "";
+            }
+        }
+
+        /**
+         * @param environ NUL separated entries of {@code /proc/PID/environ}
+         * @param entry
+         * @return
+         */
+        /* package */ static boolean containsEntry(byte[] environ, byte[] entry) {
+            int start = 0;
+            for (int i = 0; i <= environ.length; i++) {
+                if (i == environ.length || environ[i] == 0) {
+                    if (i - start == entry.length) {
+                        boolean match = true;
+                        for (int j = 0; j < entry.length && match; j++) {
+                            match = environ[start + j] == entry[j];
+                        }
+                        if (match) {
+                            return true;
+                        }
+                    }
+                    start = i + 1;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param stat content of {@code /proc/PID/stat}
+         * @return user plus system time in milliseconds
+         */
+        /* package */ static long parseCpuMillis(String stat) {
+            // the command name may contain spaces and parentheses, fields start after the last ')'
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split("\\s+");
+            if (fields.length < 13) {
+                return 0;
+            }
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+        }
+
+        /**
+         * @param content
+         * @param key
+         * @return the first number after {@code key}, 0 if there is none
+         */
+        /* package */ static long parseField(String content, String key) {
+            int at = content.indexOf(key);
+            if (at < 0) {
+                return 0;
+            }
+            int i = at + key.length();
+            while (i < content.length() && !Character.isDigit(content.charAt(i)) && content.charAt(i) != '\n') {
+                i++;
+            }
+            long value = 0;
+            while (i < content.length() && Character.isDigit(content.charAt(i))) {
+                value = value * 10 + (content.charAt(i++) - '0');
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * CPU, memory and I/O used by vstest.console and its test hosts during one vsTest step.
+ * <p>
+ * The time series is capped at {@link #MAX_POINTS}; when it fills up every other point
+ * is dropped and the sampling stride doubles, so long runs keep an even resolution.
+ */
+@ExportedBean
+public class VsTestResourceUsageAction implements Action {
+
+    public static final int MAX_POINTS = 120;
+
+    private final long intervalMillis;
+    private final List<Point> points = new ArrayList<>();
+    private int stride = 1;
+    private int skipped;
+
+    private int samples;
+    private long elapsedMillis;
+    private long cpuMillis;
+    private long peakCpuPercent;
+    private long peakRssBytes;
+    private long rssSum;
+    private long readBytes;
+    private long writeBytes;
+    private int peakProcesses;
+
+    private transient long lastElapsed;
+    private transient long lastCpu;
+
+    public VsTestResourceUsageAction(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /* package */ synchronized void add(long elapsed, long cpu, long rss, long read, long write, int processes) {
+        long cpuPercent = samples > 0 && elapsed > lastElapsed ? (cpu - lastCpu) * 100 / (elapsed - lastElapsed) : 0;
+        lastElapsed = elapsed;
+        lastCpu = cpu;
+
+        samples++;
+        elapsedMillis = elapsed;
+        cpuMillis = cpu;
+        peakCpuPercent = Math.max(peakCpuPercent, cpuPercent);
+        peakRssBytes = Math.max(peakRssBytes, rss);
+        rssSum += rss;
+        readBytes = read;
+        writeBytes = write;
+        peakProcesses = Math.max(peakProcesses, processes);
+
+        if (++skipped < stride) {
+            return;
+        }
+        skipped = 0;
+        points.add(new Point(elapsed, cpuPercent, rss, read, write));
+        if (points.size() >= MAX_POINTS) {
+            for (int i = points.size() - 1; i > 0; i -= 2) {
+                points.remove(i - 1);
+            }
+            stride *= 2;
+        }
+    }
+
+    /* package */ synchronized boolean isEmpty() {
+        return samples == 0;
+    }
+
+    @Exported
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    @Exported
+    public synchronized long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Exported
+    public synchronized long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /**
+     * @return CPU time over wall time, where 100 is one fully used core
+     */
+    @Exported
+    public synchronized long getAverageCpuPercent() {
+        return elapsedMillis > 0 ? cpuMillis * 100 / elapsedMillis : 0;
+    }
+
+    @Exported
+    public synchronized long getPeakCpuPercent() {
+        return peakCpuPercent;
+    }
+
+    @Exported
+    public synchronized long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    @Exported
+    public synchronized long getAverageRssBytes() {
+        return samples > 0 ? rssSum / samples : 0;
+    }
+
+    @Exported
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    @Exported
+    public synchronized long getWriteBytes() {
+        return writeBytes;
+    }
+
+    @Exported
+    public synchronized int getPeakProcesses() {
+        return peakProcesses;
+    }
+
+    @Exported
+    public synchronized List<Point> getPoints() {
+        return Collections.unmodifiableList(new ArrayList<>(points));
+    }
+
+    public String getDisplayName() {
+        return "VSTest Resource Usage";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * One sample of the process tree.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Point {
+
+        private final long elapsedMillis;
+        private final long cpuPercent;
+        private final long rssBytes;
+        private final long readBytes;
+        private final long writeBytes;
+
+        public Point(long elapsedMillis, long cpuPercent, long rssBytes, long readBytes, long writeBytes) {
+            this.elapsedMillis = elapsedMillis;
+            this.cpuPercent = cpuPercent;
+            this.rssBytes = rssBytes;
+            this.readBytes = readBytes;
+            this.writeBytes = writeBytes;
+        }
+
+        @Exported
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Exported
+        public long getCpuPercent() {
+            return cpuPercent;
+        }
+
+        @Exported
+        public long getRssBytes() {
+            return rssBytes;
+        }
+
+        @Exported
+        public long getReadBytes() {
+            return readBytes;
+        }
+
+        @Exported
+        public long getWriteBytes() {
+            return writeBytes;
+        }
+    }
+}
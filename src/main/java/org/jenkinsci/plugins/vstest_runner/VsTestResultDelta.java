@@ -0,0 +1,463 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Results of a build stored as the changes against the full {@link VsTestResultIndex}
+ * of an earlier build, its snapshot.
+ * <p>
+ * The node compares the TRX file with a {@link Fingerprint} of the snapshot and sends
+ * back only the tests that were added or changed their outcome or duration notably,
+ * plus one bit per snapshot test telling whether it ran again. Deltas always refer to a
+ * full snapshot, never to another delta, so a build is rebuilt from two files.
+ * Tests that did not change keep the duration of the snapshot.
+ * <p>
+ * The delta is stored as {@code vstest-results.delta}, holding the snapshot build number
+ * and the bits, next to {@code vstest-results-changes.idx}, an ordinary index of the
+ * changed tests.
+ */
+public final class VsTestResultDelta implements Serializable {
+
+    public static final String FILE_NAME = "vstest-results.delta";
+    public static final String CHANGES_FILE_NAME = "vstest-results-changes.idx";
+
+    /** Maximum number of builds a delta may be away from its snapshot. */
+    public static final int SNAPSHOT_INTERVAL = Integer.getInteger(VsTestResultDelta.class.getName() + ".snapshotInterval", 20);
+
+    /** Durations closer than this to the snapshot are not worth sending, in ms. */
+    private static final int MIN_DURATION_CHANGE = 50;
+    /** Durations within this factor of the snapshot are not worth sending. */
+    private static final double DURATION_CHANGE_RATIO = 1.5;
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestResultDelta.class.getName());
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x56535444;
+    private static final int VERSION = 1;
+
+    private final int snapshot;
+    private final int snapshotSize;
+    private final BitSet seen;
+    private final VsTestResultIndex changes;
+
+    /**
+     * @param snapshot number of the build holding the full index
+     * @param snapshotSize number of tests in that index
+     * @param seen positions of the snapshot tests that ran again
+     * @param changes tests that are new or differ from the snapshot
+     */
+    /* package */ VsTestResultDelta(int snapshot, int snapshotSize, BitSet seen, VsTestResultIndex changes) {
+        this.snapshot = snapshot;
+        this.snapshotSize = snapshotSize;
+        this.seen = seen;
+        this.changes = changes;
+    }
+
+    public int getSnapshot() {
+        return snapshot;
+    }
+
+    public VsTestResultIndex getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return number of snapshot tests that ran again, changed or not
+     */
+    public int getSeen() {
+        return seen.cardinality();
+    }
+
+    /**
+     * @param base the index of the snapshot build
+     * @return the full results
+     */
+    public VsTestResultIndex apply(VsTestResultIndex base) {
+        VsTestResultIndex.Builder builder = new VsTestResultIndex.Builder();
+        for (int i = seen.nextSetBit(0); i >= 0 && i < base.size(); i = seen.nextSetBit(i + 1)) {
+            builder.add(base.getName(i), base.getOutcome(i), base.getDuration(i));
+        }
+        return builder.addAll(changes).build();
+    }
+
+    /**
+     * @param newer delta of a later vsTest step in the same build, against the same snapshot
+     * @param base the index of the snapshot build
+     * @return the union of both deltas, with {@code newer} winning on duplicates
+     */
+    public VsTestResultDelta merge(VsTestResultDelta newer, VsTestResultIndex base) {
+        if (newer.snapshot != snapshot) {
+            throw new IllegalArgumentException("Deltas against builds " + snapshot + " and " + newer.snapshot);
+        }
+        BitSet union = (BitSet) seen.clone();
+        union.or(newer.seen);
+        // a test the newer step ran unchanged is only a bit there, so drop what the older one sent
+        VsTestResultIndex.Builder older = new VsTestResultIndex.Builder();
+        for (int i = 0; i < changes.size(); i++) {
+            int position = base.indexOf(changes.getName(i));
+            if (position < 0 || !newer.seen.get(position)) {
+                older.add(changes.getName(i), changes.getOutcome(i), changes.getDuration(i));
+            }
+        }
+        return new VsTestResultDelta(snapshot, snapshotSize, union, older.build().merge(newer.changes));
+    }
+
+    /**
+     * @param buildDir
+     * @throws IOException
+     */
+    /* package */ void write(File buildDir) throws IOException {
+        changes.write(new File(buildDir, CHANGES_FILE_NAME));
+        File file = new File(buildDir, FILE_NAME);
+        File tmp = new File(file.getPath() + ".tmp");
+        byte[] bits = seen.toByteArray();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot);
+            out.writeInt(snapshotSize);
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param buildDir
+     * @return the delta of the build, or null if it has none
+     * @throws IOException
+     */
+    @CheckForNull
+    /* package */ static VsTestResultDelta read(File buildDir) throws IOException {
+        File file = new File(buildDir, FILE_NAME);
+        VsTestResultIndex changes = VsTestResultIndex.read(new File(buildDir, CHANGES_FILE_NAME));
+        if (changes == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a VSTest result delta: " + file);
+            }
+            int snapshot = in.readInt();
+            int snapshotSize = in.readInt();
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            return new VsTestResultDelta(snapshot, snapshotSize, BitSet.valueOf(bits), changes);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /* package */ static void delete(File buildDir) throws IOException {
+        Files.deleteIfExists(new File(buildDir, FILE_NAME).toPath());
+        Files.deleteIfExists(new File(buildDir, CHANGES_FILE_NAME).toPath());
+    }
+
+    private static File snapshotDir(File buildDir, int snapshot) {
+        return new File(buildDir.getParentFile(), String.valueOf(snapshot));
+    }
+
+    /**
+     * @param buildDir
+     * @return the full results of a build stored as a delta, or null if it has none
+     *         or its snapshot is gone
+     * @throws IOException
+     */
+    @CheckForNull
+    /* package */ static VsTestResultIndex materialize(File buildDir) throws IOException {
+        VsTestResultDelta delta = read(buildDir);
+        if (delta == null) {
+            return null;
+        }
+        VsTestResultIndex base = VsTestResultIndex.read(new File(snapshotDir(buildDir, delta.snapshot), VsTestResultIndex.FILE_NAME));
+        if (base == null) {
+            LOGGER.log(Level.WARNING, "Snapshot #{0} of the VSTest results in {1} is missing", new Object[]{delta.snapshot, buildDir});
+            return null;
+        }
+        return delta.apply(base);
+    }
+
+    /**
+     * Looks up a single test of a build stored as a delta, reading only the two index files.
+     *
+     * @param buildDir
+     * @param name
+     * @return the result of the test, or null if the build has no delta or not the test
+     * @throws IOException
+     */
+    @CheckForNull
+    /* package */ static VsTestResultIndex.Entry lookup(File buildDir, String name) throws IOException {
+        File changes = new File(buildDir, CHANGES_FILE_NAME);
+        if (!changes.isFile()) {
+            return null;
+        }
+        VsTestResultIndex.Entry entry = VsTestResultIndex.lookup(changes, name);
+        if (entry != null) {
+            return entry;
+        }
+        VsTestResultDelta delta = read(buildDir);
+        File base = new File(snapshotDir(buildDir, delta != null ? delta.snapshot : 0), VsTestResultIndex.FILE_NAME);
+        if (delta == null || !base.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(base, "r")) {
+            int count = VsTestResultIndex.readHeader(raf, base);
+            int position = VsTestResultIndex.search(raf, count, name);
+            return position >= 0 && delta.seen.get(position) ? VsTestResultIndex.entryAt(raf, count, position) : null;
+        }
+    }
+
+    /**
+     * Picks the snapshot the results of {@code run} are compared with: the one an earlier
+     * step of the same build used, or else the one of the newest earlier build with results.
+     *
+     * @param run
+     * @return the snapshot, or null if the results should be stored in full
+     * @throws IOException
+     */
+    @CheckForNull
+    public static Snapshot snapshotFor(Run<?, ?> run) throws IOException {
+        File buildDir = run.getRootDir();
+        if (new File(buildDir, VsTestResultIndex.FILE_NAME).isFile()) {
+            return null;
+        }
+        VsTestResultDelta own = read(buildDir);
+        if (own != null) {
+            return Snapshot.of(run.getParent(), own.snapshot);
+        }
+        for (int number : VsTestResultHistory.buildNumbers(run.getParent())) {
+            if (number >= run.getNumber()) {
+                continue;
+            }
+            File dir = VsTestResultHistory.buildDir(run.getParent(), number);
+            int snapshot = number;
+            if (!new File(dir, VsTestResultIndex.FILE_NAME).isFile()) {
+                VsTestResultDelta delta = read(dir);
+                if (delta == null) {
+                    if (run.getNumber() - number >= SNAPSHOT_INTERVAL) {
+                        return null;
+                    }
+                    continue;
+                }
+                snapshot = delta.snapshot;
+            }
+            return run.getNumber() - snapshot <= SNAPSHOT_INTERVAL ? Snapshot.of(run.getParent(), snapshot) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Stores the delta of one vsTest step, merged with those of earlier steps of the build.
+     * The build gets a full index instead once the changes outgrow a tenth of the snapshot.
+     *
+     * @param run
+     * @param snapshot
+     * @param delta
+     * @return the full results of this step
+     * @throws IOException
+     */
+    public static VsTestResultIndex append(Run<?, ?> run, Snapshot snapshot, VsTestResultDelta delta) throws IOException {
+        VsTestResultIndex results = delta.apply(snapshot.index);
+        File buildDir = run.getRootDir();
+        synchronized (VsTestResultIndex.class) {
+            VsTestResultDelta existing = read(buildDir);
+            if (new File(buildDir, VsTestResultIndex.FILE_NAME).isFile()
+                    || existing != null && existing.snapshot != delta.snapshot) {
+                VsTestResultIndex.append(run, results);
+                return results;
+            }
+            VsTestResultDelta merged = existing != null ? existing.merge(delta, snapshot.index) : delta;
+            if (merged.changes.size() > snapshot.index.size() / 10) {
+                merged.apply(snapshot.index).write(new File(buildDir, VsTestResultIndex.FILE_NAME));
+                delete(buildDir);
+            } else {
+                merged.write(buildDir);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units of {@code name}.
+     *
+     * @param name
+     * @return
+     */
+    /* package */ static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /* package */ static boolean durationChanged(int base, int duration) {
+        return Math.abs(duration - base) >= MIN_DURATION_CHANGE
+                && (duration > base * DURATION_CHANGE_RATIO || base > duration * DURATION_CHANGE_RATIO);
+    }
+
+    /**
+     * A full index that deltas are taken against.
+     */
+    public static final class Snapshot {
+
+        private final int number;
+        private final VsTestResultIndex index;
+
+        public Snapshot(int number, VsTestResultIndex index) {
+            this.number = number;
+            this.index = index;
+        }
+
+        @CheckForNull
+        private static Snapshot of(Job<?, ?> job, int number) throws IOException {
+            VsTestResultIndex index = VsTestResultIndex.read(new File(VsTestResultHistory.buildDir(job, number), VsTestResultIndex.FILE_NAME));
+            return index != null ? new Snapshot(number, index) : null;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public VsTestResultIndex getIndex() {
+            return index;
+        }
+
+        public Fingerprint fingerprint() {
+            return new Fingerprint(number, index);
+        }
+    }
+
+    /**
+     * What the node needs to know about a snapshot to compute a delta: per test, in index
+     * order, a hash of its name, its outcome and its duration, 13 bytes instead of the name.
+     */
+    public static final class Fingerprint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int snapshot;
+        private final long[] hashes;
+        private final byte[] outcomes;
+        private final int[] durations;
+
+        /* package */ Fingerprint(int snapshot, VsTestResultIndex index) {
+            this.snapshot = snapshot;
+            int count = index.size();
+            this.hashes = new long[count];
+            this.outcomes = new byte[count];
+            this.durations = new int[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = hash(index.getName(i));
+                outcomes[i] = (byte) index.getOutcome(i).ordinal();
+                durations[i] = index.getDuration(i);
+            }
+        }
+
+        /**
+         * @param current
+         * @return the changes of {@code current} against the snapshot
+         */
+        public VsTestResultDelta diff(VsTestResultIndex current) {
+            Map<Long, Integer> positions = new HashMap<>(hashes.length * 2);
+            for (int i = 0; i < hashes.length; i++) {
+                // colliding names are sent in full
+                positions.put(hashes[i], positions.containsKey(hashes[i]) ? -1 : i);
+            }
+            BitSet seen = new BitSet(hashes.length);
+            VsTestResultIndex.Builder changes = new VsTestResultIndex.Builder();
+            for (int i = 0; i < current.size(); i++) {
+                Integer position = positions.get(hash(current.getName(i)));
+                if (position != null && position >= 0
+                        && outcomes[position] == current.getOutcome(i).ordinal()
+                        && !durationChanged(durations[position], current.getDuration(i))) {
+                    seen.set(position);
+                } else {
+                    changes.add(current.getName(i), current.getOutcome(i), current.getDuration(i));
+                }
+            }
+            return new VsTestResultDelta(snapshot, hashes.length, seen, changes.build());
+        }
+    }
+
+    /**
+     * Parses a TRX file on the node that holds it and sends back only its changes
+     * against a snapshot.
+     */
+    /* package */ static final class TrxDiffer extends MasterToSlaveFileCallable<VsTestResultDelta> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Fingerprint fingerprint;
+
+        TrxDiffer(Fingerprint fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public VsTestResultDelta invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                return fingerprint.diff(VsTestResultIndex.parseTrx(in));
+            }
+        }
+    }
+
+    /**
+     * Rewrites the builds stored against a snapshot in full before the snapshot is deleted.
+     */
+    @Extension
+    public static final class SnapshotRetention extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            if (!new File(run.getRootDir(), VsTestResultIndex.FILE_NAME).isFile()) {
+                return;
+            }
+            for (int number = run.getNumber() + 1; number <= run.getNumber() + SNAPSHOT_INTERVAL; number++) {
+                File dir = VsTestResultHistory.buildDir(run.getParent(), number);
+                try {
+                    synchronized (VsTestResultIndex.class) {
+                        VsTestResultDelta delta = read(dir);
+                        if (delta != null && delta.snapshot == run.getNumber()) {
+                            VsTestResultIndex index = materialize(dir);
+                            if (index != null) {
+                                index.write(new File(dir, VsTestResultIndex.FILE_NAME));
+                            }
+                            delete(dir);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to rewrite the VSTest results of " + run.getParent().getFullName() + " #" + number, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.Job;
+
+/**
+ * Queries the {@link VsTestResultIndex} files of a job.
+ * <p>
+ * Build directories are scanned directly, so no build is loaded from disk and
+ * only the few bytes needed to find the requested test are read from each index.
+ */
+public final class VsTestResultHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestResultHistory.class.getName());
+
+    private VsTestResultHistory() {
+    }
+
+    /**
+     * @param job
+     * @return the numbers of the builds of {@code job} on disk, newest first
+     */
+    public static List<Integer> buildNumbers(Job<?, ?> job) {
+        List<Integer> numbers = new ArrayList<>();
+        File[] dirs = job.getBuildDir().listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory()) {
+                    try {
+                        numbers.add(Integer.parseInt(dir.getName()));
+                    } catch (NumberFormatException ignored) {
+                        // legacy timestamp directories and permalinks
+                    }
+                }
+            }
+        }
+        Collections.sort(numbers, Collections.reverseOrder());
+        return numbers;
+    }
+
+    /**
+     * @param job
+     * @param buildNumber
+     * @return the directory of the build, which may not exist
+     */
+    public static File buildDir(Job<?, ?> job, int buildNumber) {
+        return new File(job.getBuildDir(), String.valueOf(buildNumber));
+    }
+
+    /**
+     * @param job
+     * @param buildNumber
+     * @return the index file of the build, which may not exist, for example when
+     *         the build only has a {@link VsTestResultDelta}
+     */
+    public static File indexFile(Job<?, ?> job, int buildNumber) {
+        return new File(buildDir(job, buildNumber), VsTestResultIndex.FILE_NAME);
+    }
+
+    /**
+     * @param job
+     * @param testName
+     * @param limit maximum number of builds to scan
+     * @return the results of {@code testName} in the newest {@code limit} builds, newest first;
+     *         builds without an index or without the test are omitted
+     */
+    public static List<Sample> of(Job<?, ?> job, String testName, int limit) {
+        List<Sample> samples = new ArrayList<>();
+        List<Integer> numbers = buildNumbers(job);
+        for (int number : numbers.subList(0, Math.min(limit, numbers.size()))) {
+            try {
+                VsTestResultIndex.Entry entry = VsTestResultIndex.lookupBuild(buildDir(job, number), testName);
+                if (entry != null) {
+                    samples.add(new Sample(number, entry.getOutcome(), entry.getDuration()));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read VSTest result index of " + job.getFullName() + " #" + number, e);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Result of one test in one build.
+     */
+    public static final class Sample {
+
+        private final int buildNumber;
+        private final VsTestOutcome outcome;
+        private final int duration;
+
+        public Sample(int buildNumber, VsTestOutcome outcome, int duration) {
+            this.buildNumber = buildNumber;
+            this.outcome = outcome;
+            this.duration = duration;
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        public VsTestOutcome getOutcome() {
+            return outcome;
+        }
+
+        public int getDuration() {
+            return duration;
+        }
+    }
+}
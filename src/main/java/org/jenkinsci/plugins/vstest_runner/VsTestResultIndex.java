@@ -0,0 +1,477 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Compact per-build index of test outcomes and durations, stored next to build.xml.
+ * <p>
+ * Test names are kept sorted so that a single test can be looked up with a binary
+ * search directly on the file, without loading the whole index or the build.
+ * The on-disk layout is:
+ * <pre>
+ * int magic, int version, int count,
+ * byte[count] outcomes, int[count] durations (ms),
+ * int[count + 1] name offsets, byte[] UTF-8 name blob
+ * </pre>
+ */
+public final class VsTestResultIndex implements Serializable {
+
+    public static final String FILE_NAME = "vstest-results.idx";
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x56535449;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+    private final String[] names;
+    private final byte[] outcomes;
+    private final int[] durations;
+
+    private VsTestResultIndex(String[] names, byte[] outcomes, int[] durations) {
+        this.names = names;
+        this.outcomes = outcomes;
+        this.durations = durations;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public VsTestOutcome getOutcome(int i) {
+        return VsTestOutcome.values()[outcomes[i]];
+    }
+
+    public int getDuration(int i) {
+        return durations[i];
+    }
+
+    /**
+     * @param name
+     * @return the position of the test, or a negative value if it is not in the index
+     */
+    public int indexOf(String name) {
+        return Arrays.binarySearch(names, name);
+    }
+
+    /**
+     * @param newer results of a later vsTest step in the same build
+     * @return the union of both indexes, with {@code newer} winning on duplicates
+     */
+    public VsTestResultIndex merge(VsTestResultIndex newer) {
+        Builder builder = new Builder();
+        builder.addAll(this);
+        builder.addAll(newer);
+        return builder.build();
+    }
+
+    /**
+     * Writes this index to {@code file}, replacing any previous content.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        int count = names.length;
+        byte[][] encoded = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.write(outcomes);
+            for (int duration : durations) {
+                out.writeInt(duration);
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] name : encoded) {
+                offset += name.length;
+                out.writeInt(offset);
+            }
+            for (byte[] name : encoded) {
+                out.write(name);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Merges {@code index} into the index file of {@code run}.
+     *
+     * @param run
+     * @param index
+     * @throws IOException
+     */
+    public static void append(Run<?, ?> run, VsTestResultIndex index) throws IOException {
+        File dir = run.getRootDir();
+        synchronized (VsTestResultIndex.class) {
+            VsTestResultIndex existing = readBuild(dir);
+            (existing != null ? existing.merge(index) : index).write(new File(dir, FILE_NAME));
+            VsTestResultDelta.delete(dir);
+        }
+    }
+
+    /**
+     * @param run
+     * @return the index of {@code run}, or null if the build has none
+     * @throws IOException
+     */
+    @CheckForNull
+    public static VsTestResultIndex read(Run<?, ?> run) throws IOException {
+        return readBuild(run.getRootDir());
+    }
+
+    /**
+     * @param buildDir
+     * @return the index of the build, rebuilt from its snapshot and delta if it only
+     *         has a {@link VsTestResultDelta}, or null if the build has none
+     * @throws IOException
+     */
+    @CheckForNull
+    public static VsTestResultIndex readBuild(File buildDir) throws IOException {
+        VsTestResultIndex index = read(new File(buildDir, FILE_NAME));
+        return index != null ? index : VsTestResultDelta.materialize(buildDir);
+    }
+
+    /**
+     * Looks up a single test of a build without loading its index.
+     *
+     * @param buildDir
+     * @param name
+     * @return the result of the test, or null if the build has no index or not the test
+     * @throws IOException
+     */
+    @CheckForNull
+    public static Entry lookupBuild(File buildDir, String name) throws IOException {
+        File file = new File(buildDir, FILE_NAME);
+        return file.isFile() ? lookup(file, name) : VsTestResultDelta.lookup(buildDir, name);
+    }
+
+    /**
+     * @param file
+     * @return the index stored in {@code file}, or null if the file does not exist
+     * @throws IOException
+     */
+    @CheckForNull
+    public static VsTestResultIndex read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = readHeader(in, file);
+            byte[] outcomes = new byte[count];
+            in.readFully(outcomes);
+            int[] durations = new int[count];
+            for (int i = 0; i < count; i++) {
+                durations[i] = in.readInt();
+            }
+            int[] offsets = new int[count + 1];
+            for (int i = 0; i <= count; i++) {
+                offsets[i] = in.readInt();
+            }
+            byte[] blob = new byte[offsets[count]];
+            in.readFully(blob);
+            String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = NAMES.intern(new String(blob, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8));
+            }
+            return new VsTestResultIndex(names, outcomes, durations);
+        }
+    }
+
+    /**
+     * Looks up a single test directly in an index file, reading only the bytes needed
+     * by the binary search.
+     *
+     * @param file
+     * @param name
+     * @return the result of the test, or null if the file or the test does not exist
+     * @throws IOException
+     */
+    @CheckForNull
+    public static Entry lookup(File file, String name) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int count = readHeader(raf, file);
+            int position = search(raf, count, name);
+            return position >= 0 ? entryAt(raf, count, position) : null;
+        }
+    }
+
+    /**
+     * @param raf an index file, positioned anywhere
+     * @param count number of tests in the file
+     * @param name
+     * @return the position of the test in the file, or -1
+     * @throws IOException
+     */
+    /* package */ static int search(RandomAccessFile raf, int count, String name) throws IOException {
+        long offsetsPos = HEADER_SIZE + 5L * count;
+        long blobPos = offsetsPos + 4L * (count + 1);
+
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            raf.seek(offsetsPos + 4L * mid);
+            int start = raf.readInt();
+            int end = raf.readInt();
+            byte[] buf = new byte[end - start];
+            raf.seek(blobPos + start);
+            raf.readFully(buf);
+            int cmp = new String(buf, StandardCharsets.UTF_8).compareTo(name);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /* package */ static Entry entryAt(RandomAccessFile raf, int count, int position) throws IOException {
+        raf.seek(HEADER_SIZE + (long) position);
+        VsTestOutcome outcome = VsTestOutcome.values()[raf.readByte()];
+        raf.seek(HEADER_SIZE + (long) count + 4L * position);
+        return new Entry(outcome, raf.readInt());
+    }
+
+    /* package */ static int readHeader(DataInput in, File file) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a VSTest result index: " + file);
+        }
+        return in.readInt();
+    }
+
+    /**
+     * Parses the UnitTestResult elements of a TRX file. Inner results of data driven
+     * tests are folded into their parent result.
+     * <p>
+     * Tests are named by the class of their definition and their test name, so that
+     * methods of the same name in different classes stay apart. Results whose definition
+     * is missing, or whose test name is qualified already, keep their test name.
+     *
+     * @param trx
+     * @return
+     * @throws IOException
+     */
+    public static VsTestResultIndex parseTrx(InputStream trx) throws IOException {
+        // definitions follow the results
+        List<String[]> results = new ArrayList<>();
+        Map<String, String> classNames = new HashMap<>();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(trx);
+            try {
+                int innerDepth = 0;
+                String unitTest = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String element = reader.getLocalName();
+                        if ("InnerResults".equals(element)) {
+                            innerDepth++;
+                        } else if (innerDepth == 0 && "UnitTestResult".equals(element)) {
+                            results.add(new String[] {reader.getAttributeValue(null, "testId"),
+                                    reader.getAttributeValue(null, "testName"),
+                                    reader.getAttributeValue(null, "outcome"),
+                                    reader.getAttributeValue(null, "duration")});
+                        } else if ("UnitTest".equals(element)) {
+                            unitTest = reader.getAttributeValue(null, "id");
+                        } else if (unitTest != null && "TestMethod".equals(element)) {
+                            String className = reader.getAttributeValue(null, "className");
+                            if (className != null) {
+                                classNames.put(unitTest, className);
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        String element = reader.getLocalName();
+                        if ("InnerResults".equals(element)) {
+                            innerDepth--;
+                        } else if ("UnitTest".equals(element)) {
+                            unitTest = null;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to parse TRX file", e);
+        }
+
+        Builder builder = new Builder();
+        for (String[] result : results) {
+            builder.add(qualifiedName(classNames.get(result[0]), result[1]),
+                    VsTestOutcome.fromTrx(result[2]), parseDuration(result[3]));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param className class of the test definition, or null
+     * @param testName
+     * @return {@code testName} prefixed with its class unless it already is
+     */
+    /* package */ static String qualifiedName(@CheckForNull String className, String testName) {
+        if (className == null || testName == null) {
+            return testName;
+        }
+        // MSTest may qualify the class with its assembly
+        int comma = className.indexOf(',');
+        if (comma >= 0) {
+            className = className.substring(0, comma).trim();
+        }
+        return testName.startsWith(className + ".") ? testName : className + "." + testName;
+    }
+
+    /**
+     * @param duration a TRX duration such as {@code 00:00:01.2345678} or {@code 1.02:00:00}
+     * @return the duration in milliseconds, 0 if it cannot be parsed
+     */
+    /* package */ static int parseDuration(String duration) {
+        if (duration == null) {
+            return 0;
+        }
+        String[] parts = duration.split(":");
+        if (parts.length != 3) {
+            return 0;
+        }
+        try {
+            double hours;
+            int dot = parts[0].indexOf('.');
+            if (dot >= 0) {
+                hours = Long.parseLong(parts[0].substring(0, dot)) * 24 + Long.parseLong(parts[0].substring(dot + 1));
+            } else {
+                hours = Long.parseLong(parts[0]);
+            }
+            double millis = ((hours * 60 + Long.parseLong(parts[1])) * 60 + Double.parseDouble(parts[2])) * 1000;
+            return (int) Math.min(Integer.MAX_VALUE, Math.round(millis));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Result of a single test in one build.
+     */
+    public static final class Entry {
+
+        private final VsTestOutcome outcome;
+        private final int duration;
+
+        public Entry(VsTestOutcome outcome, int duration) {
+            this.outcome = outcome;
+            this.duration = duration;
+        }
+
+        public VsTestOutcome getOutcome() {
+            return outcome;
+        }
+
+        public int getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * Collects results in any order and produces a sorted index.
+     */
+    public static final class Builder {
+
+        private final Map<String, Entry> entries = new TreeMap<>();
+
+        public Builder add(String name, VsTestOutcome outcome, int duration) {
+            if (name != null) {
+                entries.put(name, new Entry(outcome, duration));
+            }
+            return this;
+        }
+
+        public Builder addAll(VsTestResultIndex index) {
+            for (int i = 0; i < index.size(); i++) {
+                entries.put(index.names[i], new Entry(index.getOutcome(i), index.durations[i]));
+            }
+            return this;
+        }
+
+        public VsTestResultIndex build() {
+            int count = entries.size();
+            String[] names = new String[count];
+            byte[] outcomes = new byte[count];
+            int[] durations = new int[count];
+            int i = 0;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                names[i] = NAMES.intern(e.getKey());
+                outcomes[i] = (byte) e.getValue().getOutcome().ordinal();
+                durations[i] = e.getValue().getDuration();
+                i++;
+            }
+            return new VsTestResultIndex(names, outcomes, durations);
+        }
+    }
+
+    /**
+     * Parses a TRX file on the node that holds it, so only the compact index crosses the channel.
+     */
+    /* package */ static final class TrxIndexer extends MasterToSlaveFileCallable<VsTestResultIndex> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public VsTestResultIndex invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                return parseTrx(in);
+            }
+        }
+    }
+}
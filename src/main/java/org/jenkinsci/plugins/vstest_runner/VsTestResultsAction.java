@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.Run;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Build-level index of every result file produced by the vsTest steps of a build,
+ * as paths relative to the workspace, in the order they were reported.
+ * <p>
+ * {@code VSTEST_RESULT_TRX} and {@code VSTEST_RESULT_COVERAGE} keep pointing at the
+ * latest file for existing jobs; the {@code _FILES} variables list all of them,
+ * separated by commas, so publishers can process every result in one pass.
+ */
+@ExportedBean
+public class VsTestResultsAction implements EnvironmentContributingAction {
+
+    public final static String TRX_ENV = "VSTEST_RESULT_TRX";
+    public final static String COVERAGE_ENV = "VSTEST_RESULT_COVERAGE";
+    public final static String TRX_FILES_ENV = "VSTEST_RESULT_TRX_FILES";
+    public final static String COVERAGE_FILES_ENV = "VSTEST_RESULT_COVERAGE_FILES";
+
+    private final List<String> trxFiles = new ArrayList<>();
+    private final List<String> coverageFiles = new ArrayList<>();
+    private final List<String> attachments = new ArrayList<>();
+
+    public VsTestResultsAction() {
+    }
+
+    /* package */ VsTestResultsAction(List<String> trxFiles, List<String> coverageFiles, List<String> attachments) {
+        this.trxFiles.addAll(trxFiles);
+        this.coverageFiles.addAll(coverageFiles);
+        this.attachments.addAll(attachments);
+    }
+
+    /**
+     * Adds the results of one vsTest step to the action of {@code run}, creating it if needed.
+     *
+     * @param run
+     * @param trxFiles
+     * @param coverageFiles
+     * @param attachments
+     * @return the action of the build
+     */
+    public static VsTestResultsAction add(Run<?, ?> run, List<String> trxFiles, List<String> coverageFiles, List<String> attachments) {
+        VsTestResultsAction action;
+        synchronized (run) {
+            action = run.getAction(VsTestResultsAction.class);
+            if (action == null) {
+                action = new VsTestResultsAction();
+                run.addAction(action);
+            }
+        }
+        synchronized (action) {
+            action.trxFiles.addAll(trxFiles);
+            action.coverageFiles.addAll(coverageFiles);
+            action.attachments.addAll(attachments);
+        }
+        return action;
+    }
+
+    @Exported
+    public synchronized List<String> getTrxFiles() {
+        return Collections.unmodifiableList(new ArrayList<>(trxFiles));
+    }
+
+    @Exported
+    public synchronized List<String> getCoverageFiles() {
+        return Collections.unmodifiableList(new ArrayList<>(coverageFiles));
+    }
+
+    /**
+     * @return every attachment reported by vstest.console, coverage files included
+     */
+    @Exported
+    public synchronized List<String> getAttachments() {
+        return Collections.unmodifiableList(new ArrayList<>(attachments));
+    }
+
+    /**
+     * @param workspace
+     * @return the TRX files of the build resolved against {@code workspace}
+     */
+    public List<FilePath> getTrxFiles(FilePath workspace) {
+        List<FilePath> files = new ArrayList<>();
+        for (String trx : getTrxFiles()) {
+            files.add(workspace.child(trx));
+        }
+        return files;
+    }
+
+    public synchronized void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        if (!trxFiles.isEmpty()) {
+            env.put(TRX_ENV, trxFiles.get(trxFiles.size() - 1));
+            env.put(TRX_FILES_ENV, StringUtils.join(trxFiles, ','));
+        }
+
+        if (!coverageFiles.isEmpty()) {
+            env.put(COVERAGE_ENV, coverageFiles.get(coverageFiles.size() - 1));
+            env.put(COVERAGE_FILES_ENV, StringUtils.join(coverageFiles, ','));
+        }
+    }
+
+    public String getDisplayName() {
+        return "VSTest Results";
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
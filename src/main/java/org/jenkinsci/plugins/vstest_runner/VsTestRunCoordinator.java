@@ -0,0 +1,350 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.Util;
+
+/**
+ * Lets concurrent builds that run identical tests share one {@code vstest.console} run,
+ * for example the branch, pull request and merge queue builds of the same commit.
+ * <p>
+ * Runs are identified by the content of the folders of their test assemblies, as the
+ * {@link VsTestStager} would copy them, and their effective arguments. The first build
+ * to start a run leads it; builds starting the same run while it is in flight wait for
+ * it and copy its result files instead of running the tests themselves. The leader copies its result files to its build directory only
+ * if some build is waiting, and removes them once every waiting build has copied them, or at the latest when its own
+ * ticket is closed.
+ */
+public final class VsTestRunCoordinator {
+
+    /** Directory in the build directory of the leader holding the shared result files. */
+    public static final String SHARED_DIR = "vstest-shared";
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestRunCoordinator.class.getName());
+
+    private static final Map<String, InFlight> IN_FLIGHT = new HashMap<>();
+
+    private VsTestRunCoordinator() {
+    }
+
+    /**
+     * @param workspace
+     * @param assemblies test assemblies relative to the workspace
+     * @param arguments everything else that affects the run, with workspace paths already replaced
+     * @return a key that is equal for runs of identical assembly folders with identical arguments
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static String key(FilePath workspace, List<String> assemblies, List<String> arguments) throws IOException, InterruptedException {
+        MessageDigest digest = sha256();
+        // the folders hold the dependencies, so the digest covers every file the stager would copy
+        Map<String, String> folders = workspace.act(new VsTestCoverageAction.AssemblyDigester(assemblies));
+        for (String assembly : assemblies) {
+            digest.update(assembly.replace('\\', '/').getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(folders.get(assembly).getBytes(StandardCharsets.UTF_8));
+        }
+        for (String argument : arguments) {
+            digest.update((byte) 0);
+            digest.update(argument.getBytes(StandardCharsets.UTF_8));
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Joins the run with {@code key}, or starts leading it if none is in flight.
+     * Every ticket must be {@linkplain Ticket#close() closed}.
+     *
+     * @param key
+     * @param build display name of the entering build
+     * @return
+     */
+    public static Ticket enter(String key, String build) {
+        synchronized (IN_FLIGHT) {
+            InFlight inFlight = IN_FLIGHT.get(key);
+            if (inFlight != null) {
+                inFlight.waiters++;
+                return new Ticket(inFlight, false);
+            }
+            inFlight = new InFlight(key, build);
+            IN_FLIGHT.put(key, inFlight);
+            return new Ticket(inFlight, true);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class InFlight {
+
+        private final String key;
+        private final String leader;
+        private int waiters;
+        private boolean done;
+        private Shared shared;
+        /** Directory holding the shared result files, null once removed. */
+        private File dir;
+        private int copying;
+        private int copied;
+        private boolean closed;
+
+        InFlight(String key, String leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+
+        /**
+         * @return whether the shared result files are still there, if so they are kept until {@link #endCopy()}
+         */
+        synchronized boolean startCopy() {
+            if (dir == null) {
+                return false;
+            }
+            copying++;
+            return true;
+        }
+
+        synchronized void endCopy() {
+            copying--;
+            copied++;
+            if (copied >= waiters || closed) {
+                removeShared();
+            }
+        }
+
+        /**
+         * Removes the shared result files unless a follower is still copying them.
+         * Guarded by {@code this}.
+         */
+        private void removeShared() {
+            if (dir == null || copying > 0) {
+                return;
+            }
+            try {
+                Util.deleteRecursive(dir);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove the shared VSTest results in " + dir, e);
+            }
+            dir = null;
+        }
+    }
+
+    /**
+     * A build's part in a shared run.
+     */
+    public static final class Ticket implements AutoCloseable {
+
+        private final InFlight inFlight;
+        private final boolean leader;
+
+        private Ticket(InFlight inFlight, boolean leader) {
+            this.inFlight = inFlight;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @return display name of the build leading the run
+         */
+        public String getLeader() {
+            return inFlight.leader;
+        }
+
+        /**
+         * Publishes the results of the run to the builds waiting for it.
+         * Only the leader calls this.
+         *
+         * @param buildDir directory of the leading build
+         * @param workspace
+         * @param trxFiles absolute paths on the node of the workspace
+         * @param coverageFiles
+         * @param attachments
+         * @param exitCode
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        public void finish(File buildDir, FilePath workspace, List<String> trxFiles, List<String> coverageFiles,
+                           List<String> attachments, int exitCode) throws IOException, InterruptedException {
+            synchronized (IN_FLIGHT) {
+                IN_FLIGHT.remove(inFlight.key);
+                if (inFlight.waiters == 0) {
+                    complete(null);
+                    return;
+                }
+            }
+            // builds that join from now on start their own run
+            Shared shared = null;
+            File dir = new File(buildDir, SHARED_DIR);
+            synchronized (inFlight) {
+                inFlight.dir = dir;
+            }
+            try {
+                Map<String, File> copies = new LinkedHashMap<>();
+                List<String> all = new ArrayList<>(trxFiles);
+                all.addAll(coverageFiles);
+                all.addAll(attachments);
+                for (String path : all) {
+                    if (!copies.containsKey(path)) {
+                        File copy = new File(dir, copies.size() + "-" + workspace.child(path).getName());
+                        workspace.child(path).copyTo(new FilePath(copy));
+                        copies.put(path, copy);
+                    }
+                }
+                shared = new Shared(inFlight, exitCode, map(trxFiles, copies), map(coverageFiles, copies), map(attachments, copies));
+            } finally {
+                complete(shared);
+            }
+        }
+
+        private static List<File> map(List<String> paths, Map<String, File> copies) {
+            List<File> files = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                files.add(copies.get(path));
+            }
+            return files;
+        }
+
+        /**
+         * Waits for the leader. Only followers call this.
+         *
+         * @return the results of the run, or null if the leader failed and the tests have to be run again
+         * @throws InterruptedException
+         */
+        @CheckForNull
+        public Shared await() throws InterruptedException {
+            synchronized (inFlight) {
+                while (!inFlight.done) {
+                    inFlight.wait();
+                }
+                return inFlight.shared;
+            }
+        }
+
+        private void complete(@CheckForNull Shared shared) {
+            synchronized (inFlight) {
+                inFlight.shared = shared;
+                inFlight.done = true;
+                inFlight.notifyAll();
+            }
+        }
+
+        /**
+         * Releases the followers of a leader that did not {@linkplain #finish finish}, so that
+         * they run the tests themselves, and removes the shared result files of one that did.
+         * Followers that have not copied them yet run the tests themselves as well.
+         */
+        @Override
+        public void close() {
+            if (!leader) {
+                return;
+            }
+            synchronized (IN_FLIGHT) {
+                if (IN_FLIGHT.get(inFlight.key) == inFlight) {
+                    IN_FLIGHT.remove(inFlight.key);
+                }
+            }
+            synchronized (inFlight) {
+                if (!inFlight.done) {
+                    complete(null);
+                }
+                inFlight.closed = true;
+                inFlight.removeShared();
+            }
+        }
+    }
+
+    /**
+     * Results of a finished run, copied to the build directory of its leader.
+     */
+    public static final class Shared {
+
+        private final InFlight inFlight;
+        private final String leader;
+        private final int exitCode;
+        private final List<File> trxFiles;
+        private final List<File> coverageFiles;
+        private final List<File> attachments;
+
+        Shared(InFlight inFlight, int exitCode, List<File> trxFiles, List<File> coverageFiles, List<File> attachments) {
+            this.inFlight = inFlight;
+            this.leader = inFlight.leader;
+            this.exitCode = exitCode;
+            this.trxFiles = trxFiles;
+            this.coverageFiles = coverageFiles;
+            this.attachments = attachments;
+        }
+
+        public String getLeader() {
+            return leader;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public List<File> getTrxFiles() {
+            return Collections.unmodifiableList(trxFiles);
+        }
+
+        public List<File> getCoverageFiles() {
+            return Collections.unmodifiableList(coverageFiles);
+        }
+
+        public List<File> getAttachments() {
+            return Collections.unmodifiableList(attachments);
+        }
+
+        /**
+         * Copies the result files into {@code dir}. Each follower calls this at most once;
+         * the result files are removed after the last one did.
+         *
+         * @param dir
+         * @return the absolute paths of the copies, by shared file
+         * @throws IOException if the leader has already removed the result files
+         * @throws InterruptedException
+         */
+        public Map<File, String> copyTo(FilePath dir) throws IOException, InterruptedException {
+            if (!inFlight.startCopy()) {
+                throw new IOException("The test results of " + leader + " were already removed");
+            }
+            try {
+                Map<File, String> copies = new HashMap<>();
+                List<File> all = new ArrayList<>(trxFiles);
+                all.addAll(coverageFiles);
+                all.addAll(attachments);
+                for (File file : all) {
+                    if (!copies.containsKey(file)) {
+                        FilePath copy = dir.child(file.getName());
+                        new FilePath(file).copyTo(copy);
+                        copies.put(file, copy.getRemote());
+                    }
+                }
+                return copies;
+            } finally {
+                inFlight.endCopy();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jenkins.security.MasterToSlaveCallable;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Overlays settings the plugin controls, such as parallelism, on a {@code .runsettings} document.
+ */
+public final class VsTestRunSettings {
+
+    private static final String RUN_SETTINGS = "RunSettings";
+    private static final String RUN_CONFIGURATION = "RunConfiguration";
+    public static final String MAX_CPU_COUNT = "MaxCpuCount";
+    public static final String BATCH_SIZE = "BatchSize";
+    public static final String RESULTS_DIRECTORY = "ResultsDirectory";
+    public static final String TARGET_PLATFORM = "TargetPlatform";
+    public static final String TARGET_FRAMEWORK_VERSION = "TargetFrameworkVersion";
+
+    private final Document document;
+    private final boolean generated;
+
+    private VsTestRunSettings(Document document, boolean generated) {
+        this.document = document;
+        this.generated = generated;
+    }
+
+    /**
+     * @param xml content of the user's settings file, or null to start from an empty one
+     * @return
+     * @throws IOException if {@code xml} is not a valid settings document
+     */
+    public static VsTestRunSettings parse(@CheckForNull String xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            Document document;
+            if (xml == null) {
+                document = builder.newDocument();
+                document.appendChild(document.createElement(RUN_SETTINGS));
+            } else {
+                document = builder.parse(new InputSource(new StringReader(xml)));
+                if (!RUN_SETTINGS.equals(document.getDocumentElement().getTagName())) {
+                    throw new IOException("Not a runsettings file, the root element is " + document.getDocumentElement().getTagName());
+                }
+            }
+            return new VsTestRunSettings(document, xml == null);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed to parse runsettings", e);
+        }
+    }
+
+    /**
+     * @param name an element of {@code RunConfiguration}
+     * @return its value, or null if it is not set
+     */
+    @CheckForNull
+    public String get(String name) {
+        Element configuration = child(document.getDocumentElement(), RUN_CONFIGURATION, false);
+        Element element = configuration != null ? child(configuration, name, false) : null;
+        return element != null ? element.getTextContent().trim() : null;
+    }
+
+    /**
+     * @param name an element of {@code RunConfiguration}
+     * @param value
+     * @param override replace a value that is already set
+     * @return the value in effect afterwards
+     */
+    public String set(String name, String value, boolean override) {
+        Element configuration = child(document.getDocumentElement(), RUN_CONFIGURATION, true);
+        Element element = child(configuration, name, false);
+        if (element == null) {
+            element = document.createElement(name);
+            configuration.appendChild(element);
+        } else if (!override && !element.getTextContent().trim().isEmpty()) {
+            return element.getTextContent().trim();
+        }
+        element.setTextContent(value);
+        return value;
+    }
+
+    /**
+     * Enables the TRX logger, for runs that cannot pass {@code /Logger:trx} on the command line.
+     *
+     * @param resultsDirectory
+     * @param logFileName
+     */
+    public void addTrxLogger(String resultsDirectory, String logFileName) {
+        set(RESULTS_DIRECTORY, resultsDirectory, true);
+        Element loggers = child(child(document.getDocumentElement(), "LoggerRunSettings", true), "Loggers", true);
+        Element logger = document.createElement("Logger");
+        logger.setAttribute("friendlyName", "trx");
+        logger.setAttribute("enabled", "True");
+        Element configuration = document.createElement("Configuration");
+        Element fileName = document.createElement("LogFileName");
+        fileName.setTextContent(logFileName);
+        configuration.appendChild(fileName);
+        logger.appendChild(configuration);
+        loggers.appendChild(logger);
+    }
+
+    /**
+     * Enables the code coverage data collector, for runs that cannot pass
+     * {@code /Enablecodecoverage} on the command line.
+     */
+    public void addCodeCoverage() {
+        Element collectors = child(child(document.getDocumentElement(), "DataCollectionRunSettings", true), "DataCollectors", true);
+        NodeList existing = collectors.getElementsByTagName("DataCollector");
+        for (int i = 0; i < existing.getLength(); i++) {
+            if ("Code Coverage".equals(((Element) existing.item(i)).getAttribute("friendlyName"))) {
+                return;
+            }
+        }
+        Element collector = document.createElement("DataCollector");
+        collector.setAttribute("friendlyName", "Code Coverage");
+        collectors.appendChild(collector);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            // keep the layout of the user's file as it is
+            transformer.setOutputProperty(OutputKeys.INDENT, generated ? "yes" : "no");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(document), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @CheckForNull
+    private Element child(Element parent, String name, boolean create) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node node = children.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        Element element = document.createElement(name);
+        parent.appendChild(element);
+        return element;
+    }
+
+    /**
+     * Returns the number of processors of the node it runs on.
+     */
+    /* package */ static final class ProcessorCounter extends MasterToSlaveCallable<Integer, RuntimeException> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Integer call() {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Mirrors the folders holding the test assemblies into a node-local directory, such as
+ * a tmpfs or a local SSD, so that {@code vstest.console} does not load them from a slow
+ * network-backed workspace.
+ * <p>
+ * Each workspace gets its own directory below the staging root. Files whose size and
+ * modification time did not change since the previous build are kept, the others are
+ * hard linked where the file system allows it and copied otherwise, in parallel.
+ * Files no longer in the workspace are removed from the staged folders, along with the
+ * folders they leave empty. Results written below the staged folders are moved back into
+ * the workspace by an {@link Unstager}.
+ */
+/* package */ final class VsTestStager extends MasterToSlaveFileCallable<VsTestStager.Staged> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of files staged at the same time. */
+    private static final int THREADS = Integer.getInteger(VsTestStager.class.getName() + ".threads", 8);
+
+    private final String root;
+    private final List<String> assemblies;
+
+    /**
+     * @param root staging root on the node
+     * @param assemblies test assemblies relative to the workspace
+     */
+    VsTestStager(String root, List<String> assemblies) {
+        this.root = root;
+        this.assemblies = new ArrayList<>(assemblies);
+    }
+
+    @Override
+    public Staged invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Path source = workspace.toPath().toAbsolutePath().normalize();
+        Path target = new File(root, workspaceId(source)).toPath().toAbsolutePath().normalize();
+        if (target.startsWith(source)) {
+            throw new IOException("The staging directory " + target + " is inside the workspace");
+        }
+
+        // the folders of the assemblies hold their dependencies
+        Set<Path> dirs = new TreeSet<>();
+        for (String assembly : assemblies) {
+            Path dir = source.resolve(assembly).normalize().getParent();
+            if (dir == null || !dir.startsWith(source)) {
+                throw new IOException(assembly + " is outside the workspace");
+            }
+            dirs.add(source.relativize(dir));
+        }
+        Set<Path> files = new TreeSet<>();
+        for (Path dir : dirs) {
+            for (Path file : walk(source.resolve(dir))) {
+                files.add(source.relativize(file));
+            }
+        }
+
+        final Counts counts = new Counts();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS));
+        try {
+            List<Future<Void>> futures = new ArrayList<>(files.size());
+            for (final Path file : files) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        stage(source.resolve(file), target.resolve(file), counts);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (Path dir : dirs) {
+            removeStale(target.resolve(dir), target, files);
+        }
+
+        List<String> staged = new ArrayList<>(assemblies.size());
+        for (String assembly : assemblies) {
+            staged.add(target.resolve(source.relativize(source.resolve(assembly).normalize())).toString());
+        }
+        return new Staged(target.toString(), staged, files.size(), counts.linked.get(), counts.copied.get(),
+                counts.bytes.get(), System.currentTimeMillis() - start);
+    }
+
+    private static void stage(Path from, Path to, Counts counts) throws IOException {
+        BasicFileAttributes source = Files.readAttributes(from, BasicFileAttributes.class);
+        if (Files.isRegularFile(to)) {
+            BasicFileAttributes staged = Files.readAttributes(to, BasicFileAttributes.class);
+            if (staged.size() == source.size() && staged.lastModifiedTime().equals(source.lastModifiedTime())) {
+                return;
+            }
+        }
+        Files.createDirectories(to.getParent());
+        if (counts.linkable.get()) {
+            try {
+                Files.deleteIfExists(to);
+                Files.createLink(to, from);
+                counts.linked.incrementAndGet();
+                return;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // another file system, do not try again
+                counts.linkable.set(false);
+            }
+        }
+        Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        counts.copied.incrementAndGet();
+        counts.bytes.addAndGet(source.size());
+    }
+
+    private static void removeStale(Path dir, Path target, Set<Path> files) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        for (Path file : walk(dir)) {
+            if (!files.contains(target.relativize(file))) {
+                Files.deleteIfExists(file);
+            }
+        }
+        removeEmpty(dir);
+    }
+
+    /**
+     * Removes the folders below {@code dir} that hold no files.
+     *
+     * @param dir
+     * @return whether {@code dir} is empty now
+     * @throws IOException
+     */
+    private static boolean removeEmpty(Path dir) throws IOException {
+        boolean empty = true;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) && removeEmpty(entry)) {
+                    Files.delete(entry);
+                } else {
+                    empty = false;
+                }
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * @param dir
+     * @return the regular files below {@code dir}, except in test results and hidden folders
+     * @throws IOException
+     */
+    /* package */ static List<Path> walk(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!name.startsWith(".") && !name.equals("TestResults")) {
+                        files.addAll(walk(entry));
+                    }
+                } else if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String workspaceId(Path workspace) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(workspace.toString().getBytes(StandardCharsets.UTF_8));
+            return workspace.getFileName() + "-" + Util.toHexString(digest).substring(0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Counts {
+        private final AtomicBoolean linkable = new AtomicBoolean(true);
+        private final AtomicInteger linked = new AtomicInteger();
+        private final AtomicInteger copied = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * Where the assemblies were staged, and what it took.
+     */
+    /* package */ static final class Staged implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String directory;
+        private final List<String> assemblies;
+        private final int files;
+        private final int linked;
+        private final int copied;
+        private final long copiedBytes;
+        private final long millis;
+
+        Staged(String directory, List<String> assemblies, int files, int linked, int copied, long copiedBytes, long millis) {
+            this.directory = directory;
+            this.assemblies = assemblies;
+            this.files = files;
+            this.linked = linked;
+            this.copied = copied;
+            this.copiedBytes = copiedBytes;
+            this.millis = millis;
+        }
+
+        /**
+         * @return the staged directory of the workspace
+         */
+        public String getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return absolute paths of the staged assemblies, in the order they were given
+         */
+        public List<String> getAssemblies() {
+            return Collections.unmodifiableList(assemblies);
+        }
+
+        /**
+         * Maps paths below the staged directory back to the workspace. The files have to be
+         * moved there by an {@link Unstager} before they can be read from the workspace.
+         *
+         * @param paths absolute paths on the node
+         * @param workspace absolute path of the workspace
+         * @return
+         */
+        public List<String> toWorkspace(List<String> paths, String workspace) {
+            List<String> mapped = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                if (path.length() > directory.length() && path.startsWith(directory)
+                        && (path.charAt(directory.length()) == '/' || path.charAt(directory.length()) == '\\')) {
+                    mapped.add(workspace + path.substring(directory.length()));
+                } else {
+                    mapped.add(path);
+                }
+            }
+            return mapped;
+        }
+
+        @Override
+        public String toString() {
+            return "Staged " + files + " file(s) to " + directory + " in " + millis + " ms: " + linked + " linked, "
+                    + copied + " copied (" + copiedBytes + " bytes), " + (files - linked - copied) + " unchanged";
+        }
+    }
+
+    /**
+     * Moves result files written below the staged directory into the workspace, so that
+     * they are recorded and archived as workspace files and do not pile up in the staged folders.
+     */
+    /* package */ static final class Unstager extends MasterToSlaveFileCallable<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Staged staged;
+        private final List<String> paths;
+
+        /**
+         * @param staged
+         * @param paths absolute paths on the node
+         */
+        Unstager(Staged staged, List<String> paths) {
+            this.staged = staged;
+            this.paths = new ArrayList<>(paths);
+        }
+
+        /**
+         * @return the paths, with those below the staged directory mapped to the moved files in the workspace;
+         *         paths of files that are gone are kept as they are
+         */
+        @Override
+        public List<String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            List<String> mapped = staged.toWorkspace(paths, workspace.getPath());
+            List<String> moved = new ArrayList<>(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                Path from = new File(paths.get(i)).toPath();
+                Path to = new File(mapped.get(i)).toPath();
+                if (!from.equals(to) && Files.isRegularFile(from)) {
+                    Files.createDirectories(to.getParent());
+                    Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+                    moved.add(mapped.get(i));
+                } else {
+                    moved.add(paths.get(i));
+                }
+            }
+            return moved;
+        }
+    }
+}
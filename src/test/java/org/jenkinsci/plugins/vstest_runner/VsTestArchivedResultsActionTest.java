@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestArchivedResultsActionTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testArchiveAndDownload() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                FilePath workspace = build.getWorkspace();
+                workspace.child("TestResults/run.trx").write("<TestRun/>", "UTF-8");
+                workspace.child("TestResults/run.coverage").write("coverage", "UTF-8");
+                VsTestArchivedResultsAction.archive(build, workspace,
+                        Arrays.asList("TestResults/run.trx", "TestResults/run.coverage", "TestResults/missing.trx"));
+                return true;
+            }
+        });
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        VsTestArchivedResultsAction action = build.getAction(VsTestArchivedResultsAction.class);
+        assertThat(action.getArchives().size(), is(1));
+        VsTestArchivedResultsAction.Archive archive = action.getArchives().get(0);
+        assertThat(archive.getName(), is("vstest-results-1.tar.gz"));
+        assertThat(new ArrayList<>(archive.getFiles().keySet()),
+                is(Arrays.asList("TestResults/run.trx", "TestResults/run.coverage")));
+        assertThat(archive.getSize(), is(18L));
+
+        JenkinsRule.WebClient wc = j.createWebClient();
+        try (InputStream in = wc.goTo(build.getUrl() + "vstestResults/" + archive.getName(), null)
+                .getWebResponse().getContentAsStream()) {
+            FilePath target = new FilePath(tmp.getRoot());
+            target.untarFrom(in, FilePath.TarCompression.GZIP);
+            assertThat(target.child("TestResults/run.trx").readToString(), is("<TestRun/>"));
+            assertThat(target.child("TestResults/run.coverage").readToString(), is("coverage"));
+        }
+        wc.assertFails(build.getUrl() + "vstestResults/vstest-results-2.tar.gz", 404);
+    }
+}
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.Launcher;
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class VsTestBatchTest {
+
+    private static final String TRX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<TestRun xmlns=\"http://microsoft.com/schemas/VisualStudio/TeamTest/2010\">\n"
+            + "  <Results>\n"
+            + "    <UnitTestResult testId=\"1\" testName=\"Alpha\" outcome=\"Passed\" duration=\"00:00:01\" />\n"
+            + "    <UnitTestResult testId=\"2\" testName=\"Beta\" outcome=\"Failed\" duration=\"00:00:02\">\n"
+            + "      <Output><ErrorInfo><Message>boom</Message></ErrorInfo></Output>\n"
+            + "    </UnitTestResult>\n"
+            + "    <UnitTestResult testId=\"3\" testName=\"Gamma\" outcome=\"Passed\" duration=\"00:00:04\" />\n"
+            + "  </Results>\n"
+            + "  <TestDefinitions>\n"
+            + "    <UnitTest id=\"1\" name=\"Alpha\" storage=\"C:\\ws\\Stage\\One\\bin\\One.Tests.dll\" />\n"
+            + "    <UnitTest id=\"2\" name=\"Beta\" storage=\"c:\\ws\\stage\\two\\bin\\two.tests.dll\" />\n"
+            + "    <UnitTest id=\"3\" name=\"Gamma\" storage=\"C:\\ws\\Stage\\Two\\bin\\Two.Tests.dll\" />\n"
+            + "  </TestDefinitions>\n"
+            + "  <TestEntries>\n"
+            + "    <TestEntry testId=\"1\" />\n"
+            + "    <TestEntry testId=\"2\" />\n"
+            + "    <TestEntry testId=\"3\" />\n"
+            + "  </TestEntries>\n"
+            + "  <ResultSummary outcome=\"Failed\">\n"
+            + "    <Counters total=\"3\" executed=\"3\" passed=\"2\" failed=\"1\" error=\"0\" />\n"
+            + "  </ResultSummary>\n"
+            + "</TestRun>\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static VsTestResultIndex parse(String file) throws Exception {
+        try (InputStream in = new FileInputStream(file)) {
+            return VsTestResultIndex.parseTrx(in);
+        }
+    }
+
+    @Test
+    public void testSplitsByAssembly() throws Exception {
+        File trx = tmp.newFile("run.trx");
+        Files.write(trx.toPath(), TRX.getBytes(StandardCharsets.UTF_8));
+
+        List<List<String>> calls = Arrays.asList(
+                Collections.singletonList("One\\bin\\One.Tests.dll"),
+                Collections.singletonList("Two/bin/Two.Tests.dll"),
+                Arrays.asList("One\\bin\\One.Tests.dll", "Two\\bin\\Two.Tests.dll"));
+        VsTestBatch.Split split = new VsTestBatch.TrxSplitter(calls).invoke(trx, null);
+
+        assertThat(split.getFiles().size(), is(3));
+        assertThat(new File(split.getFiles().get(0)).getName(), is("run.call-1.trx"));
+
+        VsTestResultIndex first = parse(split.getFiles().get(0));
+        assertThat(first.size(), is(1));
+        assertThat(first.getName(0), is("Alpha"));
+
+        VsTestResultIndex second = parse(split.getFiles().get(1));
+        assertThat(second.size(), is(2));
+        assertThat(second.indexOf("Alpha"), is(-1));
+        assertThat(second.getOutcome(second.indexOf("Beta")), is(VsTestOutcome.FAILED));
+
+        assertThat(parse(split.getFiles().get(2)).size(), is(3));
+
+        String xml = new String(Files.readAllBytes(new File(split.getFiles().get(1)).toPath()), StandardCharsets.UTF_8);
+        assertThat(xml.contains("boom"), is(true));
+        assertThat(xml.contains("One.Tests.dll"), is(false));
+        assertThat(xml.contains("outcome=\"Failed\""), is(true));
+        assertThat(xml.contains("total=\"2\" executed=\"2\" passed=\"1\" failed=\"1\" error=\"0\""), is(true));
+
+        // the failure of the run belongs to the other call
+        xml = new String(Files.readAllBytes(new File(split.getFiles().get(0)).toPath()), StandardCharsets.UTF_8);
+        assertThat(xml.contains("<ResultSummary outcome=\"Completed\">"), is(true));
+        assertThat(xml.contains("total=\"1\" executed=\"1\" passed=\"1\" failed=\"0\" error=\"0\""), is(true));
+
+        assertThat(split.getDurations().get("one/bin/one.tests.dll"), is(1000));
+        assertThat(split.getDurations().get("two/bin/two.tests.dll"), is(6000));
+    }
+
+    @Test
+    public void testUnmatchedTestsAreDropped() throws Exception {
+        File trx = tmp.newFile("other.trx");
+        Files.write(trx.toPath(), TRX.getBytes(StandardCharsets.UTF_8));
+
+        VsTestBatch.Split split = new VsTestBatch.TrxSplitter(
+                Collections.singletonList(Collections.singletonList("Three.Tests.dll"))).invoke(trx, null);
+
+        assertThat(parse(split.getFiles().get(0)).size(), is(0));
+        assertThat(split.getDurations().get("three.tests.dll"), is(nullValue()));
+    }
+
+    @Test
+    public void testLongestAssemblyPathWins() throws Exception {
+        File trx = tmp.newFile("nested.trx");
+        Files.write(trx.toPath(), TRX.replace("Stage\\One\\bin\\One.Tests.dll", "Stage\\x\\bin\\Two.Tests.dll")
+                .replace("stage\\two\\bin", "stage\\bin").replace("Stage\\Two\\bin", "Stage\\bin")
+                .getBytes(StandardCharsets.UTF_8));
+
+        // x/bin/Two.Tests.dll ends with bin/Two.Tests.dll as well, whatever the call order
+        for (List<List<String>> calls : Arrays.asList(
+                Arrays.asList(Collections.singletonList("x/bin/Two.Tests.dll"), Collections.singletonList("bin/Two.Tests.dll")),
+                Arrays.asList(Collections.singletonList("bin/Two.Tests.dll"), Collections.singletonList("x/bin/Two.Tests.dll")))) {
+            VsTestBatch.Split split = new VsTestBatch.TrxSplitter(calls).invoke(trx, null);
+            assertThat(split.getDurations().get("x/bin/two.tests.dll"), is(1000));
+            assertThat(split.getDurations().get("bin/two.tests.dll"), is(6000));
+            int nested = calls.get(0).get(0).startsWith("x/") ? 0 : 1;
+            VsTestResultIndex index = parse(split.getFiles().get(nested));
+            assertThat(index.size(), is(1));
+            assertThat(index.getName(0), is("Alpha"));
+            assertThat(parse(split.getFiles().get(1 - nested)).size(), is(2));
+        }
+    }
+
+    @Test
+    public void testCollectsOnlyCallsOfTheBlock() {
+        Launcher plain = new Launcher.LocalLauncher(StreamTaskListener.fromStdout());
+        VsTestBatch outer = VsTestBatch.open();
+        VsTestBatch inner = VsTestBatch.open();
+        try {
+            Launcher inOuter = outer.getMarker().decorate(plain, null);
+            Launcher inInner = inner.getMarker().decorate(inOuter, null);
+            assertThat(VsTestBatch.collecting(plain), is(nullValue()));
+            assertThat(VsTestBatch.collecting(inOuter), is(outer));
+            // another decoration inside the block keeps the call in it, a nested block takes it
+            assertThat(VsTestBatch.collecting(new Launcher.DecoratedLauncher(inOuter)), is(outer));
+            assertThat(VsTestBatch.collecting(inInner), is(inner));
+
+            inner.close();
+            assertThat(VsTestBatch.collecting(inInner), is(nullValue()));
+        } finally {
+            outer.close();
+            inner.close();
+        }
+    }
+
+    @Test
+    public void testNormalize() {
+        assertThat(VsTestBatch.normalize("Bin\\Debug\\A.Tests.DLL"), is("bin/debug/a.tests.dll"));
+    }
+}
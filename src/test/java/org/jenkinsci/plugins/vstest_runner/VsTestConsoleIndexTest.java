@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestConsoleIndexTest {
+
+    private static final String OUTPUT = "Starting test execution, please wait...\n"
+            + "Passed   Tests.One [12 ms]\n"
+            + "one says hello\n"
+            + "Failed   Tests.Two [3 ms]\n"
+            + "Error Message:\n"
+            + "   Assert.AreEqual failed.\n"
+            + "Failed   Tests.Two [4 ms]\n"
+            + "Skipped  Tests.Three\n"
+            + "Total tests: 4. Passed: 2. Failed: 2. Skipped: 0.\n"
+            + "Test Run Failed.\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String read(File log, VsTestConsoleIndex.Segment segment) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+            byte[] buf = new byte[segment.getLength()];
+            raf.seek(segment.getStart());
+            raf.readFully(buf);
+            return new String(buf, Charset.defaultCharset());
+        }
+    }
+
+    @Test
+    public void testSegmentsPointIntoLog() throws Exception {
+        File log = tmp.newFile("log");
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            StreamTaskListener listener = new StreamTaskListener(out);
+            listener.getLogger().println("Executing VSTest: vstest.console.exe Tests.dll");
+            VsTestListenerDecorator decorator = new VsTestListenerDecorator(listener, false, 0);
+            decorator.recordSegments(log);
+            decorator.write(OUTPUT.getBytes(Charset.defaultCharset()));
+            decorator.close();
+            listener.getLogger().println("Quiet console: 0 line(s) of passing tests not shown");
+
+            List<VsTestConsoleIndex.Segment> segments = decorator.getSegments();
+            assertThat(segments.size(), is(4));
+            assertThat(decorator.isSegmentsDiscarded(), is(false));
+            File index = tmp.newFile(VsTestConsoleIndex.FILE_NAME);
+            VsTestConsoleIndex.write(index, segments);
+
+            List<VsTestConsoleIndex.Segment> one = VsTestConsoleIndex.lookup(index, "Tests.One");
+            assertThat(one.size(), is(1));
+            assertThat(one.get(0).getOutcome(), is(VsTestOutcome.PASSED));
+            assertThat(read(log, one.get(0)), is("Passed   Tests.One [12 ms]\none says hello\n"));
+
+            List<VsTestConsoleIndex.Segment> two = VsTestConsoleIndex.lookup(index, "Tests.Two");
+            assertThat(two.size(), is(2));
+            assertThat(two.get(0).getOutcome(), is(VsTestOutcome.FAILED));
+            assertThat(read(log, two.get(0)), is("Failed   Tests.Two [3 ms]\nError Message:\n   Assert.AreEqual failed.\n"));
+            assertThat(read(log, two.get(1)), is("Failed   Tests.Two [4 ms]\n"));
+
+            assertThat(read(log, VsTestConsoleIndex.lookup(index, "Tests.Three").get(0)), is("Skipped  Tests.Three\n"));
+            assertThat(VsTestConsoleIndex.lookup(index, "Tests.Four").size(), is(0));
+            assertThat(VsTestConsoleIndex.read(index).size(), is(4));
+        }
+    }
+
+    @Test
+    public void testNoSegmentsUnlessRecorded() throws Exception {
+        VsTestListenerDecorator decorator = new VsTestListenerDecorator(new StreamTaskListener(new FileOutputStream(tmp.newFile("log"))), false, 0);
+        decorator.write(OUTPUT.getBytes(Charset.defaultCharset()));
+        decorator.close();
+        assertThat(decorator.getSegments().size(), is(0));
+    }
+
+    @Test
+    public void testSegmentsDroppedWhenLogChanges() throws Exception {
+        File log = tmp.newFile("shared-log");
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            StreamTaskListener listener = new StreamTaskListener(out);
+            VsTestListenerDecorator decorator = new VsTestListenerDecorator(listener, false, 0);
+            decorator.recordSegments(log);
+            decorator.write("Passed   Tests.One [12 ms]\n".getBytes(Charset.defaultCharset()));
+            decorator.flush();
+            // a parallel step writing to the same log
+            listener.getLogger().println("[other] building");
+            decorator.write("Passed   Tests.Two [3 ms]\n".getBytes(Charset.defaultCharset()));
+            decorator.close();
+
+            assertThat(decorator.isSegmentsDiscarded(), is(true));
+            assertThat(decorator.getSegments().size(), is(0));
+        }
+    }
+}
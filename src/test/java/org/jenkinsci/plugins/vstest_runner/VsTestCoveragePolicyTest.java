@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class VsTestCoveragePolicyTest {
+
+    private static final Map<String, String> NONE = Collections.emptyMap();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testEveryNthBuild() {
+        VsTestCoveragePolicy policy = VsTestCoveragePolicy.EVERY_NTH_BUILD;
+        assertThat(policy.shouldCover(12, 10, 5, NONE, NONE), is(false));
+        assertThat(policy.shouldCover(14, 10, 5, NONE, NONE), is(false));
+        assertThat(policy.shouldCover(15, 10, 5, NONE, NONE), is(true));
+        assertThat(policy.shouldCover(3, null, 5, NONE, NONE), is(true));
+    }
+
+    @Test
+    public void testChangedAssemblies() {
+        VsTestCoveragePolicy policy = VsTestCoveragePolicy.CHANGED_ASSEMBLIES;
+        Map<String, String> previous = new HashMap<>();
+        previous.put("a/A.Tests.dll", "1");
+        previous.put("b/B.Tests.dll", "2");
+
+        Map<String, String> same = new HashMap<>(previous);
+        assertThat(policy.shouldCover(20, 10, 5, same, previous), is(false));
+
+        Map<String, String> changed = new HashMap<>(previous);
+        changed.put("b/B.Tests.dll", "3");
+        assertThat(policy.shouldCover(20, 10, 5, changed, previous), is(true));
+
+        Map<String, String> added = new HashMap<>(previous);
+        added.put("c/C.Tests.dll", "4");
+        assertThat(policy.shouldCover(20, 10, 5, added, previous), is(true));
+
+        // no digests, or no covered build to compare with
+        assertThat(policy.shouldCover(20, 10, 5, NONE, previous), is(true));
+        assertThat(policy.shouldCover(20, null, 5, same, NONE), is(true));
+    }
+
+    @Test
+    public void testAlways() {
+        assertThat(VsTestCoveragePolicy.ALWAYS.shouldCover(11, 10, 5, NONE, NONE), is(true));
+    }
+
+    private static void write(File file, String content) throws Exception {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAssemblyDigester() throws Exception {
+        File ws = tmp.getRoot();
+        write(new File(ws, "a/A.Tests.dll"), "tests");
+        write(new File(ws, "a/A.dll"), "product v1");
+        write(new File(ws, "b/B.Tests.dll"), "other tests");
+        VsTestCoverageAction.AssemblyDigester digester =
+                new VsTestCoverageAction.AssemblyDigester(Arrays.asList("a/A.Tests.dll", "b/B.Tests.dll"));
+
+        Map<String, String> first = digester.invoke(ws, null);
+        assertThat(first.size(), is(2));
+        assertThat(digester.invoke(ws, null), is(first));
+
+        // the test assembly is unchanged, the product next to it is not
+        write(new File(ws, "a/A.dll"), "product v2");
+        Map<String, String> second = digester.invoke(ws, null);
+        assertThat(second.get("a/A.Tests.dll"), is(not(first.get("a/A.Tests.dll"))));
+        assertThat(second.get("b/B.Tests.dll"), is(first.get("b/B.Tests.dll")));
+    }
+}
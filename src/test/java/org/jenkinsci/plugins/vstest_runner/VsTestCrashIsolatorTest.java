@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class VsTestCrashIsolatorTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static final class FakeRun implements VsTestCrashIsolator.Attempt {
+
+        private final List<String> assemblies;
+        private final boolean crashed;
+
+        FakeRun(List<String> assemblies, boolean crashed) {
+            this.assemblies = assemblies;
+            this.crashed = crashed;
+        }
+
+        public boolean isCrashed() {
+            return crashed;
+        }
+    }
+
+    /**
+     * Crashes when any of the given assemblies runs, and counts the runs at the same time.
+     */
+    private static final class FakeRunner implements VsTestCrashIsolator.Runner<FakeRun> {
+
+        private final Set<String> crashing;
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+
+        FakeRunner(String... crashing) {
+            this.crashing = new HashSet<>(Arrays.asList(crashing));
+        }
+
+        public FakeRun run(List<String> assemblies) throws InterruptedException {
+            int now = running.incrementAndGet();
+            try {
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                Thread.sleep(20);
+                return new FakeRun(assemblies, !Collections.disjoint(assemblies, crashing));
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static List<String> assemblies(int count) {
+        List<String> assemblies = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            assemblies.add("Tests" + i + ".dll");
+        }
+        return assemblies;
+    }
+
+    private static Set<String> ran(List<FakeRun> runs) {
+        Set<String> ran = new HashSet<>();
+        for (FakeRun run : runs) {
+            ran.addAll(run.assemblies);
+        }
+        return ran;
+    }
+
+    @Test
+    public void testFindsCrashingAssemblies() throws Exception {
+        List<String> assemblies = assemblies(16);
+        FakeRunner runner = new FakeRunner("Tests3.dll", "Tests12.dll");
+        VsTestCrashIsolator<FakeRun> isolator = new VsTestCrashIsolator<>(runner, executor, 4);
+
+        VsTestCrashIsolator.Outcome<FakeRun> outcome = isolator.isolate(assemblies, new FakeRun(assemblies, true));
+
+        assertThat(outcome.getCrashing(), is(Arrays.asList("Tests3.dll", "Tests12.dll")));
+        assertThat(outcome.isUnexplained(), is(false));
+        // every assembly ends up in exactly one kept run
+        assertThat(ran(outcome.getKept()), is((Set<String>) new HashSet<>(assemblies)));
+        int kept = 0;
+        for (FakeRun run : outcome.getKept()) {
+            kept += run.assemblies.size();
+            if (run.crashed) {
+                assertThat(run.assemblies.size(), is(1));
+            }
+        }
+        assertThat(kept, is(16));
+        // two runs for the first split, then four per level along the two crashing halves
+        assertThat(isolator.getRuns(), is(14));
+        assertThat(runner.maxRunning.get(), greaterThan(1));
+        assertThat(runner.maxRunning.get(), lessThanOrEqualTo(4));
+    }
+
+    @Test
+    public void testKeepsRunThatDidNotCrash() throws Exception {
+        List<String> assemblies = assemblies(4);
+        VsTestCrashIsolator<FakeRun> isolator = new VsTestCrashIsolator<>(new FakeRunner(), executor, 2);
+        FakeRun first = new FakeRun(assemblies, false);
+
+        VsTestCrashIsolator.Outcome<FakeRun> outcome = isolator.isolate(assemblies, first);
+
+        assertThat(outcome.getKept(), is(Collections.singletonList(first)));
+        assertThat(outcome.getCrashing().isEmpty(), is(true));
+        assertThat(isolator.getRuns(), is(0));
+    }
+
+    @Test
+    public void testCrashThatDoesNotRecur() throws Exception {
+        List<String> assemblies = assemblies(5);
+        VsTestCrashIsolator<FakeRun> isolator = new VsTestCrashIsolator<>(new FakeRunner(), executor, 2);
+
+        VsTestCrashIsolator.Outcome<FakeRun> outcome = isolator.isolate(assemblies, new FakeRun(assemblies, true));
+
+        assertThat(outcome.getCrashing().isEmpty(), is(true));
+        assertThat(outcome.isUnexplained(), is(true));
+        assertThat(outcome.getKept().size(), is(2));
+        assertThat(ran(outcome.getKept()), is((Set<String>) new HashSet<>(assemblies)));
+    }
+
+    @Test
+    public void testCrashOfAssembliesRunningTogether() throws Exception {
+        List<String> assemblies = assemblies(8);
+        // crashes only when Tests1.dll and Tests6.dll share the test host
+        VsTestCrashIsolator.Runner<FakeRun> runner = new VsTestCrashIsolator.Runner<FakeRun>() {
+            public FakeRun run(List<String> subset) {
+                return new FakeRun(subset, subset.contains("Tests1.dll") && subset.contains("Tests6.dll"));
+            }
+        };
+        VsTestCrashIsolator<FakeRun> isolator = new VsTestCrashIsolator<>(runner, executor, 2);
+
+        VsTestCrashIsolator.Outcome<FakeRun> outcome = isolator.isolate(assemblies, new FakeRun(assemblies, true));
+
+        assertThat(outcome.getCrashing().isEmpty(), is(true));
+        assertThat(outcome.isUnexplained(), is(true));
+        for (FakeRun run : outcome.getKept()) {
+            assertThat(run.crashed, is(false));
+        }
+        assertThat(ran(outcome.getKept()), is((Set<String>) new HashSet<>(assemblies)));
+
+        // next to an assembly that crashes on its own
+        runner = new VsTestCrashIsolator.Runner<FakeRun>() {
+            public FakeRun run(List<String> subset) {
+                return new FakeRun(subset, subset.contains("Tests0.dll")
+                        || subset.contains("Tests5.dll") && subset.contains("Tests6.dll"));
+            }
+        };
+        outcome = new VsTestCrashIsolator<>(runner, executor, 2).isolate(assemblies, new FakeRun(assemblies, true));
+        assertThat(outcome.getCrashing(), is(Collections.singletonList("Tests0.dll")));
+        assertThat(outcome.isUnexplained(), is(true));
+    }
+}
@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestDesignModeClientTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFraming() throws Exception {
+        String longMessage = StringUtils.repeat("\u00e9", 200);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VsTestDesignModeClient.writeString(out, "hello");
+        VsTestDesignModeClient.writeString(out, longMessage);
+
+        byte[] bytes = out.toByteArray();
+        assertThat(bytes[0], is((byte) 5));
+        // 400 bytes of UTF-8 need a two byte length prefix
+        assertThat(bytes[6] & 0xff, is(400 & 0x7f | 0x80));
+        assertThat(bytes[7] & 0xff, is(400 >> 7));
+
+        InputStream in = new ByteArrayInputStream(bytes);
+        assertThat(VsTestDesignModeClient.readString(in), is("hello"));
+        assertThat(VsTestDesignModeClient.readString(in), is(longMessage));
+    }
+
+    @Test
+    public void testRunAll() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Future<JSONObject> standIn = executor.submit(new StandIn(listener.getLocalPort()));
+            try (VsTestDesignModeClient client = new VsTestDesignModeClient(listener.accept())) {
+                assertThat(client.handshake(10000), is(VsTestDesignModeClient.PROTOCOL_VERSION));
+
+                final List<String> events = new ArrayList<>();
+                JSONObject completion = client.runAll(Collections.singletonList("C:\\ws\\Tests.dll"), "<RunSettings/>", "Priority=1",
+                        new VsTestDesignModeClient.Handler() {
+                            public void result(String testName, VsTestOutcome outcome, String errorMessage) {
+                                events.add(outcome.name() + " " + testName + (errorMessage != null ? " " + errorMessage : ""));
+                            }
+
+                            public void message(String message) {
+                                events.add("message " + message);
+                            }
+                        });
+                client.terminate();
+
+                assertThat(events, is(Arrays.asList(
+                        "PASSED Tests.One", "message discovered 3 tests", "FAILED Tests.Two boom", "SKIPPED Tests.Three")));
+                assertThat(completion.getJSONObject("TestRunCompleteArgs").getBoolean("IsAborted"), is(false));
+            }
+
+            JSONObject request = standIn.get(10, TimeUnit.SECONDS);
+            assertThat(request.getInt("Version"), is(VsTestDesignModeClient.PROTOCOL_VERSION));
+            JSONObject payload = request.getJSONObject("Payload");
+            assertThat(payload.getJSONArray("Sources").getString(0), is("C:\\ws\\Tests.dll"));
+            assertThat(payload.getString("RunSettings"), is("<RunSettings/>"));
+            assertThat(payload.getJSONObject("TestPlatformOptions").getString("TestCaseFilter"), is("Priority=1"));
+        }
+    }
+
+    /**
+     * Plays vstest.console: connects, negotiates the version, answers one run and
+     * returns the run request it received.
+     */
+    private static final class StandIn implements Callable<JSONObject> {
+
+        private final int port;
+
+        StandIn(int port) {
+            this.port = port;
+        }
+
+        public JSONObject call() throws Exception {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+
+                send(out, message(VsTestDesignModeClient.SESSION_CONNECTED, null));
+                JSONObject version = receive(in);
+                assertThat(version.getString("MessageType"), is(VsTestDesignModeClient.VERSION_CHECK));
+                send(out, message(VsTestDesignModeClient.VERSION_CHECK, version.get("Payload")));
+
+                JSONObject request = receive(in);
+                assertThat(request.getString("MessageType"), is(VsTestDesignModeClient.RUN_ALL));
+
+                JSONObject stats = new JSONObject();
+                stats.put("NewTestResults", results(result("Tests.One", 1, null)));
+                send(out, message(VsTestDesignModeClient.STATS_CHANGE, stats));
+
+                JSONObject log = new JSONObject();
+                log.put("MessageLevel", 0);
+                log.put("Message", "discovered 3 tests");
+                send(out, message(VsTestDesignModeClient.SESSION_MESSAGE, log));
+
+                JSONObject args = new JSONObject();
+                args.put("IsCanceled", false);
+                args.put("IsAborted", false);
+                JSONObject last = new JSONObject();
+                last.put("NewTestResults", results(result("Tests.Two", 2, "boom"), result("Tests.Three", 3, null)));
+                JSONObject completion = new JSONObject();
+                completion.put("TestRunCompleteArgs", args);
+                completion.put("LastRunTests", last);
+                send(out, message(VsTestDesignModeClient.RUN_COMPLETED, completion));
+
+                assertThat(receive(in).getString("MessageType"), is(VsTestDesignModeClient.SESSION_TERMINATE));
+                return request;
+            }
+        }
+
+        private static JSONObject result(String name, int outcome, String errorMessage) {
+            JSONObject testCase = new JSONObject();
+            testCase.put("FullyQualifiedName", name);
+            JSONObject result = new JSONObject();
+            result.put("TestCase", testCase);
+            result.put("Outcome", outcome);
+            result.put("ErrorMessage", errorMessage);
+            return result;
+        }
+
+        private static JSONArray results(JSONObject... results) {
+            JSONArray array = new JSONArray();
+            for (JSONObject result : results) {
+                array.add(result);
+            }
+            return array;
+        }
+
+        private static JSONObject message(String type, Object payload) {
+            JSONObject message = new JSONObject();
+            message.put("MessageType", type);
+            if (payload != null) {
+                message.put("Payload", payload);
+            }
+            return message;
+        }
+
+        private static void send(OutputStream out, JSONObject message) throws Exception {
+            VsTestDesignModeClient.writeString(out, message.toString());
+            out.flush();
+        }
+
+        private static JSONObject receive(InputStream in) throws Exception {
+            return JSONObject.fromObject(VsTestDesignModeClient.readString(in));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestDesignModeServerTest {
+
+    @Test
+    public void testEnvironment() {
+        Map<String, String> env = new HashMap<>(System.getenv());
+        env.put("BUILD_NUMBER", "42");
+        env.put("WORKSPACE", "/ws");
+        env.put("VSTEST_DESIGN_MODE_TEST", "value");
+
+        // only what the build adds on top of the node counts, and not what changes with every build
+        assertThat(VsTestDesignModeServer.environment(env), is(Collections.singletonMap("VSTEST_DESIGN_MODE_TEST", "value")));
+    }
+}
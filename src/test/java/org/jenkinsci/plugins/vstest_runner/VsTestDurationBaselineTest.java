@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestDurationBaselineTest {
+
+    private static VsTestResultIndex build(int slow, int fast, VsTestOutcome slowOutcome) {
+        return new VsTestResultIndex.Builder()
+                .add("Slow", slowOutcome, slow)
+                .add("Fast", VsTestOutcome.PASSED, fast)
+                .build();
+    }
+
+    @Test
+    public void testMedianIgnoresFailedRuns() {
+        VsTestDurationBaseline baseline = new VsTestDurationBaseline(Arrays.asList(
+                build(100, 5, VsTestOutcome.PASSED),
+                build(300, 5, VsTestOutcome.PASSED),
+                build(9000, 5, VsTestOutcome.FAILED),
+                build(200, 5, VsTestOutcome.PASSED)));
+        assertThat(baseline.median("Slow"), is(200));
+        assertThat(baseline.median("Missing"), is(-1));
+    }
+
+    @Test
+    public void testSlowdowns() {
+        VsTestDurationBaseline baseline = new VsTestDurationBaseline(Arrays.asList(
+                build(100, 5, VsTestOutcome.PASSED),
+                build(120, 6, VsTestOutcome.PASSED)));
+
+        List<VsTestDurationRegressionAction.Slowdown> slowdowns = baseline.slowdowns(build(400, 60, VsTestOutcome.PASSED), 1.5);
+        assertThat(slowdowns.size(), is(1));
+        assertThat(slowdowns.get(0).getTestName(), is("Slow"));
+        assertThat(slowdowns.get(0).getBaseline(), is(110));
+        assertThat(slowdowns.get(0).getDelta(), is(290L));
+
+        assertThat(baseline.slowdowns(build(150, 5, VsTestOutcome.PASSED), 1.5).isEmpty(), is(true));
+        assertThat(baseline.slowdowns(build(400, 5, VsTestOutcome.FAILED), 1.5).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testEstimate() {
+        VsTestDurationBaseline baseline = new VsTestDurationBaseline(Arrays.asList(
+                build(900, 5, VsTestOutcome.FAILED),
+                build(100, 7, VsTestOutcome.PASSED),
+                build(300, 9, VsTestOutcome.PASSED)));
+        assertThat(baseline.getTestCount(), is(2));
+        // median of the passing runs of each test of the newest build
+        assertThat(baseline.estimateMillis(), is(200L + 7L));
+
+        VsTestDurationBaseline neverPassed = new VsTestDurationBaseline(Arrays.asList(build(900, 5, VsTestOutcome.FAILED)));
+        assertThat(neverPassed.estimateMillis(), is(905L));
+        assertThat(new VsTestDurationBaseline(Arrays.<VsTestResultIndex>asList()).estimateMillis(), is(0L));
+    }
+}
@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import hudson.util.StreamTaskListener;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+
+public class VsTestListenerDecoratorTest {
+
+    private static final String OUTPUT = "Starting test execution, please wait...\n"
+            + "Passed   Tests.One\n"
+            + "one says hello\n"
+            + "Passed   Tests.Two\n"
+            + "two says hello\n"
+            + "Failed   Tests.Three\n"
+            + "Error Message:\n"
+            + "   Assert.AreEqual failed.\n"
+            + "Passed   Tests.Four\n"
+            + "Total tests: 4. Passed: 3. Failed: 1. Skipped: 0.\n"
+            + "Test Run Failed.\n"
+            + "Results File: C:\\ws\\TestResults\\run.trx\n"
+            + "Attachments:\n"
+            + "  C:\\ws\\TestResults\\run.coverage\n";
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    private VsTestListenerDecorator decorate(String output, boolean quiet, int contextLines) throws Exception {
+        VsTestListenerDecorator decorator = new VsTestListenerDecorator(new StreamTaskListener(log), quiet, contextLines);
+        decorator.write(output.getBytes(Charset.defaultCharset()));
+        decorator.flush();
+        return decorator;
+    }
+
+    private String log() {
+        return new String(log.toByteArray(), Charset.defaultCharset());
+    }
+
+    @Test
+    public void testPassThrough() throws Exception {
+        VsTestListenerDecorator decorator = decorate(OUTPUT, false, 0);
+        assertThat(log(), is(OUTPUT));
+        assertThat(decorator.getTrxFile(), is("C:\\ws\\TestResults\\run.trx"));
+        assertThat(decorator.getCoverageFile(), is("C:\\ws\\TestResults\\run.coverage"));
+        assertThat(decorator.getSuppressedLines(), is(0L));
+    }
+
+    @Test
+    public void testDetectsTestHostCrash() throws Exception {
+        assertThat(decorate(OUTPUT, false, 0).isTestHostCrashed(), is(false));
+        VsTestListenerDecorator decorator = decorate("Starting test execution, please wait...\n"
+                + "The active test run was aborted. Reason: Test host process crashed : Stack overflow.\n"
+                + "Test Run Aborted.\n", true, 0);
+        assertThat(decorator.isTestHostCrashed(), is(true));
+    }
+
+    @Test
+    public void testQuietDropsPassingTests() throws Exception {
+        VsTestListenerDecorator decorator = decorate(OUTPUT, true, 0);
+        String log = log();
+        assertThat(log, not(containsString("Tests.One")));
+        assertThat(log, not(containsString("two says hello")));
+        assertThat(log, not(containsString("Tests.Four")));
+        assertThat(log, containsString("Starting test execution"));
+        assertThat(log, containsString("Failed   Tests.Three\nError Message:\n   Assert.AreEqual failed.\n"));
+        assertThat(log, containsString("Total tests: 4."));
+        assertThat(log, containsString("Results File: C:\\ws\\TestResults\\run.trx"));
+        assertThat(log, containsString("  C:\\ws\\TestResults\\run.coverage"));
+        assertThat(decorator.getTrxFile(), is("C:\\ws\\TestResults\\run.trx"));
+        assertThat(decorator.getCoverageFile(), is("C:\\ws\\TestResults\\run.coverage"));
+        assertThat(decorator.getSuppressedLines(), is(5L));
+    }
+
+    @Test
+    public void testQuietFlushesContextBeforeFailure() throws Exception {
+        VsTestListenerDecorator decorator = decorate(OUTPUT, true, 2);
+        String log = log();
+        assertThat(log, not(containsString("Tests.One")));
+        assertThat(log, containsString("Passed   Tests.Two\ntwo says hello\nFailed   Tests.Three\n"));
+        assertThat(decorator.getSuppressedLines(), is(3L));
+    }
+
+    @Test
+    public void testQuietIgnoresErrorWordsOfPassingTests() throws Exception {
+        VsTestListenerDecorator decorator = decorate("Passed   Tests.Parse_InvalidInput_ThrowsException\n"
+                + "no error was logged\n"
+                + "Passed   Tests.Five\n"
+                + "System.InvalidOperationException was handled\n"
+                + "Total tests: 2. Passed: 2. Failed: 0. Skipped: 0.\n", true, 5);
+        String log = log();
+        assertThat(log, not(containsString("ThrowsException")));
+        assertThat(log, not(containsString("no error was logged")));
+        assertThat(log, not(containsString("InvalidOperationException")));
+        assertThat(decorator.getSuppressedLines(), is(4L));
+    }
+
+    @Test
+    public void testCollectsEveryResult() throws Exception {
+        String output = OUTPUT
+                + "Results File: C:\\ws\\TestResults\\second.trx\n"
+                + "Attachments:\n"
+                + "  C:\\ws\\TestResults\\second.coverage\n"
+                + "  C:\\ws\\TestResults\\sequence.xml\n"
+                + "Total time: 2 Seconds\n"
+                + "  C:\\ws\\not-an-attachment.coverage\n";
+        VsTestListenerDecorator decorator = decorate(output, false, 0);
+        assertThat(decorator.getTrxFiles(), is(Arrays.asList("C:\\ws\\TestResults\\run.trx", "C:\\ws\\TestResults\\second.trx")));
+        assertThat(decorator.getCoverageFiles(), is(Arrays.asList("C:\\ws\\TestResults\\run.coverage", "C:\\ws\\TestResults\\second.coverage")));
+        assertThat(decorator.getAttachments(), is(Arrays.asList("C:\\ws\\TestResults\\run.coverage",
+                "C:\\ws\\TestResults\\second.coverage", "C:\\ws\\TestResults\\sequence.xml")));
+        assertThat(decorator.getTrxFile(), is("C:\\ws\\TestResults\\second.trx"));
+    }
+
+    @Test
+    public void testOverlongLineIsStreamed() throws Exception {
+        final long payload = 500L * 1024 * 1024;
+        final int maxLineLength = 64 * 1024;
+        final StringBuilder text = new StringBuilder();
+        final long[] total = new long[1];
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                total[0] += len;
+                for (int i = off; i < off + len; i++) {
+                    if (b[i] != '#') {
+                        text.append((char) b[i]);
+                    }
+                }
+            }
+        };
+        final int[] longest = new int[1];
+        VsTestListenerDecorator decorator = new VsTestListenerDecorator(new StreamTaskListener(sink), false, 0, maxLineLength) {
+            @Override
+            protected void eol(byte[] bytes, int len) throws IOException {
+                longest[0] = Math.max(longest[0], len);
+                super.eol(bytes, len);
+            }
+        };
+
+        String head = "Passed   Tests.Big\npayload: ";
+        String tail = "\nResults File: C:\\ws\\TestResults\\run.trx\nAttachments:\n  C:\\ws\\TestResults\\run.coverage\n";
+        decorator.write(head.getBytes(Charset.defaultCharset()));
+        byte[] chunk = new byte[8192];
+        Arrays.fill(chunk, (byte) '#');
+        for (long n = 0; n < payload; n += chunk.length) {
+            decorator.write(chunk, 0, chunk.length);
+        }
+        decorator.write(tail.getBytes(Charset.defaultCharset()));
+        decorator.close();
+
+        // no line was buffered beyond the limit, yet everything reached the log
+        assertThat(longest[0], lessThanOrEqualTo(maxLineLength));
+        assertThat(total[0], is(head.length() + payload + tail.length()));
+        assertThat(text.toString(), is(head + tail));
+        assertThat(decorator.getTrxFile(), is("C:\\ws\\TestResults\\run.trx"));
+        assertThat(decorator.getCoverageFile(), is("C:\\ws\\TestResults\\run.coverage"));
+    }
+
+    @Test
+    public void testQuietKeepsStartOfOverlongLine() throws Exception {
+        String output = "Passed   Tests.One\n"
+                + "0123456789abcdefghijklmnopqrstuvwxyz0123456789\n"
+                + "Failed   Tests.Two\n";
+        VsTestListenerDecorator decorator = new VsTestListenerDecorator(new StreamTaskListener(log), true, 2, 24);
+        decorator.write(output.getBytes(Charset.defaultCharset()));
+        decorator.close();
+        assertThat(log(), is("Passed   Tests.One\n0123456789abcdefghijklmn [...]\nFailed   Tests.Two\n"));
+        assertThat(decorator.getSuppressedLines(), is(0L));
+    }
+}
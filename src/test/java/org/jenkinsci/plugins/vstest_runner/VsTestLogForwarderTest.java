@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class VsTestLogForwarderTest {
+
+    @Test
+    public void testKeepsOrderAndCoalesces() throws Exception {
+        final AtomicInteger writes = new AtomicInteger();
+        ByteArrayOutputStream target = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                super.write(b, off, len);
+            }
+        };
+        StringBuilder expected = new StringBuilder();
+        VsTestLogForwarder forwarder = new VsTestLogForwarder(target, 4096, 16384, 1000);
+        for (int i = 0; i < 10000; i++) {
+            String line = "Passed   Tests.Test" + i + "\n";
+            expected.append(line);
+            forwarder.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        forwarder.flush();
+        assertThat(new String(target.toByteArray(), StandardCharsets.UTF_8), is(expected.toString()));
+        assertThat(writes.get(), lessThan(1000));
+        forwarder.close();
+    }
+
+    @Test
+    public void testFlushesPartialChunkAfterInterval() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        VsTestLogForwarder forwarder = new VsTestLogForwarder(target, 4096, 16384, 10);
+        forwarder.write("single line\n".getBytes(StandardCharsets.UTF_8));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (target.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(target.size(), greaterThan(0));
+        forwarder.close();
+    }
+
+    @Test
+    public void testSlowTargetBlocksWriter() throws Exception {
+        final Object gate = new Object();
+        final AtomicInteger written = new AtomicInteger();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (gate) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                written.addAndGet(len);
+            }
+        };
+        final VsTestLogForwarder forwarder = new VsTestLogForwarder(slow, 1024, 4096, 10);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] line = new byte[100];
+                    for (int i = 0; i < 1000; i++) {
+                        forwarder.write(line);
+                        accepted.addAndGet(line.length);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+        Thread.sleep(500);
+        assertThat(producer.isAlive(), is(true));
+        assertThat(accepted.get(), lessThan(3 * 4096));
+
+        while (producer.isAlive()) {
+            synchronized (gate) {
+                gate.notifyAll();
+            }
+            producer.join(10);
+        }
+        synchronized (gate) {
+            gate.notifyAll();
+        }
+        assertThat(accepted.get(), is(100000));
+    }
+
+    @Test
+    public void testPendingBytesBoundUntilWritten() throws Exception {
+        final Object gate = new Object();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (gate) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        };
+        final VsTestLogForwarder forwarder = new VsTestLogForwarder(slow, 1024, 4096, 10);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] line = new byte[100];
+                    for (int i = 0; i < 1000; i++) {
+                        forwarder.write(line);
+                        accepted.addAndGet(line.length);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+        Thread.sleep(500);
+        // the chunks taken by the blocked writer still count
+        assertThat(accepted.get(), lessThan(4096 + 2 * 1024));
+        releaseUntilDone(gate, producer);
+        assertThat(accepted.get(), is(100000));
+    }
+
+    @Test
+    public void testLargeWriteIsHandedOverInChunks() throws Exception {
+        final Object gate = new Object();
+        final AtomicInteger largest = new AtomicInteger();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (gate) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                largest.set(Math.max(largest.get(), len));
+            }
+        };
+        final VsTestLogForwarder forwarder = new VsTestLogForwarder(slow, 1024, 4096, 10);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forwarder.write(new byte[100000]);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+        Thread.sleep(500);
+        assertThat(producer.isAlive(), is(true));
+        releaseUntilDone(gate, producer);
+        assertThat(largest.get(), is(1024));
+    }
+
+    private static void releaseUntilDone(Object gate, Thread producer) throws InterruptedException {
+        while (producer.isAlive()) {
+            synchronized (gate) {
+                gate.notifyAll();
+            }
+            producer.join(10);
+        }
+        synchronized (gate) {
+            gate.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestMetricsTest {
+
+    @Test
+    public void testHistogram() {
+        VsTestMetrics.Histogram histogram = new VsTestMetrics.Histogram("test_seconds", "Test", new long[] {10, 100, 1000}, 0.001);
+        assertThat(histogram.quantile(0.95), is(0.0));
+        for (int i = 0; i < 90; i++) {
+            histogram.observe(5);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.observe(100);
+        }
+        histogram.observe(5000);
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getP50(), is(0.01));
+        assertThat(histogram.getP95(), is(0.1));
+        // beyond the last bound
+        assertThat(histogram.getP99(), is(0.1));
+        assertThat(histogram.quantile(1), is(1.0));
+    }
+
+    @Test
+    public void testPrometheus() {
+        VsTestMetrics.RESULT_FILE_SIZE.observe(2048);
+        StringWriter out = new StringWriter();
+        VsTestMetrics.writePrometheus(new PrintWriter(out));
+
+        String text = out.toString();
+        assertThat(text, containsString("# TYPE vstest_runs_total counter\n"));
+        assertThat(text, containsString("# TYPE vstest_launch_overhead_seconds histogram\n"));
+        assertThat(text, containsString("vstest_launch_overhead_seconds_bucket{le=\"0.25\"} "));
+        assertThat(text, containsString("vstest_result_file_bytes_bucket{le=\"1024\"} 0\n"));
+        assertThat(text, containsString("vstest_result_file_bytes_bucket{le=\"+Inf\"} "));
+    }
+}
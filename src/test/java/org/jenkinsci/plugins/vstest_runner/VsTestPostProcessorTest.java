@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hudson.AbortException;
+import hudson.util.StreamTaskListener;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestPostProcessorTest {
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    @Test
+    public void testKeepsOrder() throws Exception {
+        final List<Integer> done = Collections.synchronizedList(new ArrayList<Integer>());
+        try (VsTestPostProcessor post = new VsTestPostProcessor(new StreamTaskListener(log), 2)) {
+            for (int i = 0; i < 20; i++) {
+                final int n = i;
+                post.submit(new VsTestPostProcessor.Task() {
+                    public void run() throws InterruptedException {
+                        Thread.sleep(n % 3);
+                        done.add(n);
+                    }
+                }, null);
+            }
+            post.join();
+        }
+        assertThat(done.size(), is(20));
+        for (int i = 0; i < 20; i++) {
+            assertThat(done.get(i), is(i));
+        }
+    }
+
+    @Test
+    public void testSubmitBlocksWhenFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean submitted = new AtomicBoolean();
+        try (final VsTestPostProcessor post = new VsTestPostProcessor(new StreamTaskListener(log), 1)) {
+            post.submit(new VsTestPostProcessor.Task() {
+                public void run() throws InterruptedException {
+                    release.await();
+                }
+            }, null);
+            Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        post.submit(new VsTestPostProcessor.Task() {
+                            public void run() {
+                            }
+                        }, null);
+                        submitted.set(true);
+                    } catch (IOException | InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            submitter.start();
+            submitter.join(200);
+            assertThat(submitted.get(), is(false));
+            release.countDown();
+            submitter.join(TimeUnit.SECONDS.toMillis(10));
+            assertThat(submitted.get(), is(true));
+            post.join();
+        }
+    }
+
+    @Test(expected = AbortException.class)
+    public void testJoinRethrowsFailure() throws Exception {
+        try (VsTestPostProcessor post = new VsTestPostProcessor(new StreamTaskListener(log), 2)) {
+            post.submit(new VsTestPostProcessor.Task() {
+                public void run() throws IOException {
+                    throw new AbortException("VsTest.Console exited with 1");
+                }
+            }, null);
+            post.join();
+        }
+    }
+
+    @Test
+    public void testReportsFailure() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        try (VsTestPostProcessor post = new VsTestPostProcessor(new StreamTaskListener(log), 2)) {
+            post.submit(new VsTestPostProcessor.Task() {
+                public void run() throws IOException {
+                    throw new IOException("TestResults is gone");
+                }
+            }, "VSTest command execution failed");
+            post.submit(new VsTestPostProcessor.Task() {
+                public void run() {
+                    ran.set(true);
+                }
+            }, null);
+            post.join();
+        }
+        assertThat(ran.get(), is(true));
+        String log = new String(this.log.toByteArray(), Charset.defaultCharset());
+        assertThat(log, containsString("VSTest command execution failed"));
+        assertThat(log, containsString("TestResults is gone"));
+    }
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestResourceSamplerTest {
+
+    private static final String STAT = "4242 (testhost (x86) 1.2) S 4200 4242 4200 0 -1 4194304 1520 0 0 0 "
+            + "250 125 0 0 20 0 12 0 77 123456789 4096 18446744073709551615\n";
+
+    private static final String STATUS = "Name:\ttesthost\n"
+            + "VmPeak:\t  204800 kB\n"
+            + "VmRSS:\t   51200 kB\n"
+            + "Threads:\t12\n";
+
+    private static final String IO = "rchar: 900\nwchar: 800\nread_bytes: 4096\nwrite_bytes: 8192\n";
+
+    private static byte[] environ(String... entries) {
+        StringBuilder s = new StringBuilder();
+        for (String entry : entries) {
+            s.append(entry).append('\0');
+        }
+        return s.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testContainsEntry() {
+        byte[] entry = "VSTEST_RUNNER_COOKIE=abc".getBytes(StandardCharsets.UTF_8);
+        assertThat(VsTestResourceSampler.ProcScanner.containsEntry(
+                environ("PATH=/usr/bin", "VSTEST_RUNNER_COOKIE=abc", "HOME=/root"), entry), is(true));
+        // the last entry may lack its terminating NUL
+        assertThat(VsTestResourceSampler.ProcScanner.containsEntry(
+                "PATH=/usr/bin\0VSTEST_RUNNER_COOKIE=abc".getBytes(StandardCharsets.UTF_8), entry), is(true));
+        assertThat(VsTestResourceSampler.ProcScanner.containsEntry(
+                environ("VSTEST_RUNNER_COOKIE=abcd", "X_VSTEST_RUNNER_COOKIE=abc"), entry), is(false));
+        assertThat(VsTestResourceSampler.ProcScanner.containsEntry(new byte[0], entry), is(false));
+    }
+
+    @Test
+    public void testParseCpuMillis() {
+        // utime 250 + stime 125 ticks at 100 per second
+        assertThat(VsTestResourceSampler.ProcScanner.parseCpuMillis(STAT), is(3750L));
+        assertThat(VsTestResourceSampler.ProcScanner.parseCpuMillis("1 (short) S 0 1"), is(0L));
+    }
+
+    @Test
+    public void testParseField() {
+        assertThat(VsTestResourceSampler.ProcScanner.parseField(STATUS, "VmRSS:"), is(51200L));
+        assertThat(VsTestResourceSampler.ProcScanner.parseField(IO, "read_bytes:"), is(4096L));
+        assertThat(VsTestResourceSampler.ProcScanner.parseField(IO, "write_bytes:"), is(8192L));
+        assertThat(VsTestResourceSampler.ProcScanner.parseField(STATUS, "VmSwap:"), is(0L));
+        assertThat(VsTestResourceSampler.ProcScanner.parseField("VmRSS:\n1024", "VmRSS:"), is(0L));
+    }
+
+    @Test
+    public void testUsageTotals() {
+        VsTestResourceUsageAction usage = new VsTestResourceUsageAction(1000);
+        usage.add(1000, 0, 100, 10, 20, 1);
+        usage.add(2000, 500, 300, 30, 40, 3);
+        usage.add(4000, 2500, 200, 50, 60, 2);
+        assertThat(usage.getPeakCpuPercent(), is(100L));
+        assertThat(usage.getAverageCpuPercent(), is(62L));
+        assertThat(usage.getPeakRssBytes(), is(300L));
+        assertThat(usage.getAverageRssBytes(), is(200L));
+        assertThat(usage.getReadBytes(), is(50L));
+        assertThat(usage.getPeakProcesses(), is(3));
+        assertThat(usage.getPoints().size(), is(3));
+    }
+
+    @Test
+    public void testDecimation() {
+        VsTestResourceUsageAction usage = new VsTestResourceUsageAction(1000);
+        for (int i = 1; i <= VsTestResourceUsageAction.MAX_POINTS; i++) {
+            usage.add(i * 1000L, 0, 0, 0, 0, 1);
+        }
+        List<VsTestResourceUsageAction.Point> points = usage.getPoints();
+        assertThat(points.size(), is(VsTestResourceUsageAction.MAX_POINTS / 2));
+        assertThat(points.get(0).getElapsedMillis(), is(2000L));
+        assertThat(points.get(points.size() - 1).getElapsedMillis(), is(VsTestResourceUsageAction.MAX_POINTS * 1000L));
+
+        // every other sample is kept from now on
+        usage.add(121000, 0, 0, 0, 0, 1);
+        assertThat(usage.getPoints().size(), is(VsTestResourceUsageAction.MAX_POINTS / 2));
+        usage.add(122000, 0, 0, 0, 0, 1);
+        points = usage.getPoints();
+        assertThat(points.size(), is(VsTestResourceUsageAction.MAX_POINTS / 2 + 1));
+        assertThat(points.get(points.size() - 1).getElapsedMillis(), is(122000L));
+        assertThat(usage.getElapsedMillis(), is(122000L));
+    }
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class VsTestResultDeltaTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final VsTestResultIndex SNAPSHOT = new VsTestResultIndex.Builder()
+            .add("Alpha", VsTestOutcome.PASSED, 10)
+            .add("Beta", VsTestOutcome.FAILED, 1000)
+            .add("Gamma", VsTestOutcome.PASSED, 100)
+            .add("Removed", VsTestOutcome.PASSED, 5)
+            .add("Slow", VsTestOutcome.PASSED, 100)
+            .build();
+
+    private static final VsTestResultIndex CURRENT = new VsTestResultIndex.Builder()
+            .add("Added", VsTestOutcome.PASSED, 1)
+            .add("Alpha", VsTestOutcome.PASSED, 12)
+            .add("Beta", VsTestOutcome.PASSED, 900)
+            .add("Gamma", VsTestOutcome.FAILED, 100)
+            .add("Slow", VsTestOutcome.PASSED, 400)
+            .build();
+
+    @Test
+    public void testDiffAndApply() {
+        VsTestResultDelta delta = new VsTestResultDelta.Snapshot(1, SNAPSHOT).fingerprint().diff(CURRENT);
+        VsTestResultIndex changes = delta.getChanges();
+        assertThat(changes.size(), is(4));
+        assertThat(changes.indexOf("Alpha") < 0, is(true));
+        assertThat(changes.getOutcome(changes.indexOf("Beta")), is(VsTestOutcome.PASSED));
+        assertThat(changes.getOutcome(changes.indexOf("Gamma")), is(VsTestOutcome.FAILED));
+        assertThat(changes.getDuration(changes.indexOf("Slow")), is(400));
+        assertThat(delta.getSeen(), is(1));
+
+        VsTestResultIndex applied = delta.apply(SNAPSHOT);
+        assertThat(applied.size(), is(5));
+        assertThat(applied.indexOf("Removed") < 0, is(true));
+        // unchanged tests keep the duration of the snapshot
+        assertThat(applied.getDuration(applied.indexOf("Alpha")), is(10));
+        assertThat(applied.getOutcome(applied.indexOf("Added")), is(VsTestOutcome.PASSED));
+    }
+
+    @Test
+    public void testMergeSteps() {
+        VsTestResultDelta.Fingerprint fingerprint = new VsTestResultDelta.Snapshot(1, SNAPSHOT).fingerprint();
+        VsTestResultDelta first = fingerprint.diff(new VsTestResultIndex.Builder().add("Alpha", VsTestOutcome.PASSED, 10).build());
+        VsTestResultDelta second = fingerprint.diff(new VsTestResultIndex.Builder().add("Removed", VsTestOutcome.FAILED, 5).build());
+
+        VsTestResultIndex applied = first.merge(second, SNAPSHOT).apply(SNAPSHOT);
+        assertThat(applied.size(), is(2));
+        assertThat(applied.getOutcome(applied.indexOf("Removed")), is(VsTestOutcome.FAILED));
+
+        // a newer step running a changed test again without the change wins as well
+        VsTestResultDelta changed = fingerprint.diff(new VsTestResultIndex.Builder().add("Gamma", VsTestOutcome.FAILED, 100).build());
+        VsTestResultDelta unchanged = fingerprint.diff(new VsTestResultIndex.Builder().add("Gamma", VsTestOutcome.PASSED, 100).build());
+        VsTestResultDelta merged = changed.merge(unchanged, SNAPSHOT);
+        assertThat(merged.getChanges().size(), is(0));
+        applied = merged.apply(SNAPSHOT);
+        assertThat(applied.size(), is(1));
+        assertThat(applied.getOutcome(applied.indexOf("Gamma")), is(VsTestOutcome.PASSED));
+
+        applied = unchanged.merge(changed, SNAPSHOT).apply(SNAPSHOT);
+        assertThat(applied.size(), is(1));
+        assertThat(applied.getOutcome(applied.indexOf("Gamma")), is(VsTestOutcome.FAILED));
+    }
+
+    @Test
+    public void testReadBuildAndLookup() throws Exception {
+        File snapshotDir = tmp.newFolder("1");
+        File buildDir = tmp.newFolder("2");
+        SNAPSHOT.write(new File(snapshotDir, VsTestResultIndex.FILE_NAME));
+        new VsTestResultDelta.Snapshot(1, SNAPSHOT).fingerprint().diff(CURRENT).write(buildDir);
+
+        VsTestResultIndex read = VsTestResultIndex.readBuild(buildDir);
+        assertThat(read.size(), is(5));
+        for (int i = 0; i < read.size(); i++) {
+            VsTestResultIndex.Entry entry = VsTestResultIndex.lookupBuild(buildDir, read.getName(i));
+            assertThat(entry.getOutcome(), is(read.getOutcome(i)));
+            assertThat(entry.getDuration(), is(read.getDuration(i)));
+        }
+        assertThat(VsTestResultIndex.lookupBuild(buildDir, "Removed"), is(nullValue()));
+        assertThat(VsTestResultIndex.readBuild(tmp.newFolder("3")), is(nullValue()));
+    }
+}
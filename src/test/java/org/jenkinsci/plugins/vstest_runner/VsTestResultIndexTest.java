@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class VsTestResultIndexTest {
+
+    private static final String TRX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<TestRun xmlns=\"http://microsoft.com/schemas/VisualStudio/TeamTest/2010\">\n"
+            + "  <Results>\n"
+            + "    <UnitTestResult testName=\"Beta\" outcome=\"Failed\" duration=\"00:00:01.5000000\" />\n"
+            + "    <UnitTestResult testName=\"Alpha\" outcome=\"Passed\" duration=\"00:00:00.0120000\" />\n"
+            + "    <UnitTestResult testName=\"Gamma\" outcome=\"NotExecuted\" />\n"
+            + "    <UnitTestResult testName=\"Rows\" outcome=\"Passed\" duration=\"00:01:00\">\n"
+            + "      <InnerResults>\n"
+            + "        <UnitTestResult testName=\"Rows\" outcome=\"Failed\" duration=\"00:00:30\" />\n"
+            + "      </InnerResults>\n"
+            + "    </UnitTestResult>\n"
+            + "  </Results>\n"
+            + "</TestRun>\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static VsTestResultIndex parse(String trx) throws Exception {
+        return VsTestResultIndex.parseTrx(new ByteArrayInputStream(trx.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testParseTrx() throws Exception {
+        VsTestResultIndex index = parse(TRX);
+        assertThat(index.size(), is(4));
+        assertThat(index.getName(0), is("Alpha"));
+        assertThat(index.getOutcome(index.indexOf("Beta")), is(VsTestOutcome.FAILED));
+        assertThat(index.getDuration(index.indexOf("Beta")), is(1500));
+        assertThat(index.getOutcome(index.indexOf("Gamma")), is(VsTestOutcome.SKIPPED));
+        assertThat(index.getOutcome(index.indexOf("Rows")), is(VsTestOutcome.PASSED));
+        assertThat(index.getDuration(index.indexOf("Rows")), is(60000));
+    }
+
+    @Test
+    public void testWriteReadAndLookup() throws Exception {
+        File file = tmp.newFile(VsTestResultIndex.FILE_NAME);
+        parse(TRX).write(file);
+
+        VsTestResultIndex read = VsTestResultIndex.read(file);
+        assertThat(read.size(), is(4));
+        assertThat(read.getDuration(read.indexOf("Alpha")), is(12));
+
+        for (String name : new String[] {"Alpha", "Beta", "Gamma", "Rows"}) {
+            assertThat(VsTestResultIndex.lookup(file, name).getOutcome(), is(read.getOutcome(read.indexOf(name))));
+        }
+        assertThat(VsTestResultIndex.lookup(file, "Missing"), is(nullValue()));
+        assertThat(VsTestResultIndex.lookup(new File(tmp.getRoot(), "none"), "Alpha"), is(nullValue()));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        VsTestResultIndex newer = new VsTestResultIndex.Builder()
+                .add("Alpha", VsTestOutcome.FAILED, 7)
+                .add("Delta", VsTestOutcome.PASSED, 3)
+                .build();
+        VsTestResultIndex merged = parse(TRX).merge(newer);
+        assertThat(merged.size(), is(5));
+        assertThat(merged.getOutcome(merged.indexOf("Alpha")), is(VsTestOutcome.FAILED));
+        assertThat(merged.getDuration(merged.indexOf("Delta")), is(3));
+    }
+
+    @Test
+    public void testParseDuration() {
+        assertThat(VsTestResultIndex.parseDuration("00:00:00.0010000"), is(1));
+        assertThat(VsTestResultIndex.parseDuration("01:02:03"), is(3723000));
+        assertThat(VsTestResultIndex.parseDuration("1.00:00:00"), is(86400000));
+        assertThat(VsTestResultIndex.parseDuration("garbage"), is(0));
+        assertThat(VsTestResultIndex.parseDuration(null), is(0));
+    }
+
+    @Test
+    public void testSameMethodNameInTwoClasses() throws Exception {
+        VsTestResultIndex index = parse("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<TestRun xmlns=\"http://microsoft.com/schemas/VisualStudio/TeamTest/2010\">\n"
+                + "  <Results>\n"
+                + "    <UnitTestResult testId=\"a\" testName=\"Setup_Works\" outcome=\"Passed\" duration=\"00:00:01\" />\n"
+                + "    <UnitTestResult testId=\"b\" testName=\"Setup_Works\" outcome=\"Failed\" duration=\"00:00:02\" />\n"
+                + "    <UnitTestResult testId=\"c\" testName=\"Other.Tests.Qualified\" outcome=\"Passed\" />\n"
+                + "    <UnitTestResult testId=\"d\" testName=\"Orphan\" outcome=\"Passed\" />\n"
+                + "  </Results>\n"
+                + "  <TestDefinitions>\n"
+                + "    <UnitTest id=\"a\" name=\"Setup_Works\">\n"
+                + "      <TestMethod className=\"App.Tests.Parser, App.Tests\" name=\"Setup_Works\" />\n"
+                + "    </UnitTest>\n"
+                + "    <UnitTest id=\"b\" name=\"Setup_Works\">\n"
+                + "      <TestMethod className=\"App.Tests.Writer\" name=\"Setup_Works\" />\n"
+                + "    </UnitTest>\n"
+                + "    <UnitTest id=\"c\" name=\"Qualified\">\n"
+                + "      <TestMethod className=\"Other.Tests\" name=\"Qualified\" />\n"
+                + "    </UnitTest>\n"
+                + "  </TestDefinitions>\n"
+                + "</TestRun>\n");
+        assertThat(index.size(), is(4));
+        assertThat(index.getOutcome(index.indexOf("App.Tests.Parser.Setup_Works")), is(VsTestOutcome.PASSED));
+        assertThat(index.getOutcome(index.indexOf("App.Tests.Writer.Setup_Works")), is(VsTestOutcome.FAILED));
+        assertThat(index.getDuration(index.indexOf("App.Tests.Writer.Setup_Works")), is(2000));
+        assertThat(index.indexOf("Other.Tests.Qualified") >= 0, is(true));
+        assertThat(index.indexOf("Orphan") >= 0, is(true));
+    }
+}
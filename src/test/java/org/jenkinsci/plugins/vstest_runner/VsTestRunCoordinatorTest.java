@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class VsTestRunCoordinatorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private FilePath workspace(String name, String assembly) throws Exception {
+        File dir = tmp.newFolder(name);
+        Files.write(new File(dir, "Tests.dll").toPath(), assembly.getBytes(StandardCharsets.UTF_8));
+        return new FilePath(dir);
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        List<String> assemblies = Collections.singletonList("Tests.dll");
+        List<String> arguments = Arrays.asList("/Logger:trx", "vstest.console.exe");
+        String key = VsTestRunCoordinator.key(workspace("a", "v1"), assemblies, arguments);
+
+        assertThat(VsTestRunCoordinator.key(workspace("b", "v1"), assemblies, arguments), is(key));
+        assertThat(VsTestRunCoordinator.key(workspace("c", "v2"), assemblies, arguments), is(not(key)));
+        assertThat(VsTestRunCoordinator.key(workspace("d", "v1"), assemblies, Collections.singletonList("vstest.console.exe")), is(not(key)));
+    }
+
+    @Test
+    public void testKeyCoversDependencies() throws Exception {
+        List<String> assemblies = Collections.singletonList("bin/Foo.Tests.dll");
+        List<String> arguments = Collections.singletonList("vstest.console.exe");
+        File dir = tmp.newFolder("deps");
+        File bin = new File(dir, "bin");
+        bin.mkdirs();
+        Files.write(new File(bin, "Foo.Tests.dll").toPath(), "tests".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(bin, "Foo.dll").toPath(), "product v1".getBytes(StandardCharsets.UTF_8));
+        String key = VsTestRunCoordinator.key(new FilePath(dir), assemblies, arguments);
+
+        // only the assembly under test next to the test assembly changed
+        Files.write(new File(bin, "Foo.dll").toPath(), "product v2".getBytes(StandardCharsets.UTF_8));
+        assertThat(VsTestRunCoordinator.key(new FilePath(dir), assemblies, arguments), is(not(key)));
+    }
+
+    @Test
+    public void testFollowerReusesResults() throws Exception {
+        final FilePath leaderWorkspace = workspace("leader", "v1");
+        final File trx = new File(leaderWorkspace.getRemote(), "results.trx");
+        Files.write(trx.toPath(), "<TestRun/>".getBytes(StandardCharsets.UTF_8));
+
+        VsTestRunCoordinator.Ticket leader = VsTestRunCoordinator.enter("testFollowerReusesResults", "leader #1");
+        final VsTestRunCoordinator.Ticket follower = VsTestRunCoordinator.enter("testFollowerReusesResults", "follower #1");
+        assertThat(leader.isLeader(), is(true));
+        assertThat(follower.isLeader(), is(false));
+        assertThat(follower.getLeader(), is("leader #1"));
+
+        Future<VsTestRunCoordinator.Shared> waiting = executor.submit(new Callable<VsTestRunCoordinator.Shared>() {
+            public VsTestRunCoordinator.Shared call() throws Exception {
+                return follower.await();
+            }
+        });
+        File buildDir = tmp.newFolder("build");
+        leader.finish(buildDir, leaderWorkspace, Collections.singletonList(trx.getPath()),
+                Collections.<String>emptyList(), Collections.<String>emptyList(), 1);
+
+        VsTestRunCoordinator.Shared shared = waiting.get(10, TimeUnit.SECONDS);
+        assertThat(shared.getExitCode(), is(1));
+        FilePath copyDir = workspace("follower", "v1").child("shared");
+        Map<File, String> copies = shared.copyTo(copyDir);
+        assertThat(new FilePath(new File(copies.get(shared.getTrxFiles().get(0)))).readToString(), is("<TestRun/>"));
+        // the only follower has copied the results
+        assertThat(new File(buildDir, VsTestRunCoordinator.SHARED_DIR).exists(), is(false));
+        leader.close();
+
+        // the run is no longer in flight
+        VsTestRunCoordinator.Ticket next = VsTestRunCoordinator.enter("testFollowerReusesResults", "next #1");
+        assertThat(next.isLeader(), is(true));
+        next.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testLeaderRemovesResultsNotCopied() throws Exception {
+        FilePath leaderWorkspace = workspace("leader", "v1");
+        File trx = new File(leaderWorkspace.getRemote(), "results.trx");
+        Files.write(trx.toPath(), "<TestRun/>".getBytes(StandardCharsets.UTF_8));
+
+        VsTestRunCoordinator.Ticket leader = VsTestRunCoordinator.enter("testLeaderRemovesResultsNotCopied", "leader #1");
+        VsTestRunCoordinator.Ticket follower = VsTestRunCoordinator.enter("testLeaderRemovesResultsNotCopied", "follower #1");
+        File buildDir = tmp.newFolder("build");
+        leader.finish(buildDir, leaderWorkspace, Collections.singletonList(trx.getPath()),
+                Collections.<String>emptyList(), Collections.<String>emptyList(), 0);
+        assertThat(new File(buildDir, VsTestRunCoordinator.SHARED_DIR).exists(), is(true));
+
+        leader.close();
+        assertThat(new File(buildDir, VsTestRunCoordinator.SHARED_DIR).exists(), is(false));
+        // the follower runs the tests itself
+        follower.await().copyTo(workspace("follower", "v1").child("shared"));
+    }
+
+    @Test
+    public void testFailedLeaderReleasesFollowers() throws Exception {
+        VsTestRunCoordinator.Ticket leader = VsTestRunCoordinator.enter("testFailedLeaderReleasesFollowers", "leader #1");
+        VsTestRunCoordinator.Ticket follower = VsTestRunCoordinator.enter("testFailedLeaderReleasesFollowers", "follower #1");
+        leader.close();
+        assertThat(follower.await(), is(nullValue()));
+    }
+}
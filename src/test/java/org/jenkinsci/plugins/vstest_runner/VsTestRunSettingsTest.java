@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class VsTestRunSettingsTest {
+
+    private static final String USER_SETTINGS = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<RunSettings>\n"
+            + "  <RunConfiguration>\n"
+            + "    <ResultsDirectory>.\\TestResults</ResultsDirectory>\n"
+            + "    <MaxCpuCount>2</MaxCpuCount>\n"
+            + "  </RunConfiguration>\n"
+            + "  <DataCollectionRunSettings />\n"
+            + "</RunSettings>\n";
+
+    @Test
+    public void testGeneratesSettings() throws Exception {
+        VsTestRunSettings settings = VsTestRunSettings.parse(null);
+        assertThat(settings.get(VsTestRunSettings.MAX_CPU_COUNT), is(nullValue()));
+        assertThat(settings.set(VsTestRunSettings.MAX_CPU_COUNT, "8", false), is("8"));
+        assertThat(settings.set(VsTestRunSettings.BATCH_SIZE, "20", true), is("20"));
+
+        VsTestRunSettings reparsed = VsTestRunSettings.parse(settings.toString());
+        assertThat(reparsed.get(VsTestRunSettings.MAX_CPU_COUNT), is("8"));
+        assertThat(reparsed.get(VsTestRunSettings.BATCH_SIZE), is("20"));
+    }
+
+    @Test
+    public void testMergesUserSettings() throws Exception {
+        VsTestRunSettings settings = VsTestRunSettings.parse(USER_SETTINGS);
+        assertThat(settings.set(VsTestRunSettings.MAX_CPU_COUNT, "8", false), is("2"));
+        assertThat(settings.set(VsTestRunSettings.BATCH_SIZE, "50", false), is("50"));
+
+        String xml = settings.toString();
+        assertThat(xml, containsString("<ResultsDirectory>.\\TestResults</ResultsDirectory>"));
+        assertThat(xml, containsString("<DataCollectionRunSettings/>"));
+        assertThat(xml, containsString("<MaxCpuCount>2</MaxCpuCount>"));
+        assertThat(xml, containsString("<BatchSize>50</BatchSize>"));
+    }
+
+    @Test
+    public void testOverridesUserSettings() throws Exception {
+        VsTestRunSettings settings = VsTestRunSettings.parse(USER_SETTINGS);
+        assertThat(settings.set(VsTestRunSettings.MAX_CPU_COUNT, "6", true), is("6"));
+        assertThat(VsTestRunSettings.parse(settings.toString()).get(VsTestRunSettings.MAX_CPU_COUNT), is("6"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherDocuments() throws Exception {
+        VsTestRunSettings.parse("<TestSettings/>");
+    }
+}
@@ -0,0 +1,188 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs the builder against {@code fake-vstest-console.sh}, a shell script standing in
+ * for vstest.console, and logs step overhead, memory and log throughput.
+ * <p>
+ * The defaults keep the suite fast; scale it up with system properties, e.g.
+ * {@code mvn test -Dtest=VsTestScaleTest -Dvstest.scale.assemblies=20000
+ * -Dvstest.scale.tests=1000000 -Dvstest.scale.builds=20}.
+ */
+public class VsTestScaleTest {
+
+    private static final Logger LOGGER = Logger.getLogger(VsTestScaleTest.class.getName());
+
+    /** Number of test assemblies in the workspace. */
+    private static final int ASSEMBLIES = Integer.getInteger("vstest.scale.assemblies", 50);
+    /** Number of tests run by the log throughput test, one output line each plus extra lines. */
+    private static final int TESTS = Integer.getInteger("vstest.scale.tests", 20000);
+    /** Extra output lines printed per test. */
+    private static final int OUTPUT_LINES = Integer.getInteger("vstest.scale.outputLines", 4);
+    /** Number of concurrent builds. */
+    private static final int BUILDS = Integer.getInteger("vstest.scale.builds", 4);
+    /** Size of the coverage attachment in KB. */
+    private static final int COVERAGE_KB = Integer.getInteger("vstest.scale.coverageKb", 1024);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String fakeVsTest;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeFalse("the stand-in vstest.console is a shell script", Functions.isWindows());
+        File script = tmp.newFile("fake-vstest-console.sh");
+        try (InputStream in = getClass().getResourceAsStream("VsTestScaleTest/fake-vstest-console.sh")) {
+            Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        assertThat(script.setExecutable(true), is(true));
+        fakeVsTest = script.getAbsolutePath();
+        j.jenkins.getDescriptorByType(VsTestInstallation.DescriptorImpl.class)
+                .setInstallations(new VsTestInstallation("fake", fakeVsTest));
+    }
+
+    private FreeStyleProject createProject(final int assemblies, String fakeArgs) throws IOException {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                FilePath bin = build.getWorkspace().child("bin");
+                if (!bin.exists()) {
+                    for (int i = 0; i < assemblies; i++) {
+                        bin.child("Assembly" + i + ".Tests.dll").write("", "UTF-8");
+                    }
+                }
+                return true;
+            }
+        });
+        VsTestBuilder builder = new VsTestBuilder();
+        builder.setVsTestName("fake");
+        builder.setTestFiles("bin/*.Tests.dll");
+        builder.setLogger("trx");
+        builder.setUseVs2017Plus(true);
+        builder.setEnablecodecoverage(false);
+        builder.setCmdLineArgs(fakeArgs);
+        project.getBuildersList().add(builder);
+        return project;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String test, String metrics) {
+        LOGGER.log(Level.INFO, "[{0}.{1}] {2}", new Object[]{VsTestScaleTest.class.getSimpleName(), test, metrics});
+    }
+
+    @Test
+    public void testManyAssemblies() throws Exception {
+        FreeStyleProject project = createProject(ASSEMBLIES, "/FakeTests:1");
+        long heap = usedHeap();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        // the second build measures the step alone, the assemblies already exist
+        long start = System.nanoTime();
+        build = j.buildAndAssertSuccess(project);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        j.assertLogContains("Total tests: " + ASSEMBLIES + ".", build);
+        assertThat(VsTestResultIndex.read(build).size(), is(ASSEMBLIES));
+        report("testManyAssemblies", ASSEMBLIES + " assemblies, " + millis + " ms per build, heap delta "
+                + (usedHeap() - heap) / 1024 + " KB");
+    }
+
+    @Test
+    public void testLogThroughput() throws Exception {
+        FreeStyleProject project = createProject(1, "/FakeTests:" + TESTS + " /FakeFailEvery:1000 /FakeOutputLines:" + OUTPUT_LINES
+                + " /FakeCoverageKb:" + COVERAGE_KB + " /FakeExit:0");
+        long start = System.nanoTime();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        long lines = (long) TESTS * (1 + OUTPUT_LINES) + TESTS / 1000 * 4;
+        j.assertLogContains("Total tests: " + TESTS + ". Passed: " + (TESTS - TESTS / 1000) + ".", build);
+        assertThat(VsTestResultIndex.read(build).size(), is(TESTS));
+        assertThat(build.getAction(VsTestResultsAction.class).getCoverageFiles().size(), is(1));
+        report("testLogThroughput", lines + " lines, " + build.getLogFile().length() / 1024 + " KB log in " + millis
+                + " ms, " + lines * 1000 / millis + " lines/s");
+    }
+
+    @Test
+    public void testQuietConsole() throws Exception {
+        FreeStyleProject project = createProject(1, "/FakeTests:" + TESTS + " /FakeFailEvery:1000 /FakeOutputLines:" + OUTPUT_LINES + " /FakeExit:0");
+        project.getBuildersList().get(VsTestBuilder.class).setQuietConsole(true);
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        j.assertLogContains("Failed   Fake.Assembly0.Tests.Class9.Test1000", build);
+        j.assertLogNotContains("Passed   Fake.Assembly0.Tests.Class0.Test1\n", build);
+        j.assertLogContains("line(s) of passing tests not shown", build);
+        report("testQuietConsole", TESTS + " tests, " + build.getLogFile().length() / 1024 + " KB log");
+    }
+
+    @Test
+    public void testConcurrentBuilds() throws Exception {
+        j.jenkins.setNumExecutors(BUILDS);
+        List<FreeStyleProject> projects = new ArrayList<>();
+        for (int i = 0; i < BUILDS; i++) {
+            projects.add(createProject(ASSEMBLIES, "/FakeTests:" + Math.max(1, TESTS / ASSEMBLIES / BUILDS) + " /FakeOutputLines:" + OUTPUT_LINES));
+        }
+        long heap = usedHeap();
+        long start = System.nanoTime();
+        List<Future<FreeStyleBuild>> builds = new ArrayList<>();
+        for (FreeStyleProject project : projects) {
+            builds.add(project.scheduleBuild2(0, new Cause.UserIdCause()));
+        }
+        for (Future<FreeStyleBuild> build : builds) {
+            j.assertBuildStatusSuccess(build);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        report("testConcurrentBuilds", BUILDS + " builds in " + millis + " ms, heap delta " + (usedHeap() - heap) / 1024 + " KB");
+    }
+
+    @Test
+    public void testExitCodes() throws Exception {
+        FreeStyleProject project = createProject(2, "/FakeTests:10 /FakeFailEvery:5");
+        j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+
+        project.getBuildersList().get(VsTestBuilder.class).setFailBuild(false);
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, project.scheduleBuild2(0).get());
+        assertThat(VsTestResultIndex.read(build).size(), is(20));
+
+        project.getBuildersList().get(VsTestBuilder.class).setCmdLineArgs("/FakeTests:10 /FakeExit:3");
+        j.assertBuildStatus(Result.UNSTABLE, project.scheduleBuild2(0).get());
+    }
+}
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.vstest_runner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class VsTestStagerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void write(File file, String content) throws Exception {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStageIncrementally() throws Exception {
+        File workspace = tmp.newFolder("ws");
+        write(new File(workspace, "bin/Tests.dll"), "tests");
+        write(new File(workspace, "bin/Dependency.dll"), "dependency");
+        write(new File(workspace, "bin/de/Tests.resources.dll"), "resources");
+        write(new File(workspace, "src/Tests.cs"), "source");
+        String root = tmp.newFolder("stage").getPath();
+        VsTestStager stager = new VsTestStager(root, Collections.singletonList("bin/Tests.dll"));
+
+        VsTestStager.Staged staged = stager.invoke(workspace, null);
+        File dir = new File(staged.getDirectory());
+        assertThat(new File(staged.getAssemblies().get(0)), is(new File(dir, "bin/Tests.dll")));
+        assertThat(new File(dir, "bin/de/Tests.resources.dll").isFile(), is(true));
+        assertThat(new File(dir, "src").exists(), is(false));
+        assertThat(staged.toString().startsWith("Staged 3 file(s)"), is(true));
+        assertThat(staged.toString().endsWith(" 0 unchanged"), is(true));
+
+        write(new File(workspace, "bin/Dependency.dll"), "dependency v2");
+        new File(workspace, "bin/de/Tests.resources.dll").delete();
+        staged = stager.invoke(workspace, null);
+        assertThat(new String(Files.readAllBytes(new File(dir, "bin/Dependency.dll").toPath()), StandardCharsets.UTF_8), is("dependency v2"));
+        assertThat(new File(dir, "bin/de").exists(), is(false));
+        // hard links change along with the workspace, copies are replaced
+        assertThat(staged.toString().startsWith("Staged 2 file(s)"), is(true));
+    }
+
+    @Test
+    public void testUnstageResults() throws Exception {
+        File workspace = tmp.newFolder("ws");
+        write(new File(workspace, "bin/Tests.dll"), "tests");
+        VsTestStager.Staged staged = new VsTestStager(tmp.newFolder("stage").getPath(), Collections.singletonList("bin/Tests.dll"))
+                .invoke(workspace, null);
+        // vstest.console writes its results next to the staged assembly
+        File trx = new File(staged.getDirectory(), "bin/TestResults/a.trx");
+        write(trx, "<TestRun/>");
+        String outside = new File(workspace, "TestResults/b.trx").getPath();
+        String missing = new File(staged.getDirectory(), "bin/TestResults/missing.coverage").getPath();
+
+        List<String> unstaged = new VsTestStager.Unstager(staged, Arrays.asList(trx.getPath(), outside, missing)).invoke(workspace, null);
+        File moved = new File(workspace, "bin/TestResults/a.trx");
+        assertThat(unstaged, is(Arrays.asList(moved.getPath(), outside, missing)));
+        assertThat(new String(Files.readAllBytes(moved.toPath()), StandardCharsets.UTF_8), is("<TestRun/>"));
+        assertThat(trx.exists(), is(false));
+    }
+
+    @Test
+    public void testToWorkspace() {
+        VsTestStager.Staged staged = new VsTestStager.Staged("/stage/ws-1", Collections.<String>emptyList(), 0, 0, 0, 0, 0);
+        assertThat(staged.toWorkspace(Arrays.asList("/stage/ws-1/bin/TestResults/a.trx", "/ws/TestResults/b.trx", "/stage/ws-10/c.trx"), "/ws"),
+                is(Arrays.asList("/ws/bin/TestResults/a.trx", "/ws/TestResults/b.trx", "/stage/ws-10/c.trx")));
+    }
+}
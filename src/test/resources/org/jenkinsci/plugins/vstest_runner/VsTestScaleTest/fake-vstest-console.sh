@@ -0,0 +1,82 @@
+#!/bin/sh
+# Stand-in for vstest.console used by VsTestScaleTest. Prints the console output of a
+# test run, writes a matching TRX file and, optionally, a coverage file of a given size.
+#
+#   /FakeTests:N         number of tests in each assembly (default 10)
+#   /FakeFailEvery:N     every Nth test fails (default 0, none)
+#   /FakeOutputLines:N   extra output lines printed by each test (default 0)
+#   /FakeCoverageKb:N    size of the coverage attachment in KB (default 0, none)
+#   /FakeExit:N          exit code (default 1 if a test failed, 0 otherwise)
+#
+# Any other argument that does not start with '/' counts as a test assembly.
+
+tests=10
+fail_every=0
+output_lines=0
+coverage_kb=0
+exit_code=
+assemblies=0
+for arg in "$@"; do
+    case "$arg" in
+        /FakeTests:*) tests=${arg#*:} ;;
+        /FakeFailEvery:*) fail_every=${arg#*:} ;;
+        /FakeOutputLines:*) output_lines=${arg#*:} ;;
+        /FakeCoverageKb:*) coverage_kb=${arg#*:} ;;
+        /FakeExit:*) exit_code=${arg#*:} ;;
+        /*) ;;
+        *) assemblies=$((assemblies + 1)) ;;
+    esac
+done
+
+name=fake_$$
+mkdir -p TestResults
+trx="$PWD/TestResults/$name.trx"
+
+echo "Microsoft (R) Test Execution Command Line Tool Version 15.9.0"
+echo "Starting test execution, please wait..."
+echo "A total of $assemblies test files matched the specified pattern."
+
+awk -v assemblies="$assemblies" -v tests="$tests" -v fail_every="$fail_every" -v output_lines="$output_lines" -v trx="$trx" 'BEGIN {
+    print "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" > trx
+    print "<TestRun id=\"00000000-0000-0000-0000-000000000000\" name=\"fake\" xmlns=\"http://microsoft.com/schemas/VisualStudio/TeamTest/2010\">" > trx
+    print "  <Results>" > trx
+    total = assemblies * tests
+    failed = 0
+    for (i = 1; i <= total; i++) {
+        test = sprintf("Fake.Assembly%d.Tests.Class%d.Test%d", int((i - 1) / tests), int((i - 1) / 100), i)
+        if (fail_every > 0 && i % fail_every == 0) {
+            outcome = "Failed"
+            failed++
+            print "Failed   " test
+            print "Error Message:"
+            print "   Assert.AreEqual failed. Expected:<1>. Actual:<2>."
+            print "Stack Trace:"
+            print "   at Fake.Tests.Test" i "() in C:\\src\\Fake.Tests\\Tests.cs:line " i
+        } else {
+            outcome = "Passed"
+            print "Passed   " test
+        }
+        for (l = 1; l <= output_lines; l++) {
+            print "Standard Output Messages:  line " l " of " test
+        }
+        printf "    <UnitTestResult testId=\"%d\" testName=\"%s\" outcome=\"%s\" duration=\"00:00:00.%07d\" />\n", i, test, outcome, (i % 1000) * 10000 > trx
+    }
+    print "  </Results>" > trx
+    print "</TestRun>" > trx
+    print ""
+    printf "Total tests: %d. Passed: %d. Failed: %d. Skipped: 0.\n", total, total - failed, failed
+    print (failed > 0 ? "Test Run Failed." : "Test Run Successful.")
+    print "Test execution time: 1.0000 Seconds"
+    exit (failed > 0)
+}'
+status=$?
+
+echo "Results File: $trx"
+if [ "$coverage_kb" -gt 0 ]; then
+    coverage="$PWD/TestResults/$name.coverage"
+    head -c $((coverage_kb * 1024)) /dev/urandom > "$coverage"
+    echo "Attachments:"
+    echo "  $coverage"
+fi
+
+exit ${exit_code:-$status}